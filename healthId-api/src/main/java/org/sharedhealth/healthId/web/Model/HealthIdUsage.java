@@ -0,0 +1,37 @@
+package org.sharedhealth.healthId.web.Model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HealthIdUsage {
+
+    @JsonProperty("healthId")
+    private String healthId;
+    @JsonProperty("used_at")
+    private String usedAt;
+
+    public HealthIdUsage() {
+    }
+
+    public HealthIdUsage(String healthId, String usedAt) {
+        this.healthId = healthId;
+        this.usedAt = usedAt;
+    }
+
+    public String getHealthId() {
+        return healthId;
+    }
+
+    public void setHealthId(String healthId) {
+        this.healthId = healthId;
+    }
+
+    public String getUsedAt() {
+        return usedAt;
+    }
+
+    public void setUsedAt(String usedAt) {
+        this.usedAt = usedAt;
+    }
+}
@@ -0,0 +1,225 @@
+package org.sharedhealth.healthId.web.Model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
+import static java.lang.System.currentTimeMillis;
+import static org.sharedhealth.healthId.web.utils.DateUtil.toIsoMillisFormat;
+
+@JsonInclude(NON_NULL)
+public class HidGenerationJob {
+
+    public enum Type {
+        ALL, MCI_BLOCK, ORG_BLOCK
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final UUID id;
+    private final Type type;
+    private final String orgCode;
+    private final long start;
+    private final long requestedHIDs;
+    private final long totalCandidates;
+    private final long submittedAt;
+
+    private final AtomicLong hidsScanned = new AtomicLong();
+    private final AtomicLong hidsWritten = new AtomicLong();
+    private final AtomicLong hidsFailed = new AtomicLong();
+    private volatile Status status = Status.QUEUED;
+    private volatile boolean cancelRequested;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String message;
+    private volatile GeneratedHIDBlock generatedBlock;
+
+    public HidGenerationJob(Type type, String orgCode, long start, long requestedHIDs, long totalCandidates) {
+        this.id = timeBased();
+        this.type = type;
+        this.orgCode = orgCode;
+        this.start = start;
+        this.requestedHIDs = requestedHIDs;
+        this.totalCandidates = totalCandidates;
+        this.submittedAt = currentTimeMillis();
+    }
+
+    /**
+     * A job which is not registered anywhere, used when generation is invoked synchronously.
+     */
+    public static HidGenerationJob untracked() {
+        return new HidGenerationJob(null, null, 0, 0, 0);
+    }
+
+    public static String resultMessage(GeneratedHIDBlock generatedHIDBlock, long totalHIDs) {
+        if (generatedHIDBlock.getTotalHIDs() < totalHIDs) {
+            return String.format("Can generate only %s HIDs, because series exhausted. Use another series.", generatedHIDBlock.getTotalHIDs());
+        }
+        return String.format("Generated %s HIDs.", generatedHIDBlock.getTotalHIDs());
+    }
+
+    public void candidatesScanned(long count) {
+        hidsScanned.addAndGet(count);
+    }
+
+    public void hidsWritten(long count) {
+        hidsWritten.addAndGet(count);
+    }
+
+    public void hidsFailed(long count) {
+        hidsFailed.addAndGet(count);
+    }
+
+    public boolean isCancelled() {
+        return cancelRequested;
+    }
+
+    public boolean cancel() {
+        if (isFinished()) return false;
+        cancelRequested = true;
+        return true;
+    }
+
+    public void markRunning() {
+        this.startedAt = currentTimeMillis();
+        this.status = Status.RUNNING;
+    }
+
+    public void markFinished(GeneratedHIDBlock generatedBlock) {
+        this.generatedBlock = generatedBlock;
+        long expected = type == Type.ALL ? 0 : requestedHIDs;
+        this.message = resultMessage(generatedBlock, expected);
+        finish(cancelRequested ? Status.CANCELLED : Status.COMPLETED);
+    }
+
+    public void markFailed(String message) {
+        this.message = message;
+        finish(Status.FAILED);
+    }
+
+    private void finish(Status status) {
+        this.finishedAt = currentTimeMillis();
+        this.status = status;
+    }
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.CANCELLED || status == Status.FAILED;
+    }
+
+    @JsonProperty("id")
+    public UUID getId() {
+        return id;
+    }
+
+    @JsonProperty("type")
+    public Type getType() {
+        return type;
+    }
+
+    @JsonProperty("status")
+    public Status getStatus() {
+        return status;
+    }
+
+    @JsonProperty("org_code")
+    public String getOrgCode() {
+        return orgCode;
+    }
+
+    @JsonProperty("start")
+    public long getStart() {
+        return start;
+    }
+
+    @JsonProperty("requested_hids")
+    public long getRequestedHIDs() {
+        return requestedHIDs;
+    }
+
+    @JsonProperty("hids_scanned")
+    public long getHidsScanned() {
+        return hidsScanned.get();
+    }
+
+    @JsonProperty("hids_written")
+    public long getHidsWritten() {
+        return hidsWritten.get();
+    }
+
+    /**
+     * HIDs that could not be written even after retrying.
+     */
+    @JsonProperty("hids_failed")
+    public long getHidsFailed() {
+        return hidsFailed.get();
+    }
+
+    /**
+     * HIDs written per second since the job started running.
+     */
+    @JsonProperty("throughput")
+    public double getThroughput() {
+        long elapsedMillis = getElapsedMillis();
+        if (elapsedMillis <= 0) return 0;
+        return getHidsWritten() * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Estimated seconds left, derived from the HIDs written so far or, for a full range sweep,
+     * from the candidates scanned so far. Null while there is nothing to extrapolate from.
+     */
+    @JsonProperty("eta_seconds")
+    public Long getEtaSeconds() {
+        if (isFinished()) return 0L;
+        long elapsedMillis = getElapsedMillis();
+        long done = type == Type.ALL ? getHidsScanned() : getHidsWritten();
+        long target = type == Type.ALL ? totalCandidates : requestedHIDs;
+        if (elapsedMillis <= 0 || done <= 0) return null;
+        long remaining = Math.max(0, target - done);
+        return remaining * elapsedMillis / done / 1000;
+    }
+
+    @JsonProperty("message")
+    public String getMessage() {
+        return message;
+    }
+
+    @JsonProperty("generated_block")
+    public GeneratedHIDBlock getGeneratedBlock() {
+        return generatedBlock;
+    }
+
+    @JsonProperty("submitted_at")
+    public String getSubmittedAt() {
+        return toIsoMillisFormat(submittedAt);
+    }
+
+    @JsonProperty("started_at")
+    public String getStartedAt() {
+        return startedAt == 0 ? null : toIsoMillisFormat(startedAt);
+    }
+
+    @JsonProperty("finished_at")
+    public String getFinishedAt() {
+        return finishedAt == 0 ? null : toIsoMillisFormat(finishedAt);
+    }
+
+    @JsonIgnore
+    public long getFinishedAtMillis() {
+        return finishedAt;
+    }
+
+    private long getElapsedMillis() {
+        if (startedAt == 0) return 0;
+        long until = finishedAt == 0 ? currentTimeMillis() : finishedAt;
+        return until - startedAt;
+    }
+}
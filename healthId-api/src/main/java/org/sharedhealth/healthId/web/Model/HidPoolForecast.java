@@ -0,0 +1,99 @@
+package org.sharedhealth.healthId.web.Model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
+import static org.sharedhealth.healthId.web.utils.DateUtil.toIsoMillisFormat;
+
+@JsonInclude(NON_NULL)
+public class HidPoolForecast {
+    private final boolean enabled;
+    private final Long remainingHIDs;
+    private final Double allocationRate;
+    private final Double hoursToExhaustion;
+    private final int leadTime;
+    private final long chunkSize;
+    private final boolean replenishing;
+    private final long lastReplenishedAt;
+    private final long lastReplenishedHIDs;
+    private final long replenishedHIDs;
+    private final String lastError;
+
+    public HidPoolForecast(boolean enabled, Long remainingHIDs, Double allocationRate, Double hoursToExhaustion,
+                           int leadTime, long chunkSize, boolean replenishing, long lastReplenishedAt,
+                           long lastReplenishedHIDs, long replenishedHIDs, String lastError) {
+        this.enabled = enabled;
+        this.remainingHIDs = remainingHIDs;
+        this.allocationRate = allocationRate;
+        this.hoursToExhaustion = hoursToExhaustion;
+        this.leadTime = leadTime;
+        this.chunkSize = chunkSize;
+        this.replenishing = replenishing;
+        this.lastReplenishedAt = lastReplenishedAt;
+        this.lastReplenishedHIDs = lastReplenishedHIDs;
+        this.replenishedHIDs = replenishedHIDs;
+        this.lastError = lastError;
+    }
+
+    @JsonProperty("enabled")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @JsonProperty("remaining_hids")
+    public Long getRemainingHIDs() {
+        return remainingHIDs;
+    }
+
+    /**
+     * HIDs handed out per hour over the last hour, across all nodes.
+     */
+    @JsonProperty("allocation_rate")
+    public Double getAllocationRate() {
+        return allocationRate;
+    }
+
+    /**
+     * Null while no HIDs are being handed out.
+     */
+    @JsonProperty("hours_to_exhaustion")
+    public Double getHoursToExhaustion() {
+        return hoursToExhaustion;
+    }
+
+    @JsonProperty("lead_time")
+    public int getLeadTime() {
+        return leadTime;
+    }
+
+    @JsonProperty("chunk_size")
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    @JsonProperty("replenishing")
+    public boolean isReplenishing() {
+        return replenishing;
+    }
+
+    @JsonProperty("last_replenished_at")
+    public String getLastReplenishedAt() {
+        return lastReplenishedAt == 0 ? null : toIsoMillisFormat(lastReplenishedAt);
+    }
+
+    @JsonProperty("last_replenished_hids")
+    public long getLastReplenishedHIDs() {
+        return lastReplenishedHIDs;
+    }
+
+    @JsonProperty("replenished_hids")
+    public long getReplenishedHIDs() {
+        return replenishedHIDs;
+    }
+
+    @JsonProperty("last_error")
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,39 @@
+package org.sharedhealth.healthId.web.Model;
+
+/**
+ * A generated block of MCI candidates which is handed out by moving its cursor rather than
+ * by storing its HIDs. Candidates before {@code nextCandidate} are allocated.
+ */
+public class HidRange {
+    private final long seriesNo;
+    private final long beginsAt;
+    private final long endsAt;
+    private final long nextCandidate;
+
+    public HidRange(long seriesNo, long beginsAt, long endsAt, long nextCandidate) {
+        this.seriesNo = seriesNo;
+        this.beginsAt = beginsAt;
+        this.endsAt = endsAt;
+        this.nextCandidate = nextCandidate;
+    }
+
+    public long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public long getBeginsAt() {
+        return beginsAt;
+    }
+
+    public long getEndsAt() {
+        return endsAt;
+    }
+
+    public long getNextCandidate() {
+        return nextCandidate;
+    }
+
+    public boolean isExhausted() {
+        return nextCandidate > endsAt;
+    }
+}
@@ -0,0 +1,23 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.List;
+
+/**
+ * A block of HIDs allocated to an MCI, written to the response as it is by
+ * {@link org.sharedhealth.healthId.web.utils.MciHidBlockMessageConverter}.
+ */
+public class MciHidBlock {
+    private final List<MciHealthId> healthIds;
+
+    public MciHidBlock(List<MciHealthId> healthIds) {
+        this.healthIds = healthIds;
+    }
+
+    public List<MciHealthId> getHealthIds() {
+        return healthIds;
+    }
+
+    public int getTotal() {
+        return healthIds.size();
+    }
+}
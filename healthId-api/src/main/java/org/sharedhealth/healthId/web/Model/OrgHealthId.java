@@ -47,6 +47,10 @@ public class OrgHealthId {
         return healthId;
     }
 
+    public UUID getGeneratedAt() {
+        return generatedAt;
+    }
+
     public String getAllocatedFor() {
         return allocatedFor;
     }
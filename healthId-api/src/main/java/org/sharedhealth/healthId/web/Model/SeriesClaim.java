@@ -0,0 +1,51 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.UUID;
+
+/**
+ * Exclusive right of a generation run to hand out candidates of a series, starting at
+ * {@code startsAt}. Released with the last candidate the run consumed.
+ */
+public class SeriesClaim {
+    private final long seriesNo;
+    private final long startsAt;
+    private final UUID claimedBy;
+
+    public SeriesClaim(long seriesNo, long startsAt, UUID claimedBy) {
+        this.seriesNo = seriesNo;
+        this.startsAt = startsAt;
+        this.claimedBy = claimedBy;
+    }
+
+    public long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public long getStartsAt() {
+        return startsAt;
+    }
+
+    public UUID getClaimedBy() {
+        return claimedBy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SeriesClaim)) return false;
+
+        SeriesClaim that = (SeriesClaim) o;
+
+        if (seriesNo != that.seriesNo) return false;
+        if (startsAt != that.startsAt) return false;
+        return claimedBy.equals(that.claimedBy);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (seriesNo ^ (seriesNo >>> 32));
+        result = 31 * result + (int) (startsAt ^ (startsAt >>> 32));
+        result = 31 * result + claimedBy.hashCode();
+        return result;
+    }
+}
@@ -0,0 +1,35 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.UUID;
+
+/**
+ * The last candidate handed out in a series, and the generation run currently holding the
+ * series, if any.
+ */
+public class SeriesWatermark {
+    private final long seriesNo;
+    private final long endsAt;
+    private final UUID claimedBy;
+
+    public SeriesWatermark(long seriesNo, long endsAt, UUID claimedBy) {
+        this.seriesNo = seriesNo;
+        this.endsAt = endsAt;
+        this.claimedBy = claimedBy;
+    }
+
+    public long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public long getEndsAt() {
+        return endsAt;
+    }
+
+    public UUID getClaimedBy() {
+        return claimedBy;
+    }
+
+    public boolean isClaimed() {
+        return claimedBy != null;
+    }
+}
@@ -16,6 +16,8 @@ import org.springframework.context.annotation.Configuration;
 public class HealthIdCacheConfiguration implements CachingConfigurer {
 
     public static final String IDENTITY_CACHE = "identityCache";
+    public static final String NEXT_BLOCK_CACHE = "nextBlockCache";
+    public static final String ORG_HEALTH_ID_CACHE = "orgHealthIdCache";
     public static final String CACHE_EVICTION_POLICY = "LRU";
 
 
@@ -24,6 +26,8 @@ public class HealthIdCacheConfiguration implements CachingConfigurer {
 
         net.sf.ehcache.config.Configuration ehCacheConfig = new net.sf.ehcache.config.Configuration();
         ehCacheConfig.addCache(getIdentityCacheConfiguration());
+        ehCacheConfig.addCache(getNextBlockCacheConfiguration());
+        ehCacheConfig.addCache(getOrgHealthIdCacheConfiguration());
         return net.sf.ehcache.CacheManager.newInstance(ehCacheConfig);
     }
 
@@ -37,6 +41,27 @@ public class HealthIdCacheConfiguration implements CachingConfigurer {
         return cacheConfig;
     }
 
+    private CacheConfiguration getNextBlockCacheConfiguration() {
+        CacheConfiguration cacheConfig = new CacheConfiguration();
+        cacheConfig.setName(NEXT_BLOCK_CACHE);
+        cacheConfig.setMemoryStoreEvictionPolicy(CACHE_EVICTION_POLICY);
+        cacheConfig.setMaxEntriesLocalHeap(10000);
+        cacheConfig.setTimeToLiveSeconds(10 * 60);
+        cacheConfig.persistence(getPersistenceConfiguration());
+        return cacheConfig;
+    }
+
+    private CacheConfiguration getOrgHealthIdCacheConfiguration() {
+        CacheConfiguration cacheConfig = new CacheConfiguration();
+        cacheConfig.setName(ORG_HEALTH_ID_CACHE);
+        cacheConfig.setMemoryStoreEvictionPolicy(CACHE_EVICTION_POLICY);
+        cacheConfig.setMaxEntriesLocalHeap(100000);
+        cacheConfig.setTimeToLiveSeconds(60);
+        cacheConfig.setStatistics(true);
+        cacheConfig.persistence(getPersistenceConfiguration());
+        return cacheConfig;
+    }
+
     private PersistenceConfiguration getPersistenceConfiguration() {
         PersistenceConfiguration persistenceConfiguration = new PersistenceConfiguration();
         persistenceConfiguration.setStrategy("NONE");
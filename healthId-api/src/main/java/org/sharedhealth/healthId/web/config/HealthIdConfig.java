@@ -24,4 +24,24 @@ public class HealthIdConfig {
         executor.setCorePoolSize(healthIdProperties.getRestPoolSize());
         return new AsyncRestTemplate(executor);
     }
+
+    @Bean(name = "HidGenerationExecutor")
+    public ThreadPoolTaskExecutor hidGenerationExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(healthIdProperties.getHidGenerationPoolSize());
+        executor.setMaxPoolSize(healthIdProperties.getHidGenerationPoolSize());
+        executor.setQueueCapacity(healthIdProperties.getHidGenerationQueueSize());
+        executor.setThreadNamePrefix("hid-generation-");
+        return executor;
+    }
+
+    @Bean(name = "HidReservoirExecutor")
+    public ThreadPoolTaskExecutor hidReservoirExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(1);
+        executor.setThreadNamePrefix("hid-reservoir-");
+        return executor;
+    }
 }
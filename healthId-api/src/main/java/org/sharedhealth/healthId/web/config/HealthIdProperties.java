@@ -1,15 +1,21 @@
 package org.sharedhealth.healthId.web.config;
 
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.stereotype.Component;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 @Component
 public class HealthIdProperties {
 
     public static final String DIAGNOSTICS_HEALTH_SERVLET_PATH = "/diagnostics/health";
     public static final String REMAINING_HEALTH_ID_SERVLET_PATH = "/healthIds/checkRemaining";
+    public static final String HID_ALLOCATION_MODE_ROWS = "rows";
+    public static final String HID_ALLOCATION_MODE_RANGES = "ranges";
 
     @Bean
     public static PropertySourcesPlaceholderConfigurer propertyPlaceholderConfigurer() {
@@ -67,6 +73,38 @@ public class HealthIdProperties {
     @Value("${HEALTH_ID_BLOCK_SIZE}")
     private String healthIdBlockSize;
 
+    @Value("${HID_GENERATION_POOL_SIZE}")
+    private String hidGenerationPoolSize;
+    @Value("${HID_GENERATION_QUEUE_SIZE}")
+    private String hidGenerationQueueSize;
+    @Value("${HID_WRITE_CONCURRENCY}")
+    private String hidWriteConcurrency;
+    @Value("${HID_WRITE_RETRIES}")
+    private String hidWriteRetries;
+    @Value("${HID_SERIES_CLAIM_TTL}")
+    private String hidSeriesClaimTtl;
+    @Value("${HID_RESERVOIR_NODE_ID:}")
+    private String hidReservoirNodeId;
+    @Value("${HID_RESERVOIR_LOW_WATERMARK}")
+    private String hidReservoirLowWatermark;
+    @Value("${HID_RESERVOIR_HIGH_WATERMARK}")
+    private String hidReservoirHighWatermark;
+    @Value("${HID_CLAIM_TTL}")
+    private String hidClaimTtl;
+    @Value("${HID_POOL_MIGRATION_RATE}")
+    private String hidPoolMigrationRate;
+
+    @Value("${HID_ALLOCATION_MODE}")
+    private String hidAllocationMode;
+
+    @Value("${NEXT_BLOCK_REPLAY_TTL}")
+    private String nextBlockReplayTtl;
+
+    @Value("${HID_REPLENISHMENT_CHUNK_SIZE}")
+    private String hidReplenishmentChunkSize;
+    @Value("${HID_REPLENISHMENT_LEAD_TIME}")
+    private String hidReplenishmentLeadTime;
+
     public String getCassandraKeySpace() {
         return cassandraKeySpace;
     }
@@ -190,4 +228,127 @@ public class HealthIdProperties {
     public int getHealthIdWarningThreshold() {
         return Integer.parseInt((healthIdWarningThreshold));
     }
+
+    public void setHealthIdWarningThreshold(String healthIdWarningThreshold) {
+        this.healthIdWarningThreshold = healthIdWarningThreshold;
+    }
+
+    public int getHidGenerationPoolSize() {
+        return Integer.parseInt(hidGenerationPoolSize);
+    }
+
+    public int getHidGenerationQueueSize() {
+        return Integer.parseInt(hidGenerationQueueSize);
+    }
+
+    public int getHidWriteConcurrency() {
+        return Integer.parseInt(hidWriteConcurrency);
+    }
+
+    public void setHidWriteConcurrency(String hidWriteConcurrency) {
+        this.hidWriteConcurrency = hidWriteConcurrency;
+    }
+
+    public int getHidWriteRetries() {
+        return Integer.parseInt(hidWriteRetries);
+    }
+
+    public void setHidWriteRetries(String hidWriteRetries) {
+        this.hidWriteRetries = hidWriteRetries;
+    }
+
+    public int getHidSeriesClaimTtl() {
+        return Integer.parseInt(hidSeriesClaimTtl);
+    }
+
+    public void setHidSeriesClaimTtl(String hidSeriesClaimTtl) {
+        this.hidSeriesClaimTtl = hidSeriesClaimTtl;
+    }
+
+    public String getHidReservoirNodeId() {
+        if (StringUtils.isNotBlank(hidReservoirNodeId)) return hidReservoirNodeId;
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("HID_RESERVOIR_NODE_ID is not set and the host name is unknown", e);
+        }
+    }
+
+    public void setHidReservoirNodeId(String hidReservoirNodeId) {
+        this.hidReservoirNodeId = hidReservoirNodeId;
+    }
+
+    public int getHidReservoirLowWatermark() {
+        return Integer.parseInt(hidReservoirLowWatermark);
+    }
+
+    public void setHidReservoirLowWatermark(String hidReservoirLowWatermark) {
+        this.hidReservoirLowWatermark = hidReservoirLowWatermark;
+    }
+
+    public int getHidReservoirHighWatermark() {
+        return Integer.parseInt(hidReservoirHighWatermark);
+    }
+
+    public void setHidReservoirHighWatermark(String hidReservoirHighWatermark) {
+        this.hidReservoirHighWatermark = hidReservoirHighWatermark;
+    }
+
+    public int getHidClaimTtl() {
+        return Integer.parseInt(hidClaimTtl);
+    }
+
+    public void setHidClaimTtl(String hidClaimTtl) {
+        this.hidClaimTtl = hidClaimTtl;
+    }
+
+    public int getHidPoolMigrationRate() {
+        return Integer.parseInt(hidPoolMigrationRate);
+    }
+
+    public void setHidPoolMigrationRate(String hidPoolMigrationRate) {
+        this.hidPoolMigrationRate = hidPoolMigrationRate;
+    }
+
+    public String getHidAllocationMode() {
+        return hidAllocationMode.trim().toLowerCase();
+    }
+
+    public boolean isRangeAllocation() {
+        return HID_ALLOCATION_MODE_RANGES.equals(getHidAllocationMode());
+    }
+
+    public void setHidAllocationMode(String hidAllocationMode) {
+        this.hidAllocationMode = hidAllocationMode;
+    }
+
+    public int getNextBlockReplayTtl() {
+        return Integer.parseInt(nextBlockReplayTtl);
+    }
+
+    public void setNextBlockReplayTtl(String nextBlockReplayTtl) {
+        this.nextBlockReplayTtl = nextBlockReplayTtl;
+    }
+
+    /**
+     * The number of MCI HIDs generated per replenishment run. 0 turns replenishment off.
+     */
+    public long getHidReplenishmentChunkSize() {
+        return Long.parseLong(hidReplenishmentChunkSize);
+    }
+
+    public void setHidReplenishmentChunkSize(String hidReplenishmentChunkSize) {
+        this.hidReplenishmentChunkSize = hidReplenishmentChunkSize;
+    }
+
+    /**
+     * The pool is replenished once it is forecast to run out within this many hours.
+     */
+    public int getHidReplenishmentLeadTime() {
+        return Integer.parseInt(hidReplenishmentLeadTime);
+    }
+
+    public void setHidReplenishmentLeadTime(String hidReplenishmentLeadTime) {
+        this.hidReplenishmentLeadTime = hidReplenishmentLeadTime;
+    }
 }
@@ -1,5 +1,10 @@
 package org.sharedhealth.healthId.web.controller;
 
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Statistics;
+import org.sharedhealth.healthId.web.Model.HidPoolForecast;
+import org.sharedhealth.healthId.web.service.HidPoolReplenisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.endpoint.*;
 import org.springframework.boot.actuate.health.ApplicationHealthIndicator;
@@ -25,6 +30,10 @@ public class DiagnosticsController {
     private Environment environment;
     @Autowired
     private TraceRepository traceRepository;
+    @Autowired
+    private CacheManager ehCacheManager;
+    @Autowired
+    private HidPoolReplenisher hidPoolReplenisher;
 
     @RequestMapping(value = "/health", method = RequestMethod.GET)
     public Health health() {
@@ -36,9 +45,30 @@ public class DiagnosticsController {
         Collection<Metric<?>> metrics = new ArrayList<>();
         metrics.addAll(new TomcatPublicMetrics().metrics());
         metrics.addAll(new SystemPublicMetrics().metrics());
+        metrics.addAll(cacheMetrics());
+        return metrics;
+    }
+
+    private Collection<Metric<?>> cacheMetrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (String cacheName : ehCacheManager.getCacheNames()) {
+            Ehcache cache = ehCacheManager.getEhcache(cacheName);
+            if (!cache.isStatisticsEnabled()) continue;
+            Statistics statistics = cache.getStatistics();
+            String prefix = "cache." + cacheName + ".";
+            metrics.add(new Metric<>(prefix + "hits", statistics.getCacheHits()));
+            metrics.add(new Metric<>(prefix + "misses", statistics.getCacheMisses()));
+            metrics.add(new Metric<>(prefix + "evictions", statistics.getEvictionCount()));
+            metrics.add(new Metric<>(prefix + "size", statistics.getObjectCount()));
+        }
         return metrics;
     }
 
+    @RequestMapping(value = "/replenishment", method = RequestMethod.GET)
+    public HidPoolForecast replenishment() {
+        return hidPoolReplenisher.getForecast();
+    }
+
     @RequestMapping(value = "/env", method = RequestMethod.GET)
     public Map<String, Object> env() {
         EnvironmentEndpoint environmentEndpoint = new EnvironmentEndpoint();
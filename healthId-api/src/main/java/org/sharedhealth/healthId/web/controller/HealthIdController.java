@@ -1,10 +1,12 @@
 package org.sharedhealth.healthId.web.controller;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Transformer;
+import org.apache.commons.lang3.StringUtils;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HealthIdUsage;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.MciHidBlock;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
 import org.sharedhealth.healthId.web.exception.HidGenerationException;
@@ -12,6 +14,8 @@ import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.service.FacilityService;
 import org.sharedhealth.healthId.web.service.HealthIdService;
+import org.sharedhealth.healthId.web.service.HidGenerationJobService;
+import org.sharedhealth.healthId.web.service.NextBlockRequestService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,6 +30,7 @@ import rx.functions.Action1;
 
 import java.util.*;
 
+import static org.sharedhealth.healthId.web.utils.HttpUtil.IDEMPOTENCY_KEY;
 import static org.springframework.web.bind.annotation.RequestMethod.*;
 
 @RestController
@@ -36,17 +41,29 @@ public class HealthIdController extends BaseController {
     public static final String GENERATE_ALL_URI = "/generate";
     public static final String GENERATE_BLOCK_URI = "/generateBlock";
     public static final String GENERATE_BLOCK_FOR_ORG_URI = "/generateBlockForOrg";
+    public static final String JOBS_URI = "/jobs";
+    public static final String EXISTENCE_FILTERS_URI = "/existenceFilters";
+    public static final String CAPACITY_URI = "/capacity";
+    public static final String MARK_USED_URI = "/markUsed";
+    public static final String CHECK_AVAILABILITY_URI = "/checkAvailability";
     private static final long HID_GENERATION_LIMIT = 2000000;
+    private static final int MARK_USED_LIMIT = 10000;
+    private static final int AVAILABILITY_CHECK_LIMIT = 10000;
 
     private HealthIdService healthIdService;
     private FacilityService facilityService;
     private HealthIdProperties healthIdProperties;
+    private HidGenerationJobService hidGenerationJobService;
+    private NextBlockRequestService nextBlockRequestService;
 
     @Autowired
-    public HealthIdController(HealthIdService healthIdService, FacilityService facilityService, HealthIdProperties healthIdProperties) {
+    public HealthIdController(HealthIdService healthIdService, FacilityService facilityService, HealthIdProperties healthIdProperties,
+                              HidGenerationJobService hidGenerationJobService, NextBlockRequestService nextBlockRequestService) {
         this.healthIdService = healthIdService;
         this.facilityService = facilityService;
         this.healthIdProperties = healthIdProperties;
+        this.hidGenerationJobService = hidGenerationJobService;
+        this.nextBlockRequestService = nextBlockRequestService;
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
@@ -95,30 +112,109 @@ public class HealthIdController extends BaseController {
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
-    @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Map nextBlock(@PathVariable(value = "mciCode") String mciCode,
-                         @RequestParam(value = "blockSize", required = false) Integer blockSize) throws JsonProcessingException {
+    @RequestMapping(method = POST, value = JOBS_URI + GENERATE_ALL_URI)
+    public ResponseEntity<HidGenerationJob> submitGenerate() {
+        UserInfo userInfo = getUserInfo();
+        logAccessDetails(userInfo, "Submitting job to generate new hids");
+        return accepted(hidGenerationJobService.submitGenerateAll(userInfo));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = POST, value = JOBS_URI + GENERATE_BLOCK_URI)
+    public ResponseEntity<HidGenerationJob> submitGenerateBlock(@RequestParam(value = "start") long start,
+                                                                @RequestParam(value = "totalHIDs") long totalHIDs) {
+        if (isStartInvalidForMCI(start)) {
+            throw new InvalidRequestException(String.format("%s not for MCI", start));
+        }
+        UserInfo userInfo = getUserInfo();
+        logAccessDetails(userInfo, "Submitting job to generate new hids");
+        return accepted(hidGenerationJobService.submitGenerateBlock(start, totalHIDs, userInfo));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = POST, value = JOBS_URI + GENERATE_BLOCK_FOR_ORG_URI)
+    public ResponseEntity<HidGenerationJob> submitGenerateBlockForOrg(@RequestParam(value = "org") String orgCode,
+                                                                      @RequestParam(value = "start") long start,
+                                                                      @RequestParam(value = "totalHIDs") long totalHIDs) {
+        validateRequest(orgCode, start, totalHIDs);
+        UserInfo userInfo = getUserInfo();
+        logAccessDetails(userInfo, "Submitting job to generate new hids");
+        return accepted(hidGenerationJobService.submitGenerateBlockForOrg(start, totalHIDs, orgCode, userInfo));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = JOBS_URI, produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<HidGenerationJob> findJobs() {
+        return hidGenerationJobService.findAll();
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = JOBS_URI + "/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public HidGenerationJob findJob(@PathVariable(value = "jobId") String jobId) {
+        return hidGenerationJobService.find(toJobId(jobId));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = DELETE, value = JOBS_URI + "/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public HidGenerationJob cancelJob(@PathVariable(value = "jobId") String jobId) {
+        logAccessDetails(getUserInfo(), "Cancelling HID generation job");
+        return hidGenerationJobService.cancel(toJobId(jobId));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = POST, value = EXISTENCE_FILTERS_URI, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<Long, Long> rebuildExistenceFilters() {
+        logAccessDetails(getUserInfo(), "Rebuilding HID existence filters");
+        return healthIdService.rebuildExistenceFilters();
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = CAPACITY_URI, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> capacity(@RequestParam(value = "org", required = false) String orgCode,
+                                        @RequestParam(value = "from", required = false) Long from,
+                                        @RequestParam(value = "to", required = false) Long to) {
+        boolean forMci = orgCode == null || orgCode.equals(healthIdProperties.getMciOrgCode());
+        if (from == null) {
+            from = forMci ? healthIdProperties.getMciStartHid() : healthIdProperties.getOtherOrgStartHid();
+        }
+        if (to == null) {
+            to = forMci ? healthIdProperties.getMciEndHid() : healthIdProperties.getOtherOrgEndHid();
+        }
+        if (from > to) {
+            throw new InvalidRequestException(String.format("from %s is after to %s", from, to));
+        }
+        logAccessDetails(getUserInfo(), "Counting valid hids");
+        Map<String, Object> responseMap = new LinkedHashMap<>();
+        responseMap.put("from", from);
+        responseMap.put("to", to);
+        responseMap.put("valid", healthIdService.countValidHIDs(from, to, forMci));
+        return responseMap;
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.TEXT_PLAIN_VALUE})
+    public DeferredResult<MciHidBlock> nextBlock(@PathVariable(value = "mciCode") final String mciCode,
+                                                 @RequestParam(value = "blockSize", required = false) Integer blockSize,
+                                                 @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         int defaultBlockSize = healthIdProperties.getHealthIdBlockSize();
         if (blockSize == null || blockSize <= 0 || blockSize > defaultBlockSize)
             blockSize = defaultBlockSize;
         logAccessDetails(getUserInfo(), "Assigning next block to MCI");
-        List<MciHealthId> nextBlock = healthIdService.getNextBlock(mciCode, blockSize);
-        HashMap<String, Object> responseMap = new HashMap<>();
-        int totalHids = nextBlock.size();
-        responseMap.put("total", totalHids);
-        Collection hids = CollectionUtils.collect(nextBlock, new Transformer() {
+        final DeferredResult<MciHidBlock> deferredResult = new DeferredResult<>();
+        Observable<List<MciHealthId>> observable = nextBlockRequestService.getNextBlock(mciCode, idempotencyKey, blockSize);
+        observable.subscribe(new Action1<List<MciHealthId>>() {
             @Override
-            public String transform(Object input) {
-                return ((MciHealthId) input).getHid();
+            public void call(List<MciHealthId> nextBlock) {
+                logger.info("Assigned {} MCI healthIds for {}.", nextBlock.size(), mciCode);
+                deferredResult.setResult(new MciHidBlock(nextBlock));
             }
-        });
-        responseMap.put("hids", hids);
-        logger.info("Assigned {} MCI healthIds for {}.", totalHids, mciCode);
-        return responseMap;
+        }, errorCallback(deferredResult));
+        return deferredResult;
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
-    @RequestMapping(method = PUT, value = "/markUsed/{healthId}", consumes = {MediaType.APPLICATION_JSON_VALUE})
+    @RequestMapping(method = PUT, value = MARK_USED_URI + "/{healthId}", consumes = {MediaType.APPLICATION_JSON_VALUE})
     public DeferredResult<String> markUsed(@PathVariable(value = "healthId") String healthId,
                                            @RequestBody Map responseBody) throws JsonProcessingException {
         logger.debug("Marking {} as used.", healthId);
@@ -139,7 +235,25 @@ public class HealthIdController extends BaseController {
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
-    @RequestMapping(method = GET, value = "/checkAvailability/{healthId}")
+    @RequestMapping(method = POST, value = MARK_USED_URI, consumes = {MediaType.APPLICATION_JSON_VALUE},
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<Map<String, String>> markUsedInBulk(@RequestBody List<HealthIdUsage> usages) {
+        validateUsages(usages);
+        logger.debug("Marking {} health ids as used.", usages.size());
+        logAccessDetails(getUserInfo(), "Marking Health Ids as used");
+        final DeferredResult<Map<String, String>> deferredResult = new DeferredResult<>();
+        Observable<Map<String, String>> observable = healthIdService.markOrgHealthIdsUsed(usages);
+        observable.subscribe(new Action1<Map<String, String>>() {
+            @Override
+            public void call(Map<String, String> results) {
+                deferredResult.setResult(results);
+            }
+        }, errorCallback(deferredResult));
+        return deferredResult;
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = CHECK_AVAILABILITY_URI + "/{healthId}")
     public DeferredResult<Map> checkAvailability(@PathVariable(value = "healthId") String healthId,
                                                  @RequestParam(value = "orgCode", required = true) final String orgCode) {
         logger.debug("Checking availability of {} for org {}.", healthId, orgCode);
@@ -149,38 +263,67 @@ public class HealthIdController extends BaseController {
         observable.subscribe(new Action1<OrgHealthId>() {
             @Override
             public void call(OrgHealthId orgHealthId) {
-                Map<String, Object> map = new HashMap<>();
-                map.put("availability", false);
-                if (orgHealthId == null) {
-                    map.put("reason", "Health Id is not allocated to any organization.");
-                } else if (orgHealthId.isUsed()) {
-                    map.put("reason", "Health Id is already allocated to another patient.");
-                } else if (!orgCode.equals(orgHealthId.getAllocatedFor())) {
-                    map.put("reason", "Health Id is allocated to another organization.");
-                } else {
-                    map.put("availability", true);
+                deferredResult.setResult(availability(orgHealthId, orgCode));
+            }
+        }, errorCallback(deferredResult));
+        return deferredResult;
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = POST, value = CHECK_AVAILABILITY_URI, consumes = {MediaType.APPLICATION_JSON_VALUE},
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<Map<String, Map>> checkAvailabilityInBulk(@RequestBody final List<String> healthIds,
+                                                                    @RequestParam(value = "orgCode", required = true) final String orgCode) {
+        if (healthIds.size() > AVAILABILITY_CHECK_LIMIT) {
+            throw new InvalidRequestException(String.format("Should not check more than %s Health Ids at once", AVAILABILITY_CHECK_LIMIT));
+        }
+        logger.debug("Checking availability of {} health ids for org {}.", healthIds.size(), orgCode);
+        logAccessDetails(getUserInfo(), "Checking availability of Health Ids");
+        final DeferredResult<Map<String, Map>> deferredResult = new DeferredResult<>();
+        Observable<Map<String, OrgHealthId>> observable = healthIdService.findOrgHealthIds(healthIds);
+        observable.subscribe(new Action1<Map<String, OrgHealthId>>() {
+            @Override
+            public void call(Map<String, OrgHealthId> orgHealthIds) {
+                Map<String, Map> results = new LinkedHashMap<>();
+                for (String healthId : healthIds) {
+                    results.put(healthId, availability(orgHealthIds.get(healthId), orgCode));
                 }
-                deferredResult.setResult(map);
+                deferredResult.setResult(results);
             }
         }, errorCallback(deferredResult));
         return deferredResult;
     }
 
     @RequestMapping(method = GET, value = "/checkRemaining")
-    public DeferredResult<Integer> checkRemaining() {
+    public DeferredResult<Long> checkRemaining() {
         logger.debug("Checking remaining health ids for MCI.");
-        final DeferredResult<Integer> deferredResult = new DeferredResult<>();
-        Observable<Integer> observable = healthIdService.findRemainingHIDs();
-        observable.subscribe(new Action1<Integer>() {
+        final DeferredResult<Long> deferredResult = new DeferredResult<>();
+        Observable<Long> observable = healthIdService.findRemainingHIDs();
+        observable.subscribe(new Action1<Long>() {
             @Override
-            public void call(Integer integer) {
-                deferredResult.setResult(integer);
+            public void call(Long remaining) {
+                deferredResult.setResult(remaining);
             }
         }, errorCallback(deferredResult));
         return deferredResult;
     }
 
 
+    private Map<String, Object> availability(OrgHealthId orgHealthId, String orgCode) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("availability", false);
+        if (orgHealthId == null) {
+            map.put("reason", "Health Id is not allocated to any organization.");
+        } else if (orgHealthId.isUsed()) {
+            map.put("reason", "Health Id is already allocated to another patient.");
+        } else if (!orgCode.equals(orgHealthId.getAllocatedFor())) {
+            map.put("reason", "Health Id is allocated to another organization.");
+        } else {
+            map.put("availability", true);
+        }
+        return map;
+    }
+
     private <T> Action1<Throwable> errorCallback(final DeferredResult<T> deferredResult) {
         return new Action1<Throwable>() {
             @Override
@@ -193,18 +336,24 @@ public class HealthIdController extends BaseController {
 
     private DeferredResult<ResponseEntity> getResult(GeneratedHIDBlock generatedHIDBlock, long totalHIDs) {
         final DeferredResult<ResponseEntity> deferredResult = new DeferredResult<>();
-        String message;
-        if (generatedHIDBlock.getTotalHIDs() < totalHIDs) {
-            message = String.format("Can generate only %s HIDs, because series exhausted. Use another series.", generatedHIDBlock.getTotalHIDs());
-
-        } else {
-            message = String.format("Generated %s HIDs.", generatedHIDBlock.getTotalHIDs());
-        }
+        String message = HidGenerationJob.resultMessage(generatedHIDBlock, totalHIDs);
         deferredResult.setResult(new ResponseEntity<>(message, HttpStatus.OK));
         logger.info(message);
         return deferredResult;
     }
 
+    private ResponseEntity<HidGenerationJob> accepted(HidGenerationJob job) {
+        return new ResponseEntity<>(job, HttpStatus.ACCEPTED);
+    }
+
+    private UUID toJobId(String jobId) {
+        try {
+            return UUID.fromString(jobId);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(String.format("Invalid job id:- %s", jobId));
+        }
+    }
+
     private boolean isStartInvalidForMCI(long start) {
         return healthIdProperties.getMciStartHid() > start || healthIdProperties.getMciEndHid() < start;
     }
@@ -224,6 +373,21 @@ public class HealthIdController extends BaseController {
         }
     }
 
+    private void validateUsages(List<HealthIdUsage> usages) {
+        if (usages.size() > MARK_USED_LIMIT) {
+            throw new InvalidRequestException(String.format("Should not mark more than %s Health Ids at once", MARK_USED_LIMIT));
+        }
+        Set<String> healthIds = new HashSet<>();
+        for (HealthIdUsage usage : usages) {
+            if (StringUtils.isBlank(usage.getHealthId()) || StringUtils.isBlank(usage.getUsedAt())) {
+                throw new InvalidRequestException("Every Health Id should have healthId and used_at");
+            }
+            if (!healthIds.add(usage.getHealthId())) {
+                throw new InvalidRequestException(String.format("Health Id %s is marked used more than once", usage.getHealthId()));
+            }
+        }
+    }
+
     private boolean isInvalidOrg(String orgCode) {
         return facilityService.find(orgCode) == null;
     }
@@ -0,0 +1,22 @@
+package org.sharedhealth.healthId.web.exception;
+
+/**
+ * Raised when an allocation could not be journaled. Unless the journal write was rejected
+ * outright, it may still have been applied, in which case the allocation is completed by the
+ * journal replay and its HIDs must not be handed out again.
+ */
+public class HidAllocationException extends RuntimeException {
+    private final boolean journaled;
+
+    public HidAllocationException(String message, Throwable cause, boolean journaled) {
+        super(message, cause);
+        this.journaled = journaled;
+    }
+
+    /**
+     * Whether the journal entry may have been written despite the error.
+     */
+    public boolean mayHaveBeenJournaled() {
+        return journaled;
+    }
+}
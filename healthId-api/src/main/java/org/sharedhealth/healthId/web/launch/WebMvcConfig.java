@@ -3,6 +3,7 @@ package org.sharedhealth.healthId.web.launch;
 import org.sharedhealth.healthId.web.config.ActuatorConfig;
 import org.sharedhealth.healthId.web.config.HealthIdConfig;
 import org.sharedhealth.healthId.web.config.HealthIdSecurityConfig;
+import org.sharedhealth.healthId.web.utils.MciHidBlockMessageConverter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -42,6 +43,7 @@ public class WebMvcConfig extends WebMvcConfigurerAdapter implements SchedulingC
 
     @Override
     public void configureMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new MciHidBlockMessageConverter());
         converters.add(new MappingJackson2HttpMessageConverter());
         converters.add(new Jaxb2RootElementHttpMessageConverter());
     }
@@ -1,7 +1,13 @@
 package org.sharedhealth.healthId.web.repository;
 
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.cassandra.core.CassandraOperations;
+import rx.Observable;
+import rx.Subscriber;
 
 import static java.lang.System.currentTimeMillis;
 
@@ -23,4 +29,35 @@ public class BaseRepository {
     public long getCurrentTimeInMicros() {
         return currentTimeMillis() * 1000;
     }
+
+    /**
+     * Runs a lightweight transaction and returns whether it was applied.
+     */
+    protected boolean applyConditionally(Statement statement) {
+        return cassandraOps.executeAsynchronously(statement).getUninterruptibly().wasApplied();
+    }
+
+    /**
+     * Executes the statement on every subscription and emits its result from the driver's
+     * callback, so that subscribing neither blocks nor holds a thread while the query runs.
+     */
+    protected Observable<ResultSet> executeOnSubscribe(final Statement statement) {
+        return Observable.create(new Observable.OnSubscribe<ResultSet>() {
+            @Override
+            public void call(final Subscriber<? super ResultSet> subscriber) {
+                Futures.addCallback(cassandraOps.executeAsynchronously(statement), new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet resultSet) {
+                        subscriber.onNext(resultSet);
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        subscriber.onError(t);
+                    }
+                });
+            }
+        });
+    }
 }
@@ -1,35 +1,156 @@
 package org.sharedhealth.healthId.web.repository;
 
 
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select;
+import com.datastax.driver.core.querybuilder.Update;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.SeriesWatermark;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.cassandra.core.CassandraOperations;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
-import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_GENERATED_HID_BLOCKS;
-import static org.sharedhealth.healthId.web.repository.RepositoryConstants.SERIES_NO;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.ttl;
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
 
 @Component
 public class GeneratedHidBlockRepository extends BaseRepository {
+    private static final RegularStatement SELECT_GENERATED_BLOCKS = QueryBuilder.select().from(CF_GENERATED_HID_BLOCKS)
+            .where(eq(SERIES_NO, bindMarker()));
+    private static final RegularStatement SELECT_EXISTENCE_FILTER = QueryBuilder.select(BITS, HASH_FUNCTIONS, ENTRIES)
+            .from(CF_HID_EXISTENCE_FILTERS).where(eq(SERIES_NO, bindMarker()));
+    private static final RegularStatement INSERT_EXISTENCE_FILTER = QueryBuilder.insertInto(CF_HID_EXISTENCE_FILTERS)
+            .value(SERIES_NO, bindMarker()).value(BITS, bindMarker()).value(HASH_FUNCTIONS, bindMarker())
+            .value(ENTRIES, bindMarker()).value(BUILT_AT, bindMarker());
+    private static final RegularStatement SELECT_WATERMARK = selectWatermark();
+    private static final RegularStatement INSERT_WATERMARK = QueryBuilder.insertInto(CF_SERIES_WATERMARK)
+            .value(SERIES_NO, bindMarker()).value(ENDS_AT, bindMarker()).ifNotExists();
+    private static final RegularStatement CLAIM_WATERMARK = claimWatermark();
+    private static final RegularStatement RENEW_WATERMARK = renewWatermark();
+    private static final RegularStatement RELEASE_WATERMARK = QueryBuilder.update(CF_SERIES_WATERMARK)
+            .with(set(ENDS_AT, bindMarker())).and(set(CLAIMED_BY, null))
+            .where(eq(SERIES_NO, bindMarker()))
+            .onlyIf(eq(CLAIMED_BY, bindMarker()));
+    private static final RegularStatement RAISE_WATERMARK = QueryBuilder.update(CF_SERIES_WATERMARK)
+            .with(set(ENDS_AT, bindMarker()))
+            .where(eq(SERIES_NO, bindMarker()))
+            .onlyIf(eq(ENDS_AT, bindMarker()));
+
+    private final PreparedStatementRegistry preparedStatements;
 
     @Autowired
-    public GeneratedHidBlockRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps) {
+    public GeneratedHidBlockRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps,
+                                       PreparedStatementRegistry preparedStatements) {
         super(cassandraOps);
+        this.preparedStatements = preparedStatements;
+    }
+
+    @PostConstruct
+    public void prepareStatements() {
+        for (RegularStatement statement : asList(SELECT_GENERATED_BLOCKS, SELECT_EXISTENCE_FILTER, INSERT_EXISTENCE_FILTER,
+                SELECT_WATERMARK, INSERT_WATERMARK, CLAIM_WATERMARK, RENEW_WATERMARK, RELEASE_WATERMARK, RAISE_WATERMARK)) {
+            preparedStatements.prepare(statement);
+        }
     }
 
     public List<GeneratedHIDBlock> getPreGeneratedHidBlocks(long seriesNo) {
-        Select selectHIDBlocks = QueryBuilder.select().from(CF_GENERATED_HID_BLOCKS);
-        selectHIDBlocks.where(eq(SERIES_NO, seriesNo));
-        return cassandraOps.select(selectHIDBlocks, GeneratedHIDBlock.class);
+        List<GeneratedHIDBlock> blocks = new ArrayList<>();
+        for (Row row : cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_GENERATED_BLOCKS, seriesNo)).getUninterruptibly()) {
+            blocks.add(cassandraOps.getConverter().read(GeneratedHIDBlock.class, row));
+        }
+        return blocks;
     }
 
     public GeneratedHIDBlock saveGeneratedHidBlock(GeneratedHIDBlock generatedHIDBlock) {
         return cassandraOps.insert(generatedHIDBlock);
     }
+
+    public HidBloomFilter findExistenceFilter(long seriesNo) {
+        Row row = cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_EXISTENCE_FILTER, seriesNo)).getUninterruptibly().one();
+        if (row == null) return null;
+        return HidBloomFilter.fromBytes(row.getBytes(BITS), row.getInt(HASH_FUNCTIONS), row.getLong(ENTRIES));
+    }
+
+    public void saveExistenceFilter(long seriesNo, HidBloomFilter filter) {
+        cassandraOps.execute(preparedStatements.bind(INSERT_EXISTENCE_FILTER, seriesNo, filter.toBytes(),
+                filter.getHashFunctions(), filter.getEntries(), timeBased()));
+    }
+
+    /**
+     * Read with serial consistency, so that the result reflects every committed claim.
+     */
+    public SeriesWatermark findSeriesWatermark(long seriesNo) {
+        Row row = cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_WATERMARK, seriesNo)).getUninterruptibly().one();
+        if (row == null) return null;
+        return new SeriesWatermark(seriesNo, row.getLong(ENDS_AT), row.getUUID(CLAIMED_BY));
+    }
+
+    private static RegularStatement selectWatermark() {
+        Select select = QueryBuilder.select(ENDS_AT, CLAIMED_BY).from(CF_SERIES_WATERMARK);
+        select.where(eq(SERIES_NO, bindMarker()));
+        select.setConsistencyLevel(ConsistencyLevel.SERIAL);
+        return select;
+    }
+
+    public boolean createSeriesWatermark(long seriesNo, long endsAt) {
+        return applyConditionally(preparedStatements.bind(INSERT_WATERMARK, seriesNo, endsAt));
+    }
+
+    /**
+     * Claims the series for {@code claimedBy} if it is free and its watermark still is
+     * {@code endsAt}. The claim expires after {@code ttlInSeconds}, so that a run which died
+     * does not hold the series forever.
+     */
+    public boolean claimSeriesWatermark(long seriesNo, long endsAt, UUID claimedBy, int ttlInSeconds) {
+        return applyConditionally(preparedStatements.bind(CLAIM_WATERMARK, ttlInSeconds, claimedBy, seriesNo, endsAt));
+    }
+
+    private static RegularStatement claimWatermark() {
+        Update update = QueryBuilder.update(CF_SERIES_WATERMARK);
+        update.using(ttl(bindMarker()));
+        update.with(set(CLAIMED_BY, bindMarker()));
+        update.where(eq(SERIES_NO, bindMarker()));
+        update.onlyIf(eq(CLAIMED_BY, null)).and(eq(ENDS_AT, bindMarker()));
+        return update;
+    }
+
+    /**
+     * Extends the claim of {@code claimedBy} by another {@code ttlInSeconds}. Fails once the
+     * claim has expired, whether or not another run claimed the series since.
+     */
+    public boolean renewSeriesWatermark(long seriesNo, UUID claimedBy, int ttlInSeconds) {
+        return applyConditionally(preparedStatements.bind(RENEW_WATERMARK, ttlInSeconds, claimedBy, seriesNo, claimedBy));
+    }
+
+    private static RegularStatement renewWatermark() {
+        Update update = QueryBuilder.update(CF_SERIES_WATERMARK);
+        update.using(ttl(bindMarker()));
+        update.with(set(CLAIMED_BY, bindMarker()));
+        update.where(eq(SERIES_NO, bindMarker()));
+        update.onlyIf(eq(CLAIMED_BY, bindMarker()));
+        return update;
+    }
+
+    public boolean releaseSeriesWatermark(long seriesNo, UUID claimedBy, long endsAt) {
+        return applyConditionally(preparedStatements.bind(RELEASE_WATERMARK, endsAt, seriesNo, claimedBy));
+    }
+
+    public boolean raiseSeriesWatermark(long seriesNo, long expectedEndsAt, long endsAt) {
+        return applyConditionally(preparedStatements.bind(RAISE_WATERMARK, endsAt, seriesNo, expectedEndsAt));
+    }
 }
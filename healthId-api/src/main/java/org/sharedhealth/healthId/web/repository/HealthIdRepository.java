@@ -1,108 +1,919 @@
 package org.sharedhealth.healthId.web.repository;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.RegularStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.driver.core.exceptions.UnavailableException;
 import com.datastax.driver.core.querybuilder.*;
+import com.datastax.driver.core.utils.UUIDs;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.exception.HidAllocationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cassandra.core.RowCallbackHandler;
 import org.springframework.data.cassandra.core.CassandraOperations;
 import org.springframework.stereotype.Component;
 import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.functions.Func2;
 
-import java.util.List;
-import java.util.UUID;
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static java.util.Arrays.asList;
+import static org.sharedhealth.healthId.web.config.HealthIdCacheConfiguration.ORG_HEALTH_ID_CACHE;
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
-import static org.springframework.data.cassandra.core.CassandraTemplate.createDeleteQuery;
-import static org.springframework.data.cassandra.core.CassandraTemplate.createInsertQuery;
 
 @Component
 public class HealthIdRepository extends BaseRepository {
     private static final Logger logger = LoggerFactory.getLogger(HealthIdRepository.class);
+    private static final int CONCURRENT_READS = 32;
+    private static final int MAX_CLAIM_ROUNDS = 3;
+    private static final int CONCURRENT_CLAIMS = 256;
+    private static final int BUCKETS_PER_DRAW = 8;
+    private static final int CONCURRENT_WRITES = 128;
+    private static final int MAX_STATEMENTS_PER_BATCH = 100;
+    private static final long ROWS_PER_HEARTBEAT = 100000;
+    private static final int ORG_HEALTH_ID_VERSION_STRIPES = 1024;
+
+    private static final RegularStatement INSERT_INTO_POOL = QueryBuilder.insertInto(CF_MCI_HID_POOL)
+            .value(BUCKET, bindMarker()).value(HID, bindMarker());
+    private static final RegularStatement INSERT_INTO_POOL_IF_ABSENT = QueryBuilder.insertInto(CF_MCI_HID_POOL)
+            .value(BUCKET, bindMarker()).value(HID, bindMarker()).ifNotExists();
+    private static final RegularStatement DELETE_FROM_POOL = QueryBuilder.delete().from(CF_MCI_HID_POOL)
+            .where(QueryBuilder.eq(BUCKET, bindMarker())).and(QueryBuilder.eq(HID, bindMarker()));
+    private static final RegularStatement DELETE_MCI_HEALTH_ID = QueryBuilder.delete().from(CF_MCI_HEALTH_ID)
+            .where(QueryBuilder.eq(HID, bindMarker()));
+    private static final RegularStatement INSERT_CLAIM = QueryBuilder.insertInto(CF_HID_CLAIMS)
+            .value(HEALTH_ID, bindMarker()).value(CLAIMED_BY, bindMarker()).ifNotExists()
+            .using(QueryBuilder.ttl(bindMarker()));
+    private static final RegularStatement INSERT_RESERVATION = QueryBuilder.insertInto(CF_HID_RESERVATIONS)
+            .value(NODE_ID, bindMarker()).value(HEALTH_ID, bindMarker()).value(RESERVED_AT, bindMarker());
+    private static final RegularStatement DELETE_RESERVATION = QueryBuilder.delete().from(CF_HID_RESERVATIONS)
+            .where(QueryBuilder.eq(NODE_ID, bindMarker())).and(QueryBuilder.eq(HEALTH_ID, bindMarker()));
+    private static final RegularStatement SELECT_ORG_HEALTH_ID = QueryBuilder.select().from(CF_ORG_HEALTH_ID)
+            .where(QueryBuilder.eq(HEALTH_ID, bindMarker())).limit(1);
+    private static final RegularStatement SELECT_ORG_HEALTH_ID_KEY = QueryBuilder.select(HEALTH_ID).from(CF_ORG_HEALTH_ID)
+            .where(QueryBuilder.eq(HEALTH_ID, bindMarker()));
+    private static final RegularStatement INSERT_ORG_HEALTH_ID = QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+            .value(HEALTH_ID, bindMarker()).value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker())
+            .value(IS_USED, bindMarker());
+    private static final RegularStatement INSERT_ORG_HEALTH_ID_IF_ABSENT = QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+            .value(HEALTH_ID, bindMarker()).value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker())
+            .value(IS_USED, bindMarker()).ifNotExists();
+    private static final RegularStatement INSERT_USED_ORG_HEALTH_ID = QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+            .value(HEALTH_ID, bindMarker()).value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker())
+            .value(IS_USED, bindMarker()).value(USED_AT, bindMarker());
+    private static final RegularStatement INSERT_USED_ORG_HEALTH_ID_IF_ABSENT = QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+            .value(HEALTH_ID, bindMarker()).value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker())
+            .value(IS_USED, bindMarker()).value(USED_AT, bindMarker()).ifNotExists();
+    private static final RegularStatement INSERT_ALLOCATED_ORG_HEALTH_ID = QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+            .value(HEALTH_ID, bindMarker()).value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker());
+    private static final RegularStatement MARK_UNUSED_ORG_HEALTH_ID_USED = markUsedStatement(false);
+    private static final RegularStatement MARK_NEW_ORG_HEALTH_ID_USED = markUsedStatement(null);
+    private static final RegularStatement COUNT_HIDS = QueryBuilder.update(CF_MCI_HID_COUNTS)
+            .with(QueryBuilder.incr(HID_COUNT, bindMarker())).where(QueryBuilder.eq(NAME, bindMarker()));
+    private static final RegularStatement SELECT_HID_COUNT = QueryBuilder.select(HID_COUNT).from(CF_MCI_HID_COUNTS)
+            .where(QueryBuilder.eq(NAME, bindMarker()));
+    private static final RegularStatement SELECT_FROM_BUCKET = QueryBuilder.select(HID).from(CF_MCI_HID_POOL)
+            .where(QueryBuilder.eq(BUCKET, bindMarker())).limit(bindMarker());
+    private static final RegularStatement SELECT_FROM_BUCKET_AFTER = QueryBuilder.select(HID).from(CF_MCI_HID_POOL)
+            .where(QueryBuilder.eq(BUCKET, bindMarker())).and(QueryBuilder.gt(HID, bindMarker())).limit(bindMarker());
+    private static final RegularStatement DELETE_CLAIM = QueryBuilder.delete().from(CF_HID_CLAIMS)
+            .where(QueryBuilder.eq(HEALTH_ID, bindMarker()));
+    private static final RegularStatement INSERT_JOURNAL_ENTRY = QueryBuilder.insertInto(CF_HID_ALLOCATION_JOURNAL)
+            .value(NODE_ID, bindMarker()).value(ENTRY_ID, bindMarker()).value(HEALTH_IDS, bindMarker())
+            .value(ALLOCATED_FOR, bindMarker()).value(GENERATED_AT, bindMarker()).value(RESERVED, bindMarker());
+    private static final RegularStatement DELETE_JOURNAL_ENTRY = QueryBuilder.delete().from(CF_HID_ALLOCATION_JOURNAL)
+            .where(QueryBuilder.eq(NODE_ID, bindMarker())).and(QueryBuilder.eq(ENTRY_ID, bindMarker()));
+    private static final RegularStatement SELECT_COUNT_SEED = QueryBuilder.select(SEEDED_AT).from(CF_MCI_HID_COUNT_SEEDS)
+            .where(QueryBuilder.eq(NAME, bindMarker()));
+    private static final RegularStatement CLAIM_COUNT_SEED = QueryBuilder.insertInto(CF_MCI_HID_COUNT_SEEDS)
+            .value(NAME, bindMarker()).value(SEEDED_BY, bindMarker()).ifNotExists()
+            .using(QueryBuilder.ttl(bindMarker()));
+    private static final RegularStatement RENEW_COUNT_SEED = renewCountSeedStatement();
+    private static final RegularStatement MARK_COUNT_SEEDED = QueryBuilder.update(CF_MCI_HID_COUNT_SEEDS)
+            .with(QueryBuilder.set(SEEDED_AT, bindMarker())).and(QueryBuilder.set(SEEDED_BY, bindMarker()))
+            .where(QueryBuilder.eq(NAME, bindMarker()))
+            .onlyIf(QueryBuilder.eq(SEEDED_BY, bindMarker()));
+
+    private final Random random = new Random();
+    private final AtomicReferenceArray<String> bucketCursors = new AtomicReferenceArray<>(MCI_HID_POOL_BUCKETS);
+    private volatile boolean legacyTableDrained;
+    private final Cache orgHealthIdCache;
+    private final AtomicLongArray orgHealthIdVersions = new AtomicLongArray(ORG_HEALTH_ID_VERSION_STRIPES);
+    private final PreparedStatementRegistry preparedStatements;
 
     @Autowired
-    public HealthIdRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps) {
+    public HealthIdRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps, CacheManager cacheManager,
+                              PreparedStatementRegistry preparedStatements) {
         super(cassandraOps);
+        this.orgHealthIdCache = cacheManager.getCache(ORG_HEALTH_ID_CACHE);
+        this.preparedStatements = preparedStatements;
+    }
+
+    /**
+     * Prepares the statements used for every HID up front, so that the first requests do not
+     * wait for them to be prepared.
+     */
+    @PostConstruct
+    public void prepareStatements() {
+        for (RegularStatement statement : asList(INSERT_INTO_POOL, INSERT_INTO_POOL_IF_ABSENT, DELETE_FROM_POOL,
+                DELETE_MCI_HEALTH_ID, INSERT_CLAIM, INSERT_RESERVATION, DELETE_RESERVATION, SELECT_ORG_HEALTH_ID, SELECT_ORG_HEALTH_ID_KEY,
+                INSERT_ORG_HEALTH_ID, INSERT_ORG_HEALTH_ID_IF_ABSENT, INSERT_USED_ORG_HEALTH_ID, INSERT_USED_ORG_HEALTH_ID_IF_ABSENT,
+                INSERT_ALLOCATED_ORG_HEALTH_ID, MARK_UNUSED_ORG_HEALTH_ID_USED, MARK_NEW_ORG_HEALTH_ID_USED,
+                COUNT_HIDS, SELECT_HID_COUNT, SELECT_FROM_BUCKET, SELECT_FROM_BUCKET_AFTER, DELETE_CLAIM,
+                INSERT_JOURNAL_ENTRY, DELETE_JOURNAL_ENTRY)) {
+            preparedStatements.prepare(statement);
+        }
     }
 
-    public Observable<ResultSet> saveMciHealthId(MciHealthId mciHealthId) {
+    /**
+     * Inserts the HID into the pool once subscribed to and counts it as free. Emits whether the
+     * row was inserted, false when it already existed.
+     */
+    public Observable<Boolean> saveMciHealthId(MciHealthId mciHealthId) {
         logger.debug(String.format("Inserting new hid for MCI :%s", mciHealthId.getHid()));
-        Insert insertQuery = getInsertQuery(mciHealthId);
-        return Observable.from(cassandraOps.executeAsynchronously(insertQuery.ifNotExists()));
+        Statement insertQuery = preparedStatements.bind(INSERT_INTO_POOL_IF_ABSENT, bucketOf(mciHealthId.getHid()), mciHealthId.getHid());
+        return executeOnSubscribe(insertQuery).concatMap(new Func1<ResultSet, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(ResultSet resultSet) {
+                if (!resultSet.wasApplied()) return Observable.just(false);
+                return countHIDs(FREE_MCI_HIDS, 1).map(new Func1<Long, Boolean>() {
+                    @Override
+                    public Boolean call(Long counted) {
+                        return true;
+                    }
+                });
+            }
+        });
     }
 
     public Observable<Boolean> saveOrUpdateOrgHealthId(OrgHealthId orgHealthId) {
-        Insert insertQuery = getInsertQuery(orgHealthId);
-        return Observable.from(cassandraOps.executeAsynchronously(insertQuery)).flatMap(
+        Statement insertQuery = getInsertQuery(orgHealthId);
+        Observable<Boolean> saved = Observable.from(cassandraOps.executeAsynchronously(insertQuery)).flatMap(
                 RxMaps.respondOnNext(true),
                 RxMaps.<Boolean>forwardError(), RxMaps.<Boolean>completeResponds());
+        return evictingOrgHealthIds(saved, Collections.singleton(orgHealthId.getHealthId()));
+    }
+
+    /**
+     * Inserts the org HID in a lightweight transaction unless a row exists for it, so that a
+     * HID written by another run, including one that died before recording its block, is
+     * never handed to a second organisation. Emits whether it was inserted.
+     */
+    public Observable<Boolean> saveOrgHealthIdIfAbsent(OrgHealthId orgHealthId) {
+        Observable<Boolean> saved = executeOnSubscribe(preparedStatements.bind(INSERT_ORG_HEALTH_ID_IF_ABSENT,
+                orgHealthId.getHealthId(), orgHealthId.getAllocatedFor(), orgHealthId.getGeneratedAt(), orgHealthId.isUsed())).map(new Func1<ResultSet, Boolean>() {
+            @Override
+            public Boolean call(ResultSet resultSet) {
+                return resultSet.one().getBool(APPLIED);
+            }
+        });
+        return evictingOrgHealthIds(saved, Collections.singleton(orgHealthId.getHealthId()));
+    }
+
+    /**
+     * Marks the org HID used in a lightweight transaction, unless it is used already. Emits
+     * true when it was marked, false when it was used already and null when there is no such
+     * org HID.
+     * <p>
+     * Org HIDs allocated through the journal have no {@code is_used} value until they are
+     * used, so those take a second conditional update.
+     */
+    public Observable<Boolean> markOrgHealthIdUsed(final String healthId, final UUID usedAt) {
+        Observable<Boolean> marked = executeOnSubscribe(preparedStatements.bind(MARK_UNUSED_ORG_HEALTH_ID_USED, usedAt, healthId)).concatMap(new Func1<ResultSet, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(ResultSet resultSet) {
+                Row row = resultSet.one();
+                if (row.getBool(APPLIED)) return Observable.just(true);
+                if (!row.getColumnDefinitions().contains(IS_USED)) return Observable.just(null);
+                if (!row.isNull(IS_USED)) return Observable.just(false);
+                return executeOnSubscribe(preparedStatements.bind(MARK_NEW_ORG_HEALTH_ID_USED, usedAt, healthId)).map(new Func1<ResultSet, Boolean>() {
+                    @Override
+                    public Boolean call(ResultSet resultSet) {
+                        return resultSet.one().getBool(APPLIED);
+                    }
+                });
+            }
+        });
+        return evictingOrgHealthIds(marked, Collections.singleton(healthId));
+    }
+
+    private static RegularStatement renewCountSeedStatement() {
+        Update update = QueryBuilder.update(CF_MCI_HID_COUNT_SEEDS);
+        update.using(QueryBuilder.ttl(bindMarker()));
+        update.with(QueryBuilder.set(SEEDED_BY, bindMarker())).where(QueryBuilder.eq(NAME, bindMarker()));
+        update.onlyIf(QueryBuilder.eq(SEEDED_BY, bindMarker()));
+        return update;
+    }
+
+    private static RegularStatement markUsedStatement(Boolean expectedIsUsed) {
+        Update update = QueryBuilder.update(CF_ORG_HEALTH_ID);
+        update.with(QueryBuilder.set(IS_USED, true)).and(QueryBuilder.set(USED_AT, bindMarker()));
+        update.where(QueryBuilder.eq(HEALTH_ID, bindMarker()));
+        update.onlyIf(QueryBuilder.eq(IS_USED, expectedIsUsed));
+        return update;
+    }
+
+    /**
+     * Inserts the org HID, which should be marked used, unless a row exists for it. Emits
+     * whether it was inserted.
+     */
+    public Observable<Boolean> saveUsedOrgHealthIdIfAbsent(OrgHealthId orgHealthId) {
+        Observable<Boolean> saved = executeOnSubscribe(preparedStatements.bind(INSERT_USED_ORG_HEALTH_ID_IF_ABSENT,
+                orgHealthId.getHealthId(), orgHealthId.getAllocatedFor(), orgHealthId.getGeneratedAt(), true, orgHealthId.getUsedAt())).map(new Func1<ResultSet, Boolean>() {
+            @Override
+            public Boolean call(ResultSet resultSet) {
+                return resultSet.one().getBool(APPLIED);
+            }
+        });
+        return evictingOrgHealthIds(saved, Collections.singleton(orgHealthId.getHealthId()));
     }
 
+    /**
+     * Drops the cached lookups of the HIDs once the write is done, whether it succeeded or
+     * not, so that the next lookup reads what was written. Their versions are moved on first,
+     * so that a lookup which read them before the write does not cache what it read.
+     */
+    private <T> Observable<T> evictingOrgHealthIds(Observable<T> write, final Collection<String> healthIds) {
+        return write.doOnTerminate(new Action0() {
+            @Override
+            public void call() {
+                for (String healthId : healthIds) {
+                    orgHealthIdVersions.incrementAndGet(versionStripeOf(healthId));
+                    orgHealthIdCache.evict(healthId);
+                }
+            }
+        });
+    }
+
+    private static int versionStripeOf(String healthId) {
+        return (healthId.hashCode() & Integer.MAX_VALUE) % ORG_HEALTH_ID_VERSION_STRIPES;
+    }
+
+    private long orgHealthIdVersion(String healthId) {
+        return orgHealthIdVersions.get(versionStripeOf(healthId));
+    }
+
+    /**
+     * Caches a lookup unless a write to the HID finished since {@code version} was taken
+     * before the read. The version is checked again once cached, as a write may finish and
+     * evict the HID in between.
+     */
+    private void cacheOrgHealthId(String healthId, OrgHealthId orgHealthId, long version) {
+        if (orgHealthIdVersion(healthId) != version) return;
+        orgHealthIdCache.putIfAbsent(healthId, orgHealthId);
+        if (orgHealthIdVersion(healthId) != version) {
+            orgHealthIdCache.evict(healthId);
+        }
+    }
+
+    /**
+     * Reads up to {@code blockSize} free HIDs. They are drawn from the pool first, falling back
+     * to the legacy table for HIDs which have not been migrated yet.
+     */
     public List<MciHealthId> getNextBlock(int blockSize) {
         logger.debug(String.format("Getting next block of size : %d", blockSize));
-        Select.Where from = QueryBuilder.select().from(CF_MCI_HEALTH_ID).where();
-        Select nextBlockQuery = from.limit(blockSize);
+        List<MciHealthId> free = drawFromPool(blockSize);
+        if (free.size() < blockSize && !legacyTableDrained) {
+            List<MciHealthId> legacy = findLegacyFreeHealthIds(blockSize - free.size());
+            legacyTableDrained = legacy.isEmpty();
+            free.addAll(legacy);
+        }
+        return free;
+    }
+
+    /**
+     * Queries several buckets at once, starting from a random bucket, and reads each bucket
+     * past the last HID this node drew from it, so that the rows it deleted before are not
+     * read again. A bucket that runs short is read from its start the next time.
+     */
+    private List<MciHealthId> drawFromPool(int limit) {
+        List<MciHealthId> drawn = new ArrayList<>();
+        int firstBucket = random.nextInt(MCI_HID_POOL_BUCKETS);
+        for (int offset = 0; offset < MCI_HID_POOL_BUCKETS && drawn.size() < limit; offset += BUCKETS_PER_DRAW) {
+            int buckets = Math.min(BUCKETS_PER_DRAW, MCI_HID_POOL_BUCKETS - offset);
+            int perBucket = (limit - drawn.size() + buckets - 1) / buckets;
+            int[] bucketNos = new int[buckets];
+            List<ResultSetFuture> futures = new ArrayList<>();
+            for (int i = 0; i < buckets; i++) {
+                bucketNos[i] = (firstBucket + offset + i) % MCI_HID_POOL_BUCKETS;
+                futures.add(cassandraOps.executeAsynchronously(selectFromBucket(bucketNos[i], perBucket)));
+            }
+            for (int i = 0; i < buckets; i++) {
+                List<Row> rows = futures.get(i).getUninterruptibly().all();
+                String last = null;
+                for (Row row : rows) {
+                    if (drawn.size() == limit) break;
+                    last = row.getString(HID);
+                    drawn.add(new MciHealthId(last));
+                }
+                bucketCursors.set(bucketNos[i], rows.size() < perBucket ? null : last);
+            }
+        }
+        return drawn;
+    }
 
-        return cassandraOps.select(nextBlockQuery, MciHealthId.class);
+    private Statement selectFromBucket(int bucket, int limit) {
+        String cursor = bucketCursors.get(bucket);
+        if (cursor == null) return preparedStatements.bind(SELECT_FROM_BUCKET, bucket, limit);
+        return preparedStatements.bind(SELECT_FROM_BUCKET_AFTER, bucket, cursor, limit);
     }
 
-    private Insert getInsertQuery(MciHealthId mciHealthId) {
-        return createInsertQuery(CF_MCI_HEALTH_ID, mciHealthId, null, cassandraOps.getConverter());
+    /**
+     * Reads the free HIDs of the legacy table from a random token onwards, so that nodes
+     * rarely compete for the same rows.
+     */
+    private List<MciHealthId> findLegacyFreeHealthIds(int limit) {
+        long startToken = random.nextLong();
+        Select fromStart = QueryBuilder.select().from(CF_MCI_HEALTH_ID);
+        fromStart.where(QueryBuilder.gte(QueryBuilder.token(HID), startToken));
+        fromStart.limit(limit);
+        List<MciHealthId> free = new ArrayList<>(cassandraOps.select(fromStart, MciHealthId.class));
+        if (free.size() < limit) {
+            Select beforeStart = QueryBuilder.select().from(CF_MCI_HEALTH_ID);
+            beforeStart.where(QueryBuilder.lt(QueryBuilder.token(HID), startToken));
+            beforeStart.limit(limit - free.size());
+            free.addAll(cassandraOps.select(beforeStart, MciHealthId.class));
+        }
+        return free;
     }
 
-    private Insert getInsertQuery(OrgHealthId orgHealthId) {
-        return createInsertQuery(CF_ORG_HEALTH_ID, orgHealthId, null, cassandraOps.getConverter());
+    /**
+     * Reads a page of the legacy table in token order, after {@code afterHid} or from the
+     * start when it is null.
+     */
+    public List<MciHealthId> findLegacyHealthIds(String afterHid, int limit) {
+        Select select = QueryBuilder.select().from(CF_MCI_HEALTH_ID);
+        if (afterHid != null) {
+            select.where(QueryBuilder.gt(QueryBuilder.token(HID), QueryBuilder.fcall("token", afterHid)));
+        }
+        select.limit(limit);
+        return cassandraOps.select(select, MciHealthId.class);
     }
 
-    private Delete getDeleteQuery(MciHealthId mciHealthId) {
-        return createDeleteQuery(CF_MCI_HEALTH_ID, mciHealthId, null, cassandraOps.getConverter());
+    /**
+     * Moves HIDs of the legacy table into the pool. A HID is only moved after claiming it, so
+     * that a node reserving it at the same time cannot see it come back in the pool. Returns
+     * the number of HIDs moved.
+     * <p>
+     * The HIDs are inserted into the pool before they leave the legacy table. A HID left in
+     * both by a failed write is harmless: whichever node reserves it claims it first and
+     * deletes it from both.
+     */
+    public int moveToPool(List<MciHealthId> legacyHealthIds, String claimedBy, int claimTtlInSeconds) {
+        List<MciHealthId> claimed = claimHealthIds(claimedBy, legacyHealthIds, claimTtlInSeconds);
+        if (claimed.isEmpty()) return 0;
+        Map<Object, List<Statement>> insertsByPartition = new HashMap<>();
+        List<Statement> deletes = new ArrayList<>();
+        for (MciHealthId mciHealthId : claimed) {
+            addToPartition(insertsByPartition, bucketOf(mciHealthId.getHid()), getPoolInsertQuery(mciHealthId));
+            deletes.add(getDeleteQuery(mciHealthId));
+            deletes.add(preparedStatements.bind(DELETE_CLAIM, mciHealthId.getHid()));
+        }
+        int failed = executeConcurrently(batchPerPartition(insertsByPartition)).toBlocking().single();
+        if (failed > 0) {
+            throw new RuntimeException(String.format("%d writes moving %d HIDs into the pool failed", failed, claimed.size()));
+        }
+        failed = executeConcurrently(deletes).toBlocking().single();
+        if (failed > 0) {
+            logger.warn(String.format("%d deletes moving %d HIDs into the pool failed, they are left in the legacy table as well",
+                    failed, claimed.size()));
+        }
+        return claimed.size();
     }
 
-    public Observable<OrgHealthId> findOrgHealthId(String healthId) {
-        Select selectHealthId = QueryBuilder.select().from(CF_ORG_HEALTH_ID).where(QueryBuilder.eq(HEALTH_ID, healthId)).limit(1);
+    static int bucketOf(String hid) {
+        return (hid.hashCode() & Integer.MAX_VALUE) % MCI_HID_POOL_BUCKETS;
+    }
+
+    private Statement getPoolInsertQuery(MciHealthId mciHealthId) {
+        return preparedStatements.bind(INSERT_INTO_POOL, bucketOf(mciHealthId.getHid()), mciHealthId.getHid());
+    }
+
+    private Statement getPoolDeleteQuery(MciHealthId mciHealthId) {
+        return preparedStatements.bind(DELETE_FROM_POOL, bucketOf(mciHealthId.getHid()), mciHealthId.getHid());
+    }
+
+    /**
+     * Leaves used_at out unless the HID is used, so that saving an unused HID writes no
+     * tombstone for it.
+     */
+    private Statement getInsertQuery(OrgHealthId orgHealthId) {
+        if (orgHealthId.getUsedAt() == null) {
+            return preparedStatements.bind(INSERT_ORG_HEALTH_ID, orgHealthId.getHealthId(), orgHealthId.getAllocatedFor(),
+                    orgHealthId.getGeneratedAt(), orgHealthId.isUsed());
+        }
+        return preparedStatements.bind(INSERT_USED_ORG_HEALTH_ID, orgHealthId.getHealthId(), orgHealthId.getAllocatedFor(),
+                orgHealthId.getGeneratedAt(), orgHealthId.isUsed(), orgHealthId.getUsedAt());
+    }
+
+    private Statement getDeleteQuery(MciHealthId mciHealthId) {
+        return preparedStatements.bind(DELETE_MCI_HEALTH_ID, mciHealthId.getHid());
+    }
+
+    /**
+     * Emits the org HID, or null when there is none. Lookups, including those finding no org
+     * HID, are cached for a short while.
+     */
+    public Observable<OrgHealthId> findOrgHealthId(final String healthId) {
+        Cache.ValueWrapper cached = orgHealthIdCache.get(healthId);
+        if (cached != null) {
+            return Observable.just((OrgHealthId) cached.get());
+        }
+        final long version = orgHealthIdVersion(healthId);
+        Statement selectHealthId = preparedStatements.bind(SELECT_ORG_HEALTH_ID, healthId);
         return Observable.from(cassandraOps.executeAsynchronously(selectHealthId)).flatMap(
                 new Func1<ResultSet, Observable<OrgHealthId>>() {
                     @Override
                     public Observable<OrgHealthId> call(ResultSet resultSet) {
-                        if (resultSet.isExhausted()) {
-                            return Observable.just(null);
-                        }
-                        Row one = resultSet.one();
-                        String healthId = one.getString("health_id");
-                        String allocatedFor = one.getString("allocated_for");
-                        UUID generatedAt = one.getUUID("generated_at");
-                        Boolean isUsed = one.getBool("is_used");
-                        UUID usedAt = one.getUUID("used_at");
-
-                        return Observable.just(new OrgHealthId(healthId, allocatedFor, generatedAt, isUsed, usedAt));
+                        OrgHealthId orgHealthId = resultSet.isExhausted() ? null : toOrgHealthId(resultSet.one());
+                        cacheOrgHealthId(healthId, orgHealthId, version);
+                        return Observable.just(orgHealthId);
                     }
                 });
     }
 
-    public void saveOrgHidAndDeleteMciHid(final List<MciHealthId> mciHealthId, final List<OrgHealthId> orgHealthId) {
-        Batch batch = QueryBuilder.batch();
-        for (OrgHealthId orgHid : orgHealthId) {
-            batch.add(getInsertQuery(orgHid));
+    /**
+     * Emits the org HIDs found for the given HIDs by their HID. Those not cached are read one
+     * by one, so that each read goes to a replica of its HID, with at most
+     * {@code CONCURRENT_READS} in flight.
+     */
+    public Observable<Map<String, OrgHealthId>> findOrgHealthIds(Collection<String> healthIds) {
+        final Map<String, OrgHealthId> found = new HashMap<>();
+        final Map<String, Long> keys = new LinkedHashMap<>();
+        for (String healthId : new LinkedHashSet<>(healthIds)) {
+            Cache.ValueWrapper cached = orgHealthIdCache.get(healthId);
+            if (cached == null) {
+                keys.put(healthId, orgHealthIdVersion(healthId));
+            } else if (cached.get() != null) {
+                found.put(healthId, (OrgHealthId) cached.get());
+            }
         }
-        for (MciHealthId healthId : mciHealthId) {
-            batch.add(getDeleteQuery(healthId));
+        List<Observable<Row>> reads = new ArrayList<>();
+        for (final Map.Entry<String, Long> key : keys.entrySet()) {
+            reads.add(executeOnSubscribe(preparedStatements.bind(SELECT_ORG_HEALTH_ID, key.getKey())).concatMap(new Func1<ResultSet, Observable<Row>>() {
+                @Override
+                public Observable<Row> call(ResultSet resultSet) {
+                    Row row = resultSet.one();
+                    cacheOrgHealthId(key.getKey(), row == null ? null : toOrgHealthId(row), key.getValue());
+                    return row == null ? Observable.<Row>empty() : Observable.just(row);
+                }
+            }));
         }
-        cassandraOps.execute(batch);
+        return Observable.merge(Observable.from(reads), CONCURRENT_READS).toList().map(new Func1<List<Row>, Map<String, OrgHealthId>>() {
+            @Override
+            public Map<String, OrgHealthId> call(List<Row> rows) {
+                Map<String, OrgHealthId> read = new HashMap<>();
+                for (Row row : rows) {
+                    read.put(row.getString(HEALTH_ID), toOrgHealthId(row));
+                }
+                read.putAll(found);
+                return read;
+            }
+        });
+    }
+
+    private OrgHealthId toOrgHealthId(Row row) {
+        String healthId = row.getString(HEALTH_ID);
+        String allocatedFor = row.getString(ALLOCATED_FOR);
+        UUID generatedAt = row.getUUID(GENERATED_AT);
+        Boolean isUsed = row.getBool(IS_USED);
+        UUID usedAt = row.getUUID(USED_AT);
+        return new OrgHealthId(healthId, allocatedFor, generatedAt, isUsed, usedAt);
     }
 
-    public Observable<Integer> findRemainingHIDs(int threshold) {
-        Select select = QueryBuilder.select().countAll().from(CF_MCI_HEALTH_ID).limit(threshold);
-        return Observable.from(cassandraOps.executeAsynchronously(select)).flatMap(new Func1<ResultSet, Observable<Integer>>() {
+    /**
+     * Returns those of the given HIDs which are in the org HID table, reading them one by one
+     * with at most {@code CONCURRENT_READS} in flight.
+     */
+    public Set<String> findExistingOrgHealthIds(Collection<String> healthIds) {
+        List<Observable<String>> reads = new ArrayList<>();
+        for (String healthId : new LinkedHashSet<>(healthIds)) {
+            reads.add(executeOnSubscribe(preparedStatements.bind(SELECT_ORG_HEALTH_ID_KEY, healthId)).concatMap(new Func1<ResultSet, Observable<String>>() {
+                @Override
+                public Observable<String> call(ResultSet resultSet) {
+                    Row row = resultSet.one();
+                    return row == null ? Observable.<String>empty() : Observable.just(row.getString(HEALTH_ID));
+                }
+            }));
+        }
+        return new HashSet<>(Observable.merge(Observable.from(reads), CONCURRENT_READS).toList().toBlocking().single());
+    }
+
+    /**
+     * Pages through every HID in the org HID table.
+     */
+    public void scanOrgHealthIds(final Action1<String> action) {
+        Select select = QueryBuilder.select(HEALTH_ID).from(CF_ORG_HEALTH_ID);
+        select.setFetchSize(PER_PAGE_LIMIT);
+        cassandraOps.query(select, new RowCallbackHandler() {
             @Override
-            public Observable<Integer> call(ResultSet rows) {
-                Long result = rows.one().getLong(0);
-                return Observable.just(result.intValue());
+            public void processRow(Row row) throws DriverException {
+                action.call(row.getString(HEALTH_ID));
             }
         });
     }
+
+    /**
+     * Allocates free MCI HIDs to an organisation and deletes them from the free HIDs. See
+     * {@link #allocateThroughJournal}.
+     */
+    public Observable<Boolean> saveOrgHidAndDeleteMciHid(String nodeId, List<MciHealthId> mciHealthIds, String allocatedFor, UUID generatedAt) {
+        return allocateThroughJournal(nodeId, mciHealthIds, allocatedFor, generatedAt, false);
+    }
+
+    /**
+     * Claims up to {@code blockSize} free MCI HIDs for the node and moves them into its
+     * reservations. The HIDs are deleted from the pool before they are reserved, so that a
+     * failed write can only lose a HID, never leave it both free and reserved. If a delete
+     * fails, nothing is reserved; if a reservation fails, the HIDs are still handed to the
+     * node, which holds them in memory only.
+     * <p>
+     * A HID only belongs to the node which inserted its claim, which is a
+     * lightweight transaction, so competing nodes never reserve the same HID. A claim expires
+     * after {@code claimTtlInSeconds}; if the node dies before moving a HID, the HID becomes
+     * claimable again.
+     */
+    public List<MciHealthId> reserveNextBlock(String nodeId, int blockSize, int claimTtlInSeconds) {
+        List<MciHealthId> claimed = new ArrayList<>();
+        for (int round = 0; round < MAX_CLAIM_ROUNDS && claimed.size() < blockSize; round++) {
+            List<MciHealthId> candidates = getNextBlock(blockSize - claimed.size());
+            if (candidates.isEmpty()) break;
+            candidates.removeAll(claimed);
+            claimed.addAll(claimHealthIds(nodeId, candidates, claimTtlInSeconds));
+        }
+        if (claimed.isEmpty()) return claimed;
+        UUID reservedAt = UUIDs.timeBased();
+        List<Statement> deletes = new ArrayList<>();
+        Map<Object, List<Statement>> poolDeletesByPartition = new HashMap<>();
+        Map<Object, List<Statement>> reservationsByPartition = new HashMap<>();
+        for (MciHealthId mciHealthId : claimed) {
+            deletes.add(getDeleteQuery(mciHealthId));
+            addToPartition(poolDeletesByPartition, bucketOf(mciHealthId.getHid()), getPoolDeleteQuery(mciHealthId));
+            addToPartition(reservationsByPartition, nodeId,
+                    preparedStatements.bind(INSERT_RESERVATION, nodeId, mciHealthId.getHid(), reservedAt));
+        }
+        deletes.addAll(batchPerPartition(poolDeletesByPartition));
+        int failed = executeConcurrently(deletes).toBlocking().single();
+        if (failed > 0) {
+            throw new RuntimeException(String.format("%d deletes reserving %d HIDs for node %s failed",
+                    failed, claimed.size(), nodeId));
+        }
+        failed = executeConcurrently(batchPerPartition(reservationsByPartition)).toBlocking().single();
+        if (failed > 0) {
+            logger.warn(String.format("%d writes reserving %d HIDs for node %s failed, they are lost if the node restarts",
+                    failed, claimed.size(), nodeId));
+        }
+        return claimed;
+    }
+
+    private List<MciHealthId> claimHealthIds(String nodeId, List<MciHealthId> candidates, int claimTtlInSeconds) {
+        List<MciHealthId> won = new ArrayList<>();
+        for (int from = 0; from < candidates.size(); from += CONCURRENT_CLAIMS) {
+            List<MciHealthId> window = candidates.subList(from, Math.min(candidates.size(), from + CONCURRENT_CLAIMS));
+            List<ResultSetFuture> futures = new ArrayList<>();
+            for (MciHealthId candidate : window) {
+                Statement claim = preparedStatements.bind(INSERT_CLAIM, candidate.getHid(), nodeId, claimTtlInSeconds);
+                futures.add(cassandraOps.executeAsynchronously(claim));
+            }
+            for (int i = 0; i < window.size(); i++) {
+                if (futures.get(i).getUninterruptibly().wasApplied()) {
+                    won.add(window.get(i));
+                }
+            }
+        }
+        return won;
+    }
+
+    public List<MciHealthId> findReservedHealthIds(String nodeId) {
+        Select select = QueryBuilder.select(HEALTH_ID).from(CF_HID_RESERVATIONS);
+        select.where(QueryBuilder.eq(NODE_ID, nodeId));
+        select.setFetchSize(PER_PAGE_LIMIT);
+        final List<MciHealthId> reserved = new ArrayList<>();
+        cassandraOps.query(select, new RowCallbackHandler() {
+            @Override
+            public void processRow(Row row) throws DriverException {
+                reserved.add(new MciHealthId(row.getString(HEALTH_ID)));
+            }
+        });
+        return reserved;
+    }
+
+    /**
+     * Allocates HIDs reserved by the node to an organisation and drops their reservations. See
+     * {@link #allocateThroughJournal}.
+     */
+    public Observable<Boolean> saveOrgHidAndReleaseReservations(String nodeId, List<MciHealthId> mciHealthIds, String allocatedFor, UUID generatedAt) {
+        return allocateThroughJournal(nodeId, mciHealthIds, allocatedFor, generatedAt, true);
+    }
+
+    /**
+     * Records the allocation as one row in the journal of the node before writing anything
+     * else, and then applies it as concurrent single-partition writes: an org HID row per HID,
+     * and the deletes grouped into unlogged batches per partition. The journal entry is only
+     * dropped once every write succeeded. An entry left behind by a failed write, a failed
+     * delete of the entry or a node that went down is applied again by
+     * {@link #replayAllocationJournal}, so only a failure to write the journal itself is emitted
+     * as an error, a {@link HidAllocationException} telling whether the entry may have been
+     * written all the same. Otherwise emits whether every write succeeded. Nothing is written
+     * until subscribed to.
+     * <p>
+     * The HIDs are taken off the count of free HIDs as soon as the journal entry is written,
+     * as from then on they are allocated whether or not the writes succeed.
+     */
+    private Observable<Boolean> allocateThroughJournal(final String nodeId, List<MciHealthId> mciHealthIds, final String allocatedFor,
+                                                       final UUID generatedAt, final boolean reserved) {
+        if (mciHealthIds.isEmpty()) return Observable.just(true);
+        final Set<String> healthIds = new LinkedHashSet<>();
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            healthIds.add(mciHealthId.getHid());
+        }
+        final UUID entryId = UUIDs.timeBased();
+        Statement journalEntry = preparedStatements.bind(INSERT_JOURNAL_ENTRY, nodeId, entryId, healthIds, allocatedFor,
+                generatedAt, reserved);
+        return executeOnSubscribe(journalEntry).onErrorResumeNext(new Func1<Throwable, Observable<ResultSet>>() {
+            @Override
+            public Observable<ResultSet> call(Throwable error) {
+                return Observable.error(new HidAllocationException(String.format("Could not journal the allocation of %d HIDs to %s",
+                        healthIds.size(), allocatedFor), error, !isRejected(error)));
+            }
+        }).concatMap(new Func1<ResultSet, Observable<Long>>() {
+            @Override
+            public Observable<Long> call(ResultSet resultSet) {
+                return countHIDs(FREE_MCI_HIDS, -healthIds.size());
+            }
+        }).concatMap(new Func1<Long, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(Long counted) {
+                return applyJournalEntry(nodeId, entryId, healthIds, allocatedFor, generatedAt, reserved);
+            }
+        });
+    }
+
+    /**
+     * Applies the journal entries of the node written at least {@code olderThanMillis} ago.
+     * Applying an entry twice writes the same rows again, and leaves the columns marking a HID
+     * used alone, so entries still being applied by this node may be replayed as well. Returns
+     * the number of entries applied.
+     */
+    public int replayAllocationJournal(String nodeId, long olderThanMillis) {
+        Select select = QueryBuilder.select().from(CF_HID_ALLOCATION_JOURNAL);
+        select.where(QueryBuilder.eq(NODE_ID, nodeId));
+        select.setFetchSize(PER_PAGE_LIMIT);
+        final List<Row> entries = new ArrayList<>();
+        cassandraOps.query(select, new RowCallbackHandler() {
+            @Override
+            public void processRow(Row row) throws DriverException {
+                entries.add(row);
+            }
+        });
+        long writtenBefore = System.currentTimeMillis() - olderThanMillis;
+        int applied = 0;
+        for (Row entry : entries) {
+            UUID entryId = entry.getUUID(ENTRY_ID);
+            if (UUIDs.unixTimestamp(entryId) > writtenBefore) continue;
+            if (applyJournalEntry(nodeId, entryId, entry.getSet(HEALTH_IDS, String.class), entry.getString(ALLOCATED_FOR),
+                    entry.getUUID(GENERATED_AT), entry.getBool(RESERVED)).toBlocking().single()) {
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private Observable<Boolean> applyJournalEntry(final String nodeId, final UUID entryId, final Set<String> healthIds,
+                                                  final String allocatedFor, UUID generatedAt, boolean reserved) {
+        final List<Statement> writes = new ArrayList<>();
+        Map<Object, List<Statement>> deletesByPartition = new HashMap<>();
+        for (String healthId : healthIds) {
+            MciHealthId mciHealthId = new MciHealthId(healthId);
+            writes.add(preparedStatements.bind(INSERT_ALLOCATED_ORG_HEALTH_ID, healthId, allocatedFor, generatedAt));
+            if (reserved) {
+                addToPartition(deletesByPartition, nodeId, preparedStatements.bind(DELETE_RESERVATION, nodeId, healthId));
+            } else {
+                writes.add(getDeleteQuery(mciHealthId));
+                addToPartition(deletesByPartition, bucketOf(healthId), getPoolDeleteQuery(mciHealthId));
+            }
+        }
+        writes.addAll(batchPerPartition(deletesByPartition));
+        return evictingOrgHealthIds(executeConcurrently(writes), healthIds).concatMap(new Func1<Integer, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(Integer failed) {
+                if (failed > 0) {
+                    logger.warn(String.format("%d of %d writes allocating %d HIDs to %s failed, journal entry %s is left for replay",
+                            failed, writes.size(), healthIds.size(), allocatedFor, entryId));
+                    return Observable.just(false);
+                }
+                return executeOnSubscribe(preparedStatements.bind(DELETE_JOURNAL_ENTRY, nodeId, entryId)).map(new Func1<ResultSet, Boolean>() {
+                    @Override
+                    public Boolean call(ResultSet resultSet) {
+                        return true;
+                    }
+                }).onErrorReturn(new Func1<Throwable, Boolean>() {
+                    @Override
+                    public Boolean call(Throwable error) {
+                        logger.warn(String.format("Could not drop journal entry %s, it is dropped when replayed", entryId), error);
+                        return true;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Whether the coordinator refused the write before applying it anywhere. Any other error,
+     * a timeout in particular, leaves open whether the write was applied.
+     */
+    private static boolean isRejected(Throwable error) {
+        return error instanceof UnavailableException || error instanceof QueryValidationException;
+    }
+
+    private static void addToPartition(Map<Object, List<Statement>> statementsByPartition, Object partition,
+                                       Statement statement) {
+        List<Statement> statements = statementsByPartition.get(partition);
+        if (statements == null) {
+            statements = new ArrayList<>();
+            statementsByPartition.put(partition, statements);
+        }
+        statements.add(statement);
+    }
+
+    /**
+     * Groups the statements of each partition into unlogged batches, which the coordinator
+     * sends to the replicas as a single mutation.
+     */
+    private static List<Statement> batchPerPartition(Map<Object, List<Statement>> statementsByPartition) {
+        List<Statement> batches = new ArrayList<>();
+        for (List<Statement> statements : statementsByPartition.values()) {
+            for (int from = 0; from < statements.size(); from += MAX_STATEMENTS_PER_BATCH) {
+                List<Statement> chunk = statements.subList(from, Math.min(statements.size(), from + MAX_STATEMENTS_PER_BATCH));
+                if (chunk.size() == 1) {
+                    batches.add(chunk.get(0));
+                } else {
+                    batches.add(new BatchStatement(BatchStatement.Type.UNLOGGED).addAll(chunk));
+                }
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Runs the statements with at most {@code CONCURRENT_WRITES} of them in flight and emits
+     * the number which failed.
+     */
+    private Observable<Integer> executeConcurrently(List<Statement> statements) {
+        Observable<Observable<Integer>> writes = Observable.from(statements).map(new Func1<Statement, Observable<Integer>>() {
+            @Override
+            public Observable<Integer> call(Statement statement) {
+                return executeOnSubscribe(statement).map(new Func1<ResultSet, Integer>() {
+                    @Override
+                    public Integer call(ResultSet resultSet) {
+                        return 0;
+                    }
+                }).onErrorReturn(new Func1<Throwable, Integer>() {
+                    @Override
+                    public Integer call(Throwable error) {
+                        logger.debug("Allocation write failed", error);
+                        return 1;
+                    }
+                });
+            }
+        });
+        return Observable.merge(writes, CONCURRENT_WRITES).reduce(0, new Func2<Integer, Integer, Integer>() {
+            @Override
+            public Integer call(Integer failed, Integer failedWrite) {
+                return failed + failedWrite;
+            }
+        });
+    }
+
+    /**
+     * Adds {@code delta} to the named count and emits it. A failed update is only logged, as
+     * the write being counted has been made already.
+     */
+    private Observable<Long> countHIDs(final String name, final long delta) {
+        return executeOnSubscribe(preparedStatements.bind(COUNT_HIDS, delta, name)).map(new Func1<ResultSet, Long>() {
+            @Override
+            public Long call(ResultSet resultSet) {
+                return delta;
+            }
+        }).onErrorReturn(new Func1<Throwable, Long>() {
+            @Override
+            public Long call(Throwable error) {
+                logger.warn(String.format("Could not add %d to the count of %s", delta, name), error);
+                return delta;
+            }
+        });
+    }
+
+    private Observable<Long> findHIDCount(String name) {
+        return executeOnSubscribe(preparedStatements.bind(SELECT_HID_COUNT, name)).map(new Func1<ResultSet, Long>() {
+            @Override
+            public Long call(ResultSet resultSet) {
+                Row row = resultSet.one();
+                return row == null ? null : row.getLong(HID_COUNT);
+            }
+        });
+    }
+
+    /**
+     * Emits the count of free HIDs, pooled, legacy and reserved ones alike, or null when
+     * nothing was ever counted.
+     */
+    public Observable<Long> findFreeHIDCount() {
+        return findHIDCount(FREE_MCI_HIDS);
+    }
+
+    /**
+     * Adds the HIDs to the count of HIDs handed out to MCIs so far.
+     */
+    public Observable<Long> countAllocatedHIDs(long allocated) {
+        return countHIDs(ALLOCATED_MCI_HIDS, allocated);
+    }
+
+    /**
+     * Emits the count of HIDs handed out to MCIs so far, or null when none was counted.
+     */
+    public Observable<Long> findAllocatedHIDCount() {
+        return findHIDCount(ALLOCATED_MCI_HIDS);
+    }
+
+    /**
+     * Makes sure the count of free HIDs covers the HIDs stored before it was kept, by counting
+     * the rows of the free HID tables once. Only the node whose claim on the seed is accepted
+     * counts them. The claim expires after {@code claimTtlInSeconds}, so that a seed left
+     * unfinished by a node that went down is taken over, and is renewed while the rows are
+     * counted. The seed is marked done with a lightweight transaction on the claim before the
+     * count is corrected, so at most one node ever corrects it. Returns whether the count has
+     * been seeded.
+     * <p>
+     * The count is corrected by the difference between the rows found and the count after the
+     * scan. HIDs written or deleted behind the scan while it runs, or moved between the tables,
+     * are still miscounted.
+     */
+    public boolean seedFreeHIDCount(final String nodeId, final int claimTtlInSeconds) {
+        Row seedRow = cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_COUNT_SEED, FREE_MCI_HIDS)).getUninterruptibly().one();
+        if (seedRow != null) return seedRow.getUUID(SEEDED_AT) != null;
+
+        if (!applyConditionally(preparedStatements.bind(CLAIM_COUNT_SEED, FREE_MCI_HIDS, nodeId, claimTtlInSeconds))) return false;
+
+        Func0<Boolean> renewClaim = new Func0<Boolean>() {
+            @Override
+            public Boolean call() {
+                return applyConditionally(preparedStatements.bind(RENEW_COUNT_SEED, claimTtlInSeconds, nodeId, FREE_MCI_HIDS, nodeId));
+            }
+        };
+        Long free = countRows(CF_MCI_HID_POOL, HID, renewClaim);
+        if (free != null) free = add(free, countRows(CF_MCI_HEALTH_ID, HID, renewClaim));
+        if (free != null) free = add(free, countRows(CF_HID_RESERVATIONS, HEALTH_ID, renewClaim));
+        if (free == null) {
+            logger.warn("Lost the claim on seeding the count of free HIDs, another node seeds it");
+            return false;
+        }
+        Long counted = findFreeHIDCount().toBlocking().first();
+
+        if (!applyConditionally(preparedStatements.bind(MARK_COUNT_SEEDED, UUIDs.timeBased(), nodeId, FREE_MCI_HIDS, nodeId))) {
+            logger.warn("Lost the claim on seeding the count of free HIDs, another node seeds it");
+            return false;
+        }
+        long delta = free - (counted == null ? 0 : counted);
+        cassandraOps.execute(preparedStatements.bind(COUNT_HIDS, delta, FREE_MCI_HIDS));
+        logger.info(String.format("Seeded the count of free HIDs with %d HIDs", free));
+        return true;
+    }
+
+    private static Long add(long free, Long rows) {
+        return rows == null ? null : free + rows;
+    }
+
+    /**
+     * Counts the rows of the table, calling {@code heartbeat} every {@code ROWS_PER_HEARTBEAT}
+     * rows. Returns null as soon as the heartbeat fails.
+     */
+    private Long countRows(String table, String column, Func0<Boolean> heartbeat) {
+        Select select = QueryBuilder.select(column).from(table);
+        select.setFetchSize(PER_PAGE_LIMIT);
+        long rows = 0;
+        for (Row ignored : cassandraOps.executeAsynchronously(select).getUninterruptibly()) {
+            if (++rows % ROWS_PER_HEARTBEAT == 0 && !heartbeat.call()) return null;
+        }
+        return rows;
+    }
 }
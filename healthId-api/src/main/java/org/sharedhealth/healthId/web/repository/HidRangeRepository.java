@@ -0,0 +1,173 @@
+package org.sharedhealth.healthId.web.repository;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
+import org.sharedhealth.healthId.web.Model.HidRange;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static java.util.Arrays.asList;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.lte;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
+
+@Component
+public class HidRangeRepository extends BaseRepository {
+    private static final String OPEN_HID_RANGES = "open";
+    private static final RegularStatement SELECT_RANGE = selectRange();
+    private static final RegularStatement ADVANCE_RANGE = QueryBuilder.update(CF_MCI_HID_RANGES)
+            .with(set(NEXT_CANDIDATE, bindMarker()))
+            .where(eq(SERIES_NO, bindMarker())).and(eq(BEGINS_AT, bindMarker()))
+            .onlyIf(eq(NEXT_CANDIDATE, bindMarker()));
+    private static final RegularStatement SELECT_OPEN_RANGE = QueryBuilder.select(SERIES_NO, BEGINS_AT, ENDS_AT, NEXT_CANDIDATE)
+            .from(CF_MCI_HID_RANGES)
+            .where(eq(SERIES_NO, bindMarker())).and(eq(BEGINS_AT, bindMarker()));
+    private static final RegularStatement INSERT_RANGE = QueryBuilder.insertInto(CF_MCI_HID_RANGES)
+            .value(SERIES_NO, bindMarker())
+            .value(BEGINS_AT, bindMarker())
+            .value(ENDS_AT, bindMarker())
+            .value(NEXT_CANDIDATE, bindMarker())
+            .ifNotExists();
+    private static final RegularStatement SELECT_OPEN_RANGE_KEYS = QueryBuilder.select(SERIES_NO, BEGINS_AT)
+            .from(CF_MCI_OPEN_HID_RANGES)
+            .where(eq(NAME, bindMarker()));
+    private static final RegularStatement INSERT_OPEN_RANGE_KEY = QueryBuilder.insertInto(CF_MCI_OPEN_HID_RANGES)
+            .value(NAME, bindMarker())
+            .value(SERIES_NO, bindMarker())
+            .value(BEGINS_AT, bindMarker());
+    private static final RegularStatement DELETE_OPEN_RANGE_KEY = QueryBuilder.delete().from(CF_MCI_OPEN_HID_RANGES)
+            .where(eq(NAME, bindMarker())).and(eq(SERIES_NO, bindMarker())).and(eq(BEGINS_AT, bindMarker()));
+    private static final RegularStatement INSERT_ALLOCATION_IF_ABSENT = QueryBuilder.insertInto(CF_HID_RANGE_ALLOCATIONS)
+            .value(SERIES_NO, bindMarker())
+            .value(BEGINS_AT, bindMarker())
+            .value(ENDS_AT, bindMarker())
+            .value(ALLOCATED_FOR, bindMarker())
+            .value(ALLOCATED_AT, bindMarker())
+            .ifNotExists();
+    private static final RegularStatement SELECT_ALLOCATION = QueryBuilder.select().from(CF_HID_RANGE_ALLOCATIONS)
+            .where(eq(SERIES_NO, bindMarker())).and(lte(BEGINS_AT, bindMarker()))
+            .limit(1);
+
+    private final PreparedStatementRegistry preparedStatements;
+
+    @Autowired
+    public HidRangeRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps,
+                              PreparedStatementRegistry preparedStatements) {
+        super(cassandraOps);
+        this.preparedStatements = preparedStatements;
+    }
+
+    @PostConstruct
+    public void prepareStatements() {
+        for (RegularStatement statement : asList(SELECT_RANGE, SELECT_OPEN_RANGE, INSERT_RANGE, SELECT_OPEN_RANGE_KEYS,
+                INSERT_OPEN_RANGE_KEY, DELETE_OPEN_RANGE_KEY, ADVANCE_RANGE, INSERT_ALLOCATION_IF_ABSENT, SELECT_ALLOCATION)) {
+            preparedStatements.prepare(statement);
+        }
+    }
+
+    /**
+     * Saves the range unless it exists, and lists it among the open ranges. It is listed first,
+     * so that a failed save cannot leave a range nobody allocates from; listing an exhausted or
+     * missing range only costs a read until it is closed.
+     */
+    public void saveRange(long seriesNo, long beginsAt, long endsAt) {
+        cassandraOps.execute(preparedStatements.bind(INSERT_OPEN_RANGE_KEY, OPEN_HID_RANGES, seriesNo, beginsAt));
+        cassandraOps.execute(preparedStatements.bind(INSERT_RANGE, seriesNo, beginsAt, endsAt, beginsAt));
+    }
+
+    /**
+     * Reads the ranges listed as open, concurrently. Ranges exhausted since they were listed
+     * are among them until {@link #closeRange} is called, and listed ranges which do not exist
+     * are closed here.
+     */
+    public List<HidRange> findOpenRanges() {
+        List<Row> keys = cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_OPEN_RANGE_KEYS, OPEN_HID_RANGES))
+                .getUninterruptibly().all();
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (Row key : keys) {
+            futures.add(cassandraOps.executeAsynchronously(preparedStatements.bind(SELECT_OPEN_RANGE,
+                    key.getLong(SERIES_NO), key.getLong(BEGINS_AT))));
+        }
+        List<HidRange> ranges = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Row row = futures.get(i).getUninterruptibly().one();
+            if (row == null) {
+                closeRange(keys.get(i).getLong(SERIES_NO), keys.get(i).getLong(BEGINS_AT));
+            } else {
+                ranges.add(toRange(row));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Takes the range off the open ranges, once it is exhausted.
+     */
+    public void closeRange(long seriesNo, long beginsAt) {
+        cassandraOps.execute(preparedStatements.bind(DELETE_OPEN_RANGE_KEY, OPEN_HID_RANGES, seriesNo, beginsAt));
+    }
+
+    /**
+     * Reads the range through Paxos, so that the cursor reflects every advance applied so far.
+     */
+    public HidRange findRange(long seriesNo, long beginsAt) {
+        Statement select = preparedStatements.bind(SELECT_RANGE, seriesNo, beginsAt);
+        Row row = cassandraOps.executeAsynchronously(select).getUninterruptibly().one();
+        return row == null ? null : toRange(row);
+    }
+
+    private static RegularStatement selectRange() {
+        Select select = QueryBuilder.select().from(CF_MCI_HID_RANGES);
+        select.where(eq(SERIES_NO, bindMarker())).and(eq(BEGINS_AT, bindMarker()));
+        select.setConsistencyLevel(ConsistencyLevel.SERIAL);
+        return select;
+    }
+
+    /**
+     * Moves the cursor of the range from {@code expectedNext} to {@code next}. Fails when
+     * another allocation moved it first.
+     */
+    public boolean advanceRange(HidRange range, long expectedNext, long next) {
+        return applyConditionally(preparedStatements.bind(ADVANCE_RANGE, next, range.getSeriesNo(), range.getBeginsAt(), expectedNext));
+    }
+
+    /**
+     * Records the allocation of {@code [beginsAt, endsAt]} unless an allocation starting at
+     * {@code beginsAt} was recorded first. Returns null when it was recorded, and otherwise the
+     * end of the allocation recorded first.
+     */
+    public Long saveAllocationIfAbsent(long seriesNo, long beginsAt, long endsAt, String allocatedFor, UUID allocatedAt) {
+        Statement insert = preparedStatements.bind(INSERT_ALLOCATION_IF_ABSENT, seriesNo, beginsAt, endsAt, allocatedFor, allocatedAt);
+        Row row = cassandraOps.executeAsynchronously(insert).getUninterruptibly().one();
+        return row.getBool(APPLIED) ? null : row.getLong(ENDS_AT);
+    }
+
+    /**
+     * Finds the organisation the candidate was allocated to as part of a range, or null.
+     */
+    public OrgHealthId findAllocation(long seriesNo, long candidate, String healthId) {
+        Statement select = preparedStatements.bind(SELECT_ALLOCATION, seriesNo, candidate);
+        Row row = cassandraOps.executeAsynchronously(select).getUninterruptibly().one();
+        if (row == null || row.getLong(ENDS_AT) < candidate) return null;
+        return new OrgHealthId(healthId, row.getString(ALLOCATED_FOR), row.getUUID(ALLOCATED_AT));
+    }
+
+    private static HidRange toRange(Row row) {
+        return new HidRange(row.getLong(SERIES_NO), row.getLong(BEGINS_AT), row.getLong(ENDS_AT), row.getLong(NEXT_CANDIDATE));
+    }
+}
@@ -0,0 +1,88 @@
+package org.sharedhealth.healthId.web.repository;
+
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Func1;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static java.util.Arrays.asList;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
+
+@Component
+public class NextBlockRequestRepository extends BaseRepository {
+    private static final RegularStatement SELECT_BLOCK = QueryBuilder.select(HEALTH_IDS).from(CF_NEXT_BLOCK_REQUESTS)
+            .where(eq(MCI_CODE, bindMarker())).and(eq(IDEMPOTENCY_KEY, bindMarker()));
+    private static final RegularStatement INSERT_BLOCK_IF_ABSENT = QueryBuilder.insertInto(CF_NEXT_BLOCK_REQUESTS)
+            .value(MCI_CODE, bindMarker()).value(IDEMPOTENCY_KEY, bindMarker()).value(HEALTH_IDS, bindMarker())
+            .ifNotExists().using(QueryBuilder.ttl(bindMarker()));
+
+    private final PreparedStatementRegistry preparedStatements;
+
+    @Autowired
+    public NextBlockRequestRepository(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps,
+                                      PreparedStatementRegistry preparedStatements) {
+        super(cassandraOps);
+        this.preparedStatements = preparedStatements;
+    }
+
+    @PostConstruct
+    public void prepareStatements() {
+        for (RegularStatement statement : asList(SELECT_BLOCK, INSERT_BLOCK_IF_ABSENT)) {
+            preparedStatements.prepare(statement);
+        }
+    }
+
+    /**
+     * Emits the block served for the idempotency key of the MCI, or null.
+     */
+    public Observable<List<MciHealthId>> findBlock(String mciCode, String idempotencyKey) {
+        return executeOnSubscribe(preparedStatements.bind(SELECT_BLOCK, mciCode, idempotencyKey)).map(new Func1<ResultSet, List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call(ResultSet resultSet) {
+                Row row = resultSet.one();
+                return row == null ? null : toHealthIds(row.getList(HEALTH_IDS, String.class));
+            }
+        });
+    }
+
+    /**
+     * Stores the block for the idempotency key unless a request with the same key stored one
+     * first, and emits the block stored for the key.
+     */
+    public Observable<List<MciHealthId>> saveBlock(String mciCode, String idempotencyKey, final List<MciHealthId> block,
+                                                   int ttlInSeconds) {
+        List<String> healthIds = new ArrayList<>(block.size());
+        for (MciHealthId mciHealthId : block) {
+            healthIds.add(mciHealthId.getHid());
+        }
+        return executeOnSubscribe(preparedStatements.bind(INSERT_BLOCK_IF_ABSENT, mciCode, idempotencyKey, healthIds, ttlInSeconds)).map(new Func1<ResultSet, List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call(ResultSet resultSet) {
+                Row row = resultSet.one();
+                if (row.getBool(APPLIED)) return block;
+                return toHealthIds(row.getList(HEALTH_IDS, String.class));
+            }
+        });
+    }
+
+    private static List<MciHealthId> toHealthIds(List<String> healthIds) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>(healthIds.size());
+        for (String healthId : healthIds) {
+            mciHealthIds.add(new MciHealthId(healthId));
+        }
+        return mciHealthIds;
+    }
+}
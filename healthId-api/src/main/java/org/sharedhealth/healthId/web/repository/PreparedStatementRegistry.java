@@ -0,0 +1,49 @@
+package org.sharedhealth.healthId.web.repository;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Prepares each statement once and keeps it by its query string, so that the repositories
+ * only bind values on the hot path. Bound statements carry their routing key, which lets the
+ * driver send them straight to a replica.
+ */
+@Component
+public class PreparedStatementRegistry {
+    private final CassandraOperations cassandraOps;
+    private final ConcurrentMap<String, PreparedStatement> preparedStatements = new ConcurrentHashMap<>();
+
+    @Autowired
+    public PreparedStatementRegistry(@Qualifier("HealthIdCassandraTemplate") CassandraOperations cassandraOps) {
+        this.cassandraOps = cassandraOps;
+    }
+
+    /**
+     * Prepares the statement unless it was prepared already. Its consistency levels are
+     * carried over to the statements bound from it.
+     */
+    public PreparedStatement prepare(RegularStatement statement) {
+        String query = statement.getQueryString();
+        PreparedStatement prepared = preparedStatements.get(query);
+        if (prepared != null) return prepared;
+        prepared = cassandraOps.getSession().prepare(statement);
+        PreparedStatement existing = preparedStatements.putIfAbsent(query, prepared);
+        return existing != null ? existing : prepared;
+    }
+
+    public BoundStatement bind(RegularStatement statement, Object... values) {
+        return prepare(statement).bind(values);
+    }
+
+    public int size() {
+        return preparedStatements.size();
+    }
+}
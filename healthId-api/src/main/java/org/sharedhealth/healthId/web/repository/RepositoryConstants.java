@@ -2,8 +2,20 @@ package org.sharedhealth.healthId.web.repository;
 
 public class RepositoryConstants {
     public static final String CF_MCI_HEALTH_ID = "mci_healthId";
+    public static final String CF_MCI_HID_POOL = "mci_hid_pool";
     public static final String CF_GENERATED_HID_BLOCKS = "generated_hid_blocks";
     public static final String CF_ORG_HEALTH_ID = "org_healthid";
+    public static final String CF_HID_EXISTENCE_FILTERS = "hid_existence_filters";
+    public static final String CF_SERIES_WATERMARK = "series_watermark";
+    public static final String CF_HID_RESERVATIONS = "hid_reservations";
+    public static final String CF_HID_CLAIMS = "hid_claims";
+    public static final String CF_MCI_HID_RANGES = "mci_hid_ranges";
+    public static final String CF_HID_RANGE_ALLOCATIONS = "hid_range_allocations";
+    public static final String CF_MCI_OPEN_HID_RANGES = "mci_open_hid_ranges";
+    public static final String CF_HID_ALLOCATION_JOURNAL = "hid_allocation_journal";
+    public static final String CF_NEXT_BLOCK_REQUESTS = "next_block_requests";
+    public static final String CF_MCI_HID_COUNTS = "mci_hid_counts";
+    public static final String CF_MCI_HID_COUNT_SEEDS = "mci_hid_count_seeds";
 
     public static final String HEALTH_ID = "health_id";
 
@@ -19,4 +31,39 @@ public class RepositoryConstants {
     public static final String USED_AT = "used_at";
 
     public static final String HID = "hid";
+    public static final String BUCKET = "bucket";
+
+    /**
+     * The number of partitions the pool of free MCI HIDs is spread over. HIDs are placed by
+     * their hash, so this must not change once the pool holds HIDs.
+     */
+    public static final int MCI_HID_POOL_BUCKETS = 64;
+
+    public static final String BITS = "bits";
+    public static final String HASH_FUNCTIONS = "hash_functions";
+    public static final String ENTRIES = "entries";
+    public static final String BUILT_AT = "built_at";
+
+    public static final String CLAIMED_BY = "claimed_by";
+
+    public static final String NODE_ID = "node_id";
+    public static final String RESERVED_AT = "reserved_at";
+
+    public static final String NEXT_CANDIDATE = "next_candidate";
+    public static final String ALLOCATED_AT = "allocated_at";
+
+    public static final String ENTRY_ID = "entry_id";
+    public static final String HEALTH_IDS = "health_ids";
+    public static final String RESERVED = "reserved";
+
+    public static final String MCI_CODE = "mci_code";
+    public static final String IDEMPOTENCY_KEY = "idempotency_key";
+    public static final String APPLIED = "[applied]";
+
+    public static final String NAME = "name";
+    public static final String HID_COUNT = "hid_count";
+    public static final String SEEDED_BY = "seeded_by";
+    public static final String SEEDED_AT = "seeded_at";
+    public static final String FREE_MCI_HIDS = "free_mci_hids";
+    public static final String ALLOCATED_MCI_HIDS = "allocated_mci_hids";
 }
@@ -1,20 +1,44 @@
 package org.sharedhealth.healthId.web.service;
 
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.SeriesClaim;
+import org.sharedhealth.healthId.web.Model.SeriesWatermark;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.repository.GeneratedHidBlockRepository;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
 
 @Component
 public class GeneratedHidBlockService {
+    private static final Logger logger = LoggerFactory.getLogger(GeneratedHidBlockService.class);
+    private static final int MAX_WATERMARK_ATTEMPTS = 5;
+
+    /**
+     * Series under which an empty existence filter marks a completed rebuild. Series numbers
+     * are made of two leading digits followed by zeros, so 0 is never a real series.
+     */
+    public static final long ALL_SERIES = 0L;
 
     private GeneratedHidBlockRepository generatedHidBlockRepository;
+    private HealthIdProperties healthIdProperties;
+    private final ConcurrentMap<Long, Long> seriesWatermarks = new ConcurrentHashMap<>();
 
     @Autowired
-    public GeneratedHidBlockService(GeneratedHidBlockRepository generatedHidBlockRepository) {
+    public GeneratedHidBlockService(GeneratedHidBlockRepository generatedHidBlockRepository, HealthIdProperties healthIdProperties) {
         this.generatedHidBlockRepository = generatedHidBlockRepository;
+        this.healthIdProperties = healthIdProperties;
     }
 
     public List<GeneratedHIDBlock> getPreGeneratedHidBlocks(long seriesNo) {
@@ -24,4 +48,132 @@ public class GeneratedHidBlockService {
     public GeneratedHIDBlock saveGeneratedHidBlock(GeneratedHIDBlock generatedHIDBlock) {
         return generatedHidBlockRepository.saveGeneratedHidBlock(generatedHIDBlock);
     }
+
+    /**
+     * The filter of HIDs outside generated blocks for the series. When a rebuild found no such
+     * HID in the series, the empty marker filter is returned. Null if filters were never built.
+     */
+    public HidBloomFilter findOutOfRangeFilter(long seriesNo) {
+        HidBloomFilter filter = generatedHidBlockRepository.findExistenceFilter(seriesNo);
+        if (filter != null) return filter;
+        return generatedHidBlockRepository.findExistenceFilter(ALL_SERIES);
+    }
+
+    public void saveOutOfRangeFilters(Map<Long, HidBloomFilter> filters) {
+        for (Map.Entry<Long, HidBloomFilter> filter : filters.entrySet()) {
+            generatedHidBlockRepository.saveExistenceFilter(filter.getKey(), filter.getValue());
+        }
+        generatedHidBlockRepository.saveExistenceFilter(ALL_SERIES, HidBloomFilter.empty());
+    }
+
+    /**
+     * Claims the series for one generation run and tells where its block starts. The claim is
+     * a conditional update on the series watermark, made against the watermark cached by this
+     * instance, so a series is usually claimed in a single round trip. A series without a
+     * watermark gets one from the ends of its generated blocks. Fails fast if another run
+     * holds the series.
+     */
+    public SeriesClaim claimSeries(long seriesNo) {
+        UUID claimedBy = timeBased();
+        Long endsAt = seriesWatermarks.get(seriesNo);
+        for (int attempt = 0; attempt < MAX_WATERMARK_ATTEMPTS; attempt++) {
+            if (endsAt == null) {
+                endsAt = loadUnclaimedWatermark(seriesNo);
+            }
+            if (generatedHidBlockRepository.claimSeriesWatermark(seriesNo, endsAt, claimedBy, healthIdProperties.getHidSeriesClaimTtl())) {
+                seriesWatermarks.put(seriesNo, endsAt);
+                return new SeriesClaim(seriesNo, endsAt + 1, claimedBy);
+            }
+            seriesWatermarks.remove(seriesNo);
+            endsAt = null;
+        }
+        throw new HidGenerationException(String.format("Could not claim series %s", seriesNo));
+    }
+
+    /**
+     * Keeps the series claimed for another {@code HID_SERIES_CLAIM_TTL} seconds. A run which
+     * takes longer than that renews its claim as it progresses, and stops once the claim was
+     * lost, as another run may be handing out the same candidates.
+     */
+    public void renewSeries(SeriesClaim claim) {
+        if (!generatedHidBlockRepository.renewSeriesWatermark(claim.getSeriesNo(), claim.getClaimedBy(),
+                healthIdProperties.getHidSeriesClaimTtl())) {
+            throw new HidGenerationException(String.format("Claim on series %s expired before the block was generated",
+                    claim.getSeriesNo()));
+        }
+    }
+
+    /**
+     * Moves the watermark of the claimed series to {@code endsAt}, the last candidate the run
+     * consumed, and frees the series.
+     */
+    public void releaseSeries(SeriesClaim claim, long endsAt) {
+        long seriesNo = claim.getSeriesNo();
+        long watermark = Math.max(endsAt, claim.getStartsAt() - 1);
+        if (generatedHidBlockRepository.releaseSeriesWatermark(seriesNo, claim.getClaimedBy(), watermark)) {
+            seriesWatermarks.put(seriesNo, watermark);
+            return;
+        }
+        logger.warn(String.format("Claim on series %s expired before it was released", seriesNo));
+        raiseWatermark(seriesNo, watermark);
+    }
+
+    /**
+     * Moves the watermark of the series up to {@code endsAt} without claiming it. A series
+     * without a watermark is left alone, its generated blocks are looked at when it is first
+     * claimed.
+     */
+    public void raiseWatermark(long seriesNo, long endsAt) {
+        for (int attempt = 0; attempt < MAX_WATERMARK_ATTEMPTS; attempt++) {
+            SeriesWatermark watermark = generatedHidBlockRepository.findSeriesWatermark(seriesNo);
+            if (watermark == null || watermark.getEndsAt() >= endsAt) {
+                seriesWatermarks.remove(seriesNo);
+                return;
+            }
+            if (generatedHidBlockRepository.raiseSeriesWatermark(seriesNo, watermark.getEndsAt(), endsAt)) {
+                seriesWatermarks.put(seriesNo, endsAt);
+                return;
+            }
+        }
+        seriesWatermarks.remove(seriesNo);
+        logger.warn(String.format("Could not raise watermark of series %s to %s", seriesNo, endsAt));
+    }
+
+    /**
+     * The last candidate of the series consumed so far, whether or not the series is claimed.
+     * A series without a watermark has consumed up to the end of its generated blocks.
+     */
+    public long findWatermark(long seriesNo) {
+        Long endsAt = seriesWatermarks.get(seriesNo);
+        if (endsAt != null) return endsAt;
+        SeriesWatermark watermark = generatedHidBlockRepository.findSeriesWatermark(seriesNo);
+        return watermark == null ? identifyEndOfGeneratedBlocks(seriesNo) : watermark.getEndsAt();
+    }
+
+    private long loadUnclaimedWatermark(long seriesNo) {
+        SeriesWatermark watermark = generatedHidBlockRepository.findSeriesWatermark(seriesNo);
+        if (watermark == null) {
+            long endsAt = identifyEndOfGeneratedBlocks(seriesNo);
+            if (generatedHidBlockRepository.createSeriesWatermark(seriesNo, endsAt)) {
+                return endsAt;
+            }
+            watermark = generatedHidBlockRepository.findSeriesWatermark(seriesNo);
+        }
+        if (watermark.isClaimed()) {
+            throw new HidGenerationException(String.format("Series %s is being generated by another request", seriesNo));
+        }
+        return watermark.getEndsAt();
+    }
+
+    private long identifyEndOfGeneratedBlocks(long seriesNo) {
+        long endsAt = seriesNo - 1;
+        List<GeneratedHIDBlock> preGeneratedHIDBlocks = getPreGeneratedHidBlocks(seriesNo);
+        if (preGeneratedHIDBlocks == null) return endsAt;
+        for (GeneratedHIDBlock preGeneratedHIDBlock : preGeneratedHIDBlocks) {
+            if (endsAt < preGeneratedHIDBlock.getEndsAt()) {
+                endsAt = preGeneratedHIDBlock.getEndsAt();
+            }
+        }
+        return endsAt;
+    }
 }
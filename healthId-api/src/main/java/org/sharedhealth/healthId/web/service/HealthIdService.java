@@ -3,28 +3,42 @@ package org.sharedhealth.healthId.web.service;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HealthIdUsage;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.Model.RequesterDetails;
+import org.sharedhealth.healthId.web.Model.SeriesClaim;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
 import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
 import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
 import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
 import org.sharedhealth.healthId.web.security.UserInfo;
+import org.sharedhealth.healthId.web.utils.DigitAutomaton;
 import org.sharedhealth.healthId.web.utils.FileUtil;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
+import org.sharedhealth.healthId.web.utils.HidCapacityCounter;
+import org.sharedhealth.healthId.web.utils.HidFileSink;
+import org.sharedhealth.healthId.web.utils.HidValidityRule;
 import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.Semaphore;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static org.sharedhealth.healthId.web.utils.DateUtil.SIMPLE_DATE_WITH_SECS_FORMAT;
@@ -37,137 +51,567 @@ public class HealthIdService {
 
     private static final int DIGITS_FOR_BLOCK_SEPARATION = 2;
     private static final String DEFAULT_HID_STORAGE_PATH = "/opt/mci/hid";
+    private static final long HID_FILE_SYNC_INTERVAL = 100000;
+    private static final int ORG_GENERATION_CHUNK_SIZE = 1000;
+    private static final double EXISTENCE_FILTER_FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MARK_USED_CONCURRENCY = 64;
+    private static final int ORG_HID_WRITE_CONCURRENCY = 64;
+    private static final long REMAINING_HIDS_REFRESH_INTERVAL = 10000;
+    private static final int FREE_HID_COUNT_SEED_TTL = 3600;
+    public static final String MARKED_USED = "Accepted";
+    public static final String NOT_MARKED_USED = "Rejected";
 
-    private final Pattern mciInvalidHidPattern;
-    private final Pattern orgInvalidHidPattern;
+    private final HidValidityRule mciHidValidityRule;
+    private final HidValidityRule orgHidValidityRule;
+    private final HidCapacityCounter mciCapacityCounter;
+    private final HidCapacityCounter orgCapacityCounter;
     private final HealthIdProperties healthIdProperties;
     private HealthIdRepository healthIdRepository;
     private LuhnChecksumGenerator checksumGenerator;
     private GeneratedHidBlockService generatedHidBlockService;
+    private HidReservoir hidReservoir;
+    private HidRangeAllocator hidRangeAllocator;
+    private final ParallelHidGenerator parallelHidGenerator = new ParallelHidGenerator();
+    private volatile Long remainingHIDs;
+    private volatile boolean freeHidCountSeeded;
 
     @Autowired
     public HealthIdService(HealthIdProperties healthIdProperties, HealthIdRepository healthIdRepository,
-                           LuhnChecksumGenerator checksumGenerator, GeneratedHidBlockService generatedHidBlockService) {
+                           LuhnChecksumGenerator checksumGenerator, GeneratedHidBlockService generatedHidBlockService,
+                           HidReservoir hidReservoir, HidRangeAllocator hidRangeAllocator) {
         this.healthIdProperties = healthIdProperties;
         this.healthIdRepository = healthIdRepository;
         this.checksumGenerator = checksumGenerator;
         this.generatedHidBlockService = generatedHidBlockService;
-        this.mciInvalidHidPattern = Pattern.compile(healthIdProperties.getMciInvalidHidPattern());
-        this.orgInvalidHidPattern = Pattern.compile(healthIdProperties.getOtherOrgInvalidHidPattern());
+        this.hidReservoir = hidReservoir;
+        this.hidRangeAllocator = hidRangeAllocator;
+        this.mciHidValidityRule = HidValidityRule.compile(healthIdProperties.getMciInvalidHidPattern());
+        this.orgHidValidityRule = HidValidityRule.compile(healthIdProperties.getOtherOrgInvalidHidPattern());
+        this.mciCapacityCounter = createCapacityCounter(mciHidValidityRule);
+        this.orgCapacityCounter = createCapacityCounter(orgHidValidityRule);
     }
 
     public GeneratedHIDBlock generateAll(UserInfo userInfo) {
+        return generateAll(userInfo, HidGenerationJob.untracked());
+    }
+
+    /**
+     * Generates the whole configured MCI range. Every series the range covers is claimed for
+     * the run, so that no block is generated in it meanwhile, and its watermark is moved up
+     * to the last HID generated in it when the claim is released.
+     */
+    public GeneratedHIDBlock generateAll(UserInfo userInfo, final HidGenerationJob job) {
         Long start = healthIdProperties.getMciStartHid();
         Long end = healthIdProperties.getMciEndHid();
-        long numberOfValidHIDs = 0L;
-        for (long i = start; i <= end; i++) {
-            numberOfValidHIDs = saveIfValidMciHID(numberOfValidHIDs, i);
+        List<SeriesClaim> seriesClaims = new ArrayList<>();
+        long lastProcessed = start - 1;
+        try {
+            for (long seriesNo = identifySeriesNo(start); seriesNo <= end; seriesNo = identifySeriesEnd(seriesNo) + 1) {
+                seriesClaims.add(generatedHidBlockService.claimSeries(seriesNo));
+            }
+            ParallelHidGenerator.RangeResult result = healthIdProperties.isRangeAllocation()
+                    ? recordMciRange(start, end, job)
+                    : generateMciRangeInParallel(start, end, job);
+            lastProcessed = result.getLastProcessed();
+            return saveGeneratedBlock(start, lastProcessed, result.getValidHIDs(),
+                    healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+        } finally {
+            for (SeriesClaim seriesClaim : seriesClaims) {
+                long seriesEnd = identifySeriesEnd(seriesClaim.getSeriesNo());
+                generatedHidBlockService.releaseSeries(seriesClaim, Math.min(lastProcessed, seriesEnd));
+            }
         }
-        return saveGeneratedBlock(start, end, numberOfValidHIDs, healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+    }
+
+    private ParallelHidGenerator.RangeResult generateMciRangeInParallel(long start, long end, final HidGenerationJob job) {
+        final Semaphore writeWindow = new Semaphore(healthIdProperties.getHidWriteConcurrency());
+        return parallelHidGenerator.generate(start, end, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                return generateMciRange(from, to, createMciHidWriter(writeWindow, job), job);
+            }
+        }, createPartitioner(mciCapacityCounter));
+    }
+
+    private ParallelHidGenerator.RangeResult generateMciRange(long from, long to, MciHidWriter writer, HidGenerationJob job) {
+        if (mciCapacityCounter != null && mciCapacityCounter.countValid(from, to) == 0) {
+            job.candidatesScanned(to - from + 1);
+            return new ParallelHidGenerator.RangeResult(from, to, to, 0);
+        }
+        long i;
+        for (i = from; i <= to && !job.isCancelled(); i++) {
+            saveIfValidMciHID(writer, i);
+        }
+        job.candidatesScanned(i - from);
+        return new ParallelHidGenerator.RangeResult(from, to, i - 1, writer.awaitCompletion());
+    }
+
+    private MciHidWriter createMciHidWriter(Semaphore writeWindow, HidGenerationJob job) {
+        return new MciHidWriter(healthIdRepository, writeWindow, healthIdProperties.getHidWriteRetries(), job);
     }
 
     public GeneratedHIDBlock generateBlock(long start, long totalHIDs, UserInfo userInfo) {
-        long numberOfValidHIDs = 0L;
+        return generateBlock(start, totalHIDs, userInfo, HidGenerationJob.untracked());
+    }
+
+    /**
+     * Generates the next {@code totalHIDs} valid HIDs of the series. When the rule can be
+     * counted, the end of the block is known up front and the block is generated in
+     * partitions holding equal numbers of valid HIDs. Otherwise candidates are walked one by
+     * one until enough valid ones were found.
+     */
+    public GeneratedHIDBlock generateBlock(long start, long totalHIDs, UserInfo userInfo, HidGenerationJob job) {
         long seriesNo = identifySeriesNo(start);
-        long startForBlock = identifyStartInSeries(seriesNo);
+        SeriesClaim seriesClaim = generatedHidBlockService.claimSeries(seriesNo);
+        long startForBlock = seriesClaim.getStartsAt();
+        long end = startForBlock - 1;
+        try {
+            ensureCapacity(mciCapacityCounter, seriesNo, startForBlock, totalHIDs);
+            ParallelHidGenerator.RangeResult result;
+            if (healthIdProperties.isRangeAllocation()) {
+                long blockEnd = mciCapacityCounter == null
+                        ? findBlockEndByScanning(seriesNo, startForBlock, totalHIDs)
+                        : identifyBlockEnd(seriesNo, startForBlock, totalHIDs);
+                result = recordMciRange(startForBlock, blockEnd, job);
+            } else {
+                result = mciCapacityCounter == null
+                        ? generateMciBlockSequentially(seriesNo, startForBlock, totalHIDs, job)
+                        : generateMciRangeInParallel(startForBlock, identifyBlockEnd(seriesNo, startForBlock, totalHIDs), job);
+            }
+            end = result.getLastProcessed();
+            return saveGeneratedBlock(startForBlock, end, result.getValidHIDs(), healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+        } finally {
+            generatedHidBlockService.releaseSeries(seriesClaim, end);
+        }
+    }
+
+    private long identifyBlockEnd(long seriesNo, long startForBlock, long totalHIDs) {
+        if (totalHIDs <= 0) return startForBlock - 1;
+        ValidHidIndex validHidIndex = new ValidHidIndex(mciCapacityCounter, seriesNo, identifySeriesEnd(seriesNo));
+        return validHidIndex.select(validHidIndex.rank(startForBlock) + totalHIDs - 1);
+    }
+
+    private long findBlockEndByScanning(long seriesNo, long startForBlock, long totalHIDs) {
+        long numberOfValidHIDs = 0L;
+        long possibleHID = startForBlock;
+        for (; numberOfValidHIDs < totalHIDs && isPartOfSeries(seriesNo, possibleHID); possibleHID++) {
+            if (mciHidValidityRule.isValid(possibleHID)) {
+                numberOfValidHIDs++;
+            }
+        }
+        return possibleHID - 1;
+    }
+
+    /**
+     * In range allocation mode a block of candidates is only recorded as a range. Its HIDs
+     * are derived from the range when they are handed out.
+     */
+    private ParallelHidGenerator.RangeResult recordMciRange(long from, long to, HidGenerationJob job) {
+        long validHIDs = 0L;
+        if (mciCapacityCounter != null) {
+            validHIDs = mciCapacityCounter.countValid(from, to);
+        } else {
+            for (long candidate = from; candidate <= to; candidate++) {
+                if (mciHidValidityRule.isValid(candidate)) validHIDs++;
+            }
+        }
+        if (validHIDs > 0) {
+            hidRangeAllocator.addRange(from, to);
+        }
+        job.candidatesScanned(to - from + 1);
+        job.hidsWritten(validHIDs);
+        return new ParallelHidGenerator.RangeResult(from, to, to, validHIDs);
+    }
+
+    private ParallelHidGenerator.RangeResult generateMciBlockSequentially(long seriesNo, long startForBlock, long totalHIDs, HidGenerationJob job) {
+        long numberOfValidHIDs = 0L;
+        MciHidWriter writer = createMciHidWriter(new Semaphore(healthIdProperties.getHidWriteConcurrency()), job);
         int i;
-        for (i = 0; numberOfValidHIDs < totalHIDs; i++) {
+        for (i = 0; numberOfValidHIDs < totalHIDs && !job.isCancelled(); i++) {
             long possibleHID = startForBlock + i;
             if (!isPartOfSeries(seriesNo, possibleHID)) {
                 break;
             }
-            numberOfValidHIDs = saveIfValidMciHID(numberOfValidHIDs, possibleHID);
+            if (saveIfValidMciHID(writer, possibleHID)) {
+                numberOfValidHIDs++;
+            }
+            job.candidatesScanned(1);
         }
         long end = startForBlock + i - 1;
-        return saveGeneratedBlock(startForBlock, end, numberOfValidHIDs, healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+        return new ParallelHidGenerator.RangeResult(startForBlock, end, end, writer.awaitCompletion());
     }
 
     public GeneratedHIDBlock generateBlockForOrg(long start, long totalHIDs, String orgCode, UserInfo userInfo) throws HidGenerationException {
+        return generateBlockForOrg(start, totalHIDs, orgCode, userInfo, HidGenerationJob.untracked());
+    }
+
+    public GeneratedHIDBlock generateBlockForOrg(long start, long totalHIDs, String orgCode, UserInfo userInfo,
+                                                 HidGenerationJob job) throws HidGenerationException {
         UUID generatedAt = timeBased();
         long numberOfValidHIDs = 0L;
         long seriesNo = identifySeriesNo(start);
-        long startForBlock = identifyStartInSeries(seriesNo);
+        long seriesEnd = identifySeriesEnd(seriesNo);
         File hidFile = createFileForOrg(orgCode);
         if (hidStoragePathExists(hidFile)) {
             logger.info(String.format("Saving HIDs to file %s ", hidFile.getAbsolutePath()));
-            long i;
-            for (i = 0; numberOfValidHIDs < totalHIDs; i++) {
-                long possibleHID = startForBlock + i;
-                if (!isPartOfSeries(seriesNo, possibleHID)) {
-                    break;
+            SeriesClaim seriesClaim = generatedHidBlockService.claimSeries(seriesNo);
+            long startForBlock = seriesClaim.getStartsAt();
+            long next = startForBlock;
+            try {
+                ensureCapacity(orgCapacityCounter, seriesNo, startForBlock, totalHIDs);
+                HidExistenceIndex existenceIndex = new HidExistenceIndex(generatedHidBlockService.getPreGeneratedHidBlocks(seriesNo),
+                        generatedHidBlockService.findOutOfRangeFilter(seriesNo));
+                HidFileSink hidFileSink = openHidFileSink(hidFile);
+                boolean written = false;
+                try {
+                    while (numberOfValidHIDs < totalHIDs && next <= seriesEnd && !job.isCancelled()) {
+                        long chunkStart = next;
+                        long wanted = Math.min(ORG_GENERATION_CHUNK_SIZE, totalHIDs - numberOfValidHIDs);
+                        List<String> candidates = new ArrayList<>();
+                        List<String> possiblyExisting = new ArrayList<>();
+                        for (; candidates.size() < wanted && next <= seriesEnd; next++) {
+                            if (orgHidValidityRule.isValid(next)) {
+                                String newHealthId = String.valueOf(next) + checksumGenerator.generate(withoutLeadingDigit(next));
+                                candidates.add(newHealthId);
+                                if (existenceIndex.mightExist(next)) {
+                                    possiblyExisting.add(newHealthId);
+                                }
+                            }
+                        }
+                        Set<String> existing = possiblyExisting.isEmpty() ? Collections.<String>emptySet()
+                                : healthIdRepository.findExistingOrgHealthIds(possiblyExisting);
+                        long savedHIDs = saveOrgHIDs(orgCode, candidates, existing, hidFileSink, generatedAt);
+                        numberOfValidHIDs += savedHIDs;
+                        job.candidatesScanned(next - chunkStart);
+                        job.hidsWritten(savedHIDs);
+                        generatedHidBlockService.renewSeries(seriesClaim);
+                    }
+                    written = true;
+                } finally {
+                    if (!written) abortHidFileSink(hidFileSink);
                 }
-                numberOfValidHIDs = saveIfValidOrgHID(orgCode, numberOfValidHIDs, hidFile, possibleHID, generatedAt);
+                closeHidFileSink(hidFileSink);
+                return saveGeneratedBlock(startForBlock, next - 1, numberOfValidHIDs, orgCode, userInfo, generatedAt);
+            } finally {
+                generatedHidBlockService.releaseSeries(seriesClaim, next - 1);
             }
-            return saveGeneratedBlock(startForBlock, startForBlock + i - 1, numberOfValidHIDs, orgCode, userInfo, generatedAt);
         } else {
             logger.info(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
             throw new HidGenerationException(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
         }
     }
 
+    /**
+     * The first MCI series between {@code MCI_START_HID} and {@code MCI_END_HID} with at least
+     * {@code totalHIDs} valid HIDs left past its watermark, or null when no series has. When
+     * the rule cannot be counted, the first series with candidates left is taken.
+     */
+    public Long findMciSeriesWithCapacity(long totalHIDs) {
+        long start = healthIdProperties.getMciStartHid();
+        long end = healthIdProperties.getMciEndHid();
+        for (long seriesNo = identifySeriesNo(start); seriesNo <= end; seriesNo = identifySeriesEnd(seriesNo) + 1) {
+            long seriesEnd = Math.min(identifySeriesEnd(seriesNo), end);
+            long from = Math.max(generatedHidBlockService.findWatermark(seriesNo) + 1, start);
+            if (from > seriesEnd) continue;
+            if (mciCapacityCounter == null || mciCapacityCounter.countValid(from, seriesEnd) >= totalHIDs) {
+                return seriesNo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The number of valid HIDs in {@code [from, to]}, under the MCI rules or under the rules
+     * for other organisations. Counted without enumerating the range.
+     */
+    public long countValidHIDs(long from, long to, boolean forMci) {
+        HidCapacityCounter counter = forMci ? mciCapacityCounter : orgCapacityCounter;
+        if (counter == null) {
+            throw new HidGenerationException("Valid HIDs cannot be counted for the configured invalid HID pattern");
+        }
+        return counter.countValid(from, to);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        parallelHidGenerator.shutdown();
+    }
+
     private boolean hidStoragePathExists(File hidFile) {
         File parentFile = hidFile.getParentFile();
         return parentFile.exists();
     }
 
-    public synchronized List<MciHealthId> getNextBlock(final String mciCode, Integer blockSize) {
-        List<MciHealthId> mciHealthIds = healthIdRepository.getNextBlock(blockSize);
-        if (CollectionUtils.isEmpty(mciHealthIds)) throw new HealthIdExhaustedException();
-        List<OrgHealthId> orgHealthIds = new ArrayList<>();
-        UUID generatedAt = timeBased();
-        for (MciHealthId mciHealthId : mciHealthIds) {
-            orgHealthIds.add(new OrgHealthId(mciHealthId.getHid(), mciCode, generatedAt));
-        }
-        healthIdRepository.saveOrgHidAndDeleteMciHid(mciHealthIds, orgHealthIds);
-        return mciHealthIds;
+    /**
+     * Allocates the next block of MCI HIDs once subscribed to, emitting
+     * {@link HealthIdExhaustedException} when none are left. In range allocation mode the block
+     * is taken from the ranges first, on an I/O thread since moving a range cursor is a
+     * blocking conditional update, and topped up from the reservoir. The HIDs of every block
+     * are added to the count of allocated HIDs the replenisher forecasts from.
+     */
+    public Observable<List<MciHealthId>> getNextBlock(final String mciCode, final Integer blockSize) {
+        Observable<List<MciHealthId>> fromRanges = healthIdProperties.isRangeAllocation()
+                ? allocateFromRanges(mciCode, blockSize)
+                : Observable.<List<MciHealthId>>just(new ArrayList<MciHealthId>());
+        return fromRanges.concatMap(new Func1<List<MciHealthId>, Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call(final List<MciHealthId> fromRanges) {
+                if (fromRanges.size() >= blockSize) return Observable.just(fromRanges);
+                return hidReservoir.nextBlock(mciCode, blockSize - fromRanges.size()).map(new Func1<List<MciHealthId>, List<MciHealthId>>() {
+                    @Override
+                    public List<MciHealthId> call(List<MciHealthId> fromReservoir) {
+                        List<MciHealthId> mciHealthIds = new ArrayList<>(fromRanges);
+                        mciHealthIds.addAll(fromReservoir);
+                        return mciHealthIds;
+                    }
+                });
+            }
+        }).concatMap(new Func1<List<MciHealthId>, Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call(List<MciHealthId> mciHealthIds) {
+                if (CollectionUtils.isEmpty(mciHealthIds)) return Observable.error(new HealthIdExhaustedException());
+                return countAllocated(mciHealthIds);
+            }
+        });
     }
 
-    public Observable<Boolean> markOrgHealthIdUsed(String healthId, final UUID usedAt) {
-        Observable<OrgHealthId> orgHealthId = healthIdRepository.findOrgHealthId(healthId);
-        return orgHealthId.concatMap(new Func1<OrgHealthId, Observable<Boolean>>() {
+    private Observable<List<MciHealthId>> countAllocated(final List<MciHealthId> mciHealthIds) {
+        return healthIdRepository.countAllocatedHIDs(mciHealthIds.size()).map(new Func1<Long, List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call(Long counted) {
+                return mciHealthIds;
+            }
+        });
+    }
+
+    private Observable<List<MciHealthId>> allocateFromRanges(final String mciCode, final int blockSize) {
+        return Observable.defer(new Func0<Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call() {
+                return Observable.just(hidRangeAllocator.nextBlock(mciCode, blockSize));
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Marks the org HID used in a single conditional update. Emits false when it is used
+     * already, so that it is never handed to two patients.
+     */
+    public Observable<Boolean> markOrgHealthIdUsed(final String healthId, final UUID usedAt) {
+        logger.debug(String.format("Marking %s used", healthId));
+        return healthIdRepository.markOrgHealthIdUsed(healthId, usedAt).concatMap(new Func1<Boolean, Observable<Boolean>>() {
             @Override
-            public Observable<Boolean> call(OrgHealthId orgHealthId) {
-                if (null == orgHealthId) {
+            public Observable<Boolean> call(Boolean marked) {
+                if (marked != null) return Observable.just(marked);
+                if (healthIdProperties.isRangeAllocation()) return markRangeAllocatedHealthIdUsed(healthId, usedAt);
+                return Observable.error(new HealthIdNotFoundException("Health Id not allocated to any Organization."));
+            }
+        });
+    }
+
+    private Observable<Boolean> markRangeAllocatedHealthIdUsed(final String healthId, final UUID usedAt) {
+        return Observable.defer(new Func0<Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call() {
+                OrgHealthId allocated = hidRangeAllocator.findAllocated(healthId);
+                if (allocated == null) {
                     return Observable.error(new HealthIdNotFoundException("Health Id not allocated to any Organization."));
                 }
-                orgHealthId.markUsed(usedAt);
-                logger.debug(String.format("Marking %s used for Organization %s", orgHealthId.getHealthId(), orgHealthId.getAllocatedFor()));
-                return healthIdRepository.saveOrUpdateOrgHealthId(orgHealthId);
+                allocated.markUsed(usedAt);
+                return healthIdRepository.saveUsedOrgHealthIdIfAbsent(allocated);
+            }
+        }).concatMap(new Func1<Boolean, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(Boolean inserted) {
+                if (inserted) return Observable.just(true);
+                return healthIdRepository.markOrgHealthIdUsed(healthId, usedAt).map(new Func1<Boolean, Boolean>() {
+                    @Override
+                    public Boolean call(Boolean marked) {
+                        return Boolean.TRUE.equals(marked);
+                    }
+                });
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Marks each HID used as {@link #markOrgHealthIdUsed} would, keeping at most
+     * {@code MARK_USED_CONCURRENCY} of them in flight, and emits what happened to every HID
+     * in the order they were given.
+     */
+    public Observable<Map<String, String>> markOrgHealthIdsUsed(final List<HealthIdUsage> usages) {
+        Observable<Observable<Map.Entry<String, String>>> results = Observable.from(usages).map(
+                new Func1<HealthIdUsage, Observable<Map.Entry<String, String>>>() {
+                    @Override
+                    public Observable<Map.Entry<String, String>> call(HealthIdUsage usage) {
+                        return markUsageUsed(usage);
+                    }
+                });
+        return Observable.merge(results, MARK_USED_CONCURRENCY)
+                .toMap(new Func1<Map.Entry<String, String>, String>() {
+                    @Override
+                    public String call(Map.Entry<String, String> result) {
+                        return result.getKey();
+                    }
+                }, new Func1<Map.Entry<String, String>, String>() {
+                    @Override
+                    public String call(Map.Entry<String, String> result) {
+                        return result.getValue();
+                    }
+                })
+                .map(new Func1<Map<String, String>, Map<String, String>>() {
+                    @Override
+                    public Map<String, String> call(Map<String, String> resultsByHealthId) {
+                        Map<String, String> orderedResults = new LinkedHashMap<>();
+                        for (HealthIdUsage usage : usages) {
+                            orderedResults.put(usage.getHealthId(), resultsByHealthId.get(usage.getHealthId()));
+                        }
+                        return orderedResults;
+                    }
+                });
+    }
+
+    private Observable<Map.Entry<String, String>> markUsageUsed(final HealthIdUsage usage) {
+        final String healthId = usage.getHealthId();
+        return Observable.defer(new Func0<Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call() {
+                return markOrgHealthIdUsed(healthId, UUID.fromString(usage.getUsedAt()));
+            }
+        }).map(new Func1<Boolean, Map.Entry<String, String>>() {
+            @Override
+            public Map.Entry<String, String> call(Boolean marked) {
+                return new AbstractMap.SimpleImmutableEntry<>(healthId, marked ? MARKED_USED : NOT_MARKED_USED);
+            }
+        }).onErrorReturn(new Func1<Throwable, Map.Entry<String, String>>() {
+            @Override
+            public Map.Entry<String, String> call(Throwable error) {
+                logger.debug(String.format("Could not mark %s used: %s", healthId, error.getMessage()));
+                return new AbstractMap.SimpleImmutableEntry<>(healthId, error.getMessage());
             }
         });
     }
 
-    private long saveIfValidMciHID(long numberOfValidHids, long currentNumber) {
-        String possibleHid = String.valueOf(currentNumber);
-        if (!mciInvalidHidPattern.matcher(possibleHid).find()) {
-            numberOfValidHids += 1;
-            String newHealthId = possibleHid + checksumGenerator.generate(possibleHid.substring(1));
-            healthIdRepository.saveMciHealthId(new MciHealthId(newHealthId));
+    private boolean saveIfValidMciHID(MciHidWriter writer, long currentNumber) {
+        if (!mciHidValidityRule.isValid(currentNumber)) {
+            return false;
         }
-        return numberOfValidHids;
+        String newHealthId = String.valueOf(currentNumber) + checksumGenerator.generate(withoutLeadingDigit(currentNumber));
+        writer.write(newHealthId);
+        return true;
     }
 
-    private long saveIfValidOrgHID(String orgCode, long numberOfValidHIDs, File hidFile, long possibleHID, UUID generatedAt) {
-        String possibleHid = String.valueOf(possibleHID);
-        if (!orgInvalidHidPattern.matcher(possibleHid).find()) {
-            String newHealthId = possibleHid + checksumGenerator.generate(possibleHid.substring(1));
-            if (shouldSaveHID(newHealthId)) {
-                try {
-                    numberOfValidHIDs += 1;
-                    FileUtil.addHidToFile(hidFile, newHealthId);
-                    logger.debug(String.format("Saving healthid %s used for Organization %s", newHealthId, orgCode));
-                    healthIdRepository.saveOrUpdateOrgHealthId(new OrgHealthId(newHealthId, orgCode, generatedAt)).toBlocking().first();
-                } catch (IOException e) {
-                    logger.info(e.getMessage(), e);
-                    throw new HidGenerationException(e.getMessage());
+    /**
+     * Saves the candidates which are not known to exist, keeping at most
+     * {@code ORG_HID_WRITE_CONCURRENCY} conditional inserts in flight, and writes those it
+     * could save to the file in candidate order. A candidate found saved by another run after
+     * all is skipped.
+     */
+    private long saveOrgHIDs(final String orgCode, List<String> candidates, Set<String> existing, HidFileSink hidFileSink, UUID generatedAt) {
+        List<Observable<String>> inserts = new ArrayList<>();
+        for (final String newHealthId : candidates) {
+            if (existing.contains(newHealthId)) {
+                continue;
+            }
+            logger.debug(String.format("Saving healthid %s used for Organization %s", newHealthId, orgCode));
+            inserts.add(healthIdRepository.saveOrgHealthIdIfAbsent(new OrgHealthId(newHealthId, orgCode, generatedAt)).filter(new Func1<Boolean, Boolean>() {
+                @Override
+                public Boolean call(Boolean inserted) {
+                    if (!inserted) logger.warn(String.format("HID %s was saved by another run, it is skipped", newHealthId));
+                    return inserted;
+                }
+            }).map(new Func1<Boolean, String>() {
+                @Override
+                public String call(Boolean inserted) {
+                    return newHealthId;
                 }
+            }));
+        }
+        Set<String> saved = new HashSet<>(Observable.merge(Observable.from(inserts), ORG_HID_WRITE_CONCURRENCY).toList().toBlocking().single());
+        long savedHIDs = 0;
+        for (String newHealthId : candidates) {
+            if (!saved.contains(newHealthId)) {
+                continue;
+            }
+            try {
+                hidFileSink.write(newHealthId);
+                savedHIDs += 1;
+            } catch (IOException e) {
+                logger.info(e.getMessage(), e);
+                throw new HidGenerationException(e.getMessage());
             }
         }
-        return numberOfValidHIDs;
+        return savedHIDs;
     }
 
-    private boolean shouldSaveHID(String newHealthId) {
-        return healthIdRepository.findOrgHealthId(newHealthId).toBlocking().first() == null;
+    private HidFileSink openHidFileSink(File hidFile) {
+        try {
+            return new HidFileSink(hidFile, HID_FILE_SYNC_INTERVAL);
+        } catch (IOException e) {
+            logger.info(e.getMessage(), e);
+            throw new HidGenerationException(e.getMessage());
+        }
+    }
+
+    private void closeHidFileSink(HidFileSink hidFileSink) {
+        try {
+            hidFileSink.close();
+        } catch (IOException e) {
+            logger.error(String.format("Could not complete HID file %s", hidFileSink.getTarget().getAbsolutePath()), e);
+            throw new HidGenerationException(e.getMessage());
+        }
+    }
+
+    private void abortHidFileSink(HidFileSink hidFileSink) {
+        try {
+            hidFileSink.abort();
+        } catch (IOException e) {
+            logger.error(String.format("Could not drop HID file %s", hidFileSink.getTarget().getAbsolutePath()), e);
+        }
+    }
+
+    static HidCapacityCounter createCapacityCounter(HidValidityRule hidValidityRule) {
+        DigitAutomaton automaton = hidValidityRule.getAutomaton();
+        return automaton == null ? null : new HidCapacityCounter(automaton);
+    }
+
+    /**
+     * Splits ranges into halves holding the same number of valid HIDs, so that clusters of
+     * invalid numbers do not leave some partitions with far fewer HIDs to write than others.
+     */
+    private static ParallelHidGenerator.Partitioner createPartitioner(final HidCapacityCounter counter) {
+        if (counter == null) return ParallelHidGenerator.EQUAL_LENGTHS;
+        return new ParallelHidGenerator.Partitioner() {
+            @Override
+            public long weight(long from, long to) {
+                return counter.countValid(from, to);
+            }
+
+            @Override
+            public long split(long from, long to) {
+                return counter.nthValid(from, counter.countValid(from, to) / 2 - 1);
+            }
+        };
+    }
+
+    /**
+     * Rejects a request for more HIDs than the valid ones left between the start of the block
+     * and the end of its series. Skipped when the rule cannot be counted.
+     */
+    private void ensureCapacity(HidCapacityCounter counter, long seriesNo, long startForBlock, long totalHIDs) {
+        if (counter == null) return;
+        long capacity = counter.countValid(startForBlock, identifySeriesEnd(seriesNo));
+        if (capacity < totalHIDs) {
+            throw new InvalidRequestException(String.format("Only %s valid HIDs remain in series %s. Use another series.", capacity, seriesNo));
+        }
+    }
+
+    static long withoutLeadingDigit(long number) {
+        long power = 1;
+        while (number / power >= 10) {
+            power *= 10;
+        }
+        return number % power;
     }
 
     private File createFileForOrg(String orgCode) {
@@ -198,33 +642,155 @@ public class HealthIdService {
         return identifySeriesNo(possibleHID) == seriesNo;
     }
 
-    private long identifyStartInSeries(long seriesNo) {
-        long endsAt = 0L;
-        List<GeneratedHIDBlock> preGeneratedHIDBlocks = generatedHidBlockService.getPreGeneratedHidBlocks(seriesNo);
-        if (CollectionUtils.isEmpty(preGeneratedHIDBlocks)) {
-            return seriesNo;
+    static long identifySeriesEnd(long seriesNo) {
+        long power = 1;
+        for (int i = DIGITS_FOR_BLOCK_SEPARATION; i < String.valueOf(seriesNo).length(); i++) {
+            power *= 10;
         }
-        for (GeneratedHIDBlock preGeneratedHIDBlock : preGeneratedHIDBlocks) {
-            if (endsAt < preGeneratedHIDBlock.getEndsAt()) {
-                endsAt = preGeneratedHIDBlock.getEndsAt();
-            }
-        }
-        return endsAt + 1;
+        return seriesNo + power - 1;
     }
 
-    private long identifySeriesNo(Long start) {
+    static long identifySeriesNo(Long start) {
         String startAsText = String.valueOf(start);
         String startPrefix = startAsText.substring(0, DIGITS_FOR_BLOCK_SEPARATION);
         String startSuffix = startAsText.substring(DIGITS_FOR_BLOCK_SEPARATION, startAsText.length());
         return Long.parseLong(String.valueOf(startPrefix + startSuffix.replaceAll(".", "0")));
     }
 
-    public Observable<OrgHealthId> findOrgHealthId(String healthId) {
-        return healthIdRepository.findOrgHealthId(healthId);
+    /**
+     * Scans all org HIDs and stores, per series, a Bloom filter of the HIDs which are not
+     * inside any generated block of their series. Needed after HIDs were imported from
+     * outside, so that org generation does not hand them out again. Returns the number of
+     * such HIDs per series.
+     */
+    public Map<Long, Long> rebuildExistenceFilters() {
+        final Map<Long, HidExistenceIndex> generatedRanges = new HashMap<>();
+        final Map<Long, List<Long>> outOfRangeCandidates = new HashMap<>();
+        healthIdRepository.scanOrgHealthIds(new Action1<String>() {
+            @Override
+            public void call(String healthId) {
+                if (!StringUtils.isNumeric(healthId) || healthId.length() < 3 || healthId.length() > 19) {
+                    return;
+                }
+                long candidate = Long.parseLong(healthId) / 10;
+                long seriesNo = identifySeriesNo(candidate);
+                HidExistenceIndex ranges = generatedRanges.get(seriesNo);
+                if (ranges == null) {
+                    ranges = new HidExistenceIndex(generatedHidBlockService.getPreGeneratedHidBlocks(seriesNo), null);
+                    generatedRanges.put(seriesNo, ranges);
+                }
+                if (!ranges.isInGeneratedRange(candidate)) {
+                    List<Long> candidates = outOfRangeCandidates.get(seriesNo);
+                    if (candidates == null) {
+                        candidates = new ArrayList<>();
+                        outOfRangeCandidates.put(seriesNo, candidates);
+                    }
+                    candidates.add(candidate);
+                }
+            }
+        });
+
+        Map<Long, HidBloomFilter> filters = new HashMap<>();
+        Map<Long, Long> entries = new TreeMap<>();
+        for (Map.Entry<Long, List<Long>> series : outOfRangeCandidates.entrySet()) {
+            HidBloomFilter filter = new HidBloomFilter(series.getValue().size(), EXISTENCE_FILTER_FALSE_POSITIVE_PROBABILITY);
+            for (Long candidate : series.getValue()) {
+                filter.put(candidate);
+            }
+            filters.put(series.getKey(), filter);
+            entries.put(series.getKey(), filter.getEntries());
+        }
+        generatedHidBlockService.saveOutOfRangeFilters(filters);
+        logger.info(String.format("Rebuilt HID existence filters, HIDs outside generated blocks per series: %s", entries));
+        return entries;
+    }
+
+    /**
+     * HIDs handed out from a range have no row until they are used, so their allocation is
+     * looked up in the ranges when no row is found.
+     */
+    public Observable<OrgHealthId> findOrgHealthId(final String healthId) {
+        Observable<OrgHealthId> orgHealthId = healthIdRepository.findOrgHealthId(healthId);
+        if (!healthIdProperties.isRangeAllocation()) return orgHealthId;
+        return orgHealthId.map(new Func1<OrgHealthId, OrgHealthId>() {
+            @Override
+            public OrgHealthId call(OrgHealthId orgHealthId) {
+                return orgHealthId != null ? orgHealthId : hidRangeAllocator.findAllocated(healthId);
+            }
+        });
+    }
+
+    /**
+     * Emits the org HIDs found for the given HIDs by their HID; HIDs allocated to nobody are
+     * left out.
+     */
+    public Observable<Map<String, OrgHealthId>> findOrgHealthIds(final Collection<String> healthIds) {
+        Observable<Map<String, OrgHealthId>> orgHealthIds = healthIdRepository.findOrgHealthIds(healthIds);
+        if (!healthIdProperties.isRangeAllocation()) return orgHealthIds;
+        return orgHealthIds.map(new Func1<Map<String, OrgHealthId>, Map<String, OrgHealthId>>() {
+            @Override
+            public Map<String, OrgHealthId> call(Map<String, OrgHealthId> found) {
+                for (String healthId : healthIds) {
+                    if (found.containsKey(healthId)) continue;
+                    OrgHealthId allocated = hidRangeAllocator.findAllocated(healthId);
+                    if (allocated != null) found.put(healthId, allocated);
+                }
+                return found;
+            }
+        });
+    }
+
+    /**
+     * The number of HIDs left to hand out, as counted by the last refresh. It is only counted
+     * on the spot when it has not been refreshed yet.
+     */
+    public Observable<Long> findRemainingHIDs() {
+        return Observable.defer(new Func0<Observable<Long>>() {
+            @Override
+            public Observable<Long> call() {
+                Long remaining = remainingHIDs;
+                if (remaining == null) {
+                    remaining = countRemainingHIDs();
+                    remainingHIDs = remaining;
+                }
+                return Observable.just(remaining);
+            }
+        });
+    }
+
+    @Scheduled(fixedDelay = REMAINING_HIDS_REFRESH_INTERVAL)
+    public void refreshRemainingHIDs() {
+        try {
+            if (!freeHidCountSeeded) {
+                freeHidCountSeeded = healthIdRepository.seedFreeHIDCount(healthIdProperties.getHidReservoirNodeId(),
+                        FREE_HID_COUNT_SEED_TTL);
+            }
+            remainingHIDs = countRemainingHIDs();
+        } catch (Exception e) {
+            logger.error("Could not refresh the number of remaining HIDs", e);
+        }
+    }
+
+    /**
+     * Whether the free HID count has been seeded from the tables. Until then it only holds the
+     * HIDs generated and allocated since the count was introduced.
+     */
+    public boolean isFreeHidCountSeeded() {
+        return freeHidCountSeeded;
     }
 
-    public Observable<Integer> findRemainingHIDs() {
-        int threshold = healthIdProperties.getHealthIdWarningThreshold();
-        return healthIdRepository.findRemainingHIDs(threshold);
+    /**
+     * The free HIDs as counted when they are generated and allocated, and in range allocation
+     * mode the HIDs left in the open ranges. Those are only counted up to the warning threshold
+     * when the validity rule cannot be counted without walking the candidates. Never seeds
+     * the free HID count.
+     */
+    public long countRemainingHIDs() {
+        Long free = healthIdRepository.findFreeHIDCount().toBlocking().first();
+        long remaining = free == null ? 0 : free;
+        if (healthIdProperties.isRangeAllocation()) {
+            remaining += hidRangeAllocator.countRemaining(healthIdProperties.getHealthIdWarningThreshold());
+        }
+        return remaining;
     }
 }
@@ -0,0 +1,86 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tells for a candidate of a series whether its HID might already have been handed out.
+ * HIDs are only created inside generated blocks, so the merged block ranges of the series
+ * cover everything that was generated here. HIDs which got into the system otherwise are
+ * covered by the persisted Bloom filter of the series. Without a filter every candidate
+ * might exist.
+ * <p>
+ * The ranges are kept as sorted intervals rather than a bitmap: blocks are contiguous, so a
+ * few intervals describe a series exactly where a bitmap would need a bit per candidate.
+ */
+public class HidExistenceIndex {
+    private final long[] begins;
+    private final long[] ends;
+    private final HidBloomFilter outOfRangeFilter;
+
+    public HidExistenceIndex(List<GeneratedHIDBlock> generatedBlocks, HidBloomFilter outOfRangeFilter) {
+        this.outOfRangeFilter = outOfRangeFilter;
+        List<long[]> ranges = mergeRanges(generatedBlocks);
+        this.begins = new long[ranges.size()];
+        this.ends = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            begins[i] = ranges.get(i)[0];
+            ends[i] = ranges.get(i)[1];
+        }
+    }
+
+    public boolean mightExist(long candidate) {
+        return isInGeneratedRange(candidate) || outOfRangeFilter == null || outOfRangeFilter.mightContain(candidate);
+    }
+
+    public boolean isInGeneratedRange(long candidate) {
+        int low = 0;
+        int high = begins.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (candidate < begins[mid]) {
+                high = mid - 1;
+            } else if (candidate > ends[mid]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasOutOfRangeFilter() {
+        return outOfRangeFilter != null;
+    }
+
+    private static List<long[]> mergeRanges(List<GeneratedHIDBlock> generatedBlocks) {
+        List<long[]> ranges = new ArrayList<>();
+        if (generatedBlocks == null) return ranges;
+        for (GeneratedHIDBlock block : generatedBlocks) {
+            if (block.getBeginsAt() != null && block.getEndsAt() != null && block.getBeginsAt() <= block.getEndsAt()) {
+                ranges.add(new long[]{block.getBeginsAt(), block.getEndsAt()});
+            }
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] range1, long[] range2) {
+                return Long.compare(range1[0], range2[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
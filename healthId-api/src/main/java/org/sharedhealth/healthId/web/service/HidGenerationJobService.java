@@ -0,0 +1,157 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.security.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Runs HID generation requests in the background on a dedicated bounded executor, so that
+ * a request only has to register a job and can poll it for progress afterwards.
+ */
+@Component
+public class HidGenerationJobService {
+    private static final Logger logger = LoggerFactory.getLogger(HidGenerationJobService.class);
+
+    private static final long FINISHED_JOB_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final ConcurrentMap<UUID, HidGenerationJob> jobs = new ConcurrentHashMap<>();
+    private HealthIdService healthIdService;
+    private HealthIdProperties healthIdProperties;
+    private TaskExecutor executor;
+
+    @Autowired
+    public HidGenerationJobService(HealthIdService healthIdService, HealthIdProperties healthIdProperties,
+                                   @Qualifier("HidGenerationExecutor") TaskExecutor executor) {
+        this.healthIdService = healthIdService;
+        this.healthIdProperties = healthIdProperties;
+        this.executor = executor;
+    }
+
+    public HidGenerationJob submitGenerateAll(final UserInfo userInfo) {
+        long totalCandidates = healthIdProperties.getMciEndHid() - healthIdProperties.getMciStartHid() + 1;
+        final HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.ALL, healthIdProperties.getMciOrgCode(),
+                healthIdProperties.getMciStartHid(), 0, totalCandidates);
+        return submit(job, new Generation() {
+            @Override
+            public GeneratedHIDBlock run() {
+                return healthIdService.generateAll(userInfo, job);
+            }
+        });
+    }
+
+    public HidGenerationJob submitGenerateBlock(final long start, final long totalHIDs, final UserInfo userInfo) {
+        final HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.MCI_BLOCK, healthIdProperties.getMciOrgCode(),
+                start, totalHIDs, 0);
+        return submit(job, new Generation() {
+            @Override
+            public GeneratedHIDBlock run() {
+                return healthIdService.generateBlock(start, totalHIDs, userInfo, job);
+            }
+        });
+    }
+
+    public HidGenerationJob submitGenerateBlockForOrg(final long start, final long totalHIDs, final String orgCode,
+                                                      final UserInfo userInfo) {
+        final HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.ORG_BLOCK, orgCode, start, totalHIDs, 0);
+        return submit(job, new Generation() {
+            @Override
+            public GeneratedHIDBlock run() {
+                return healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, userInfo, job);
+            }
+        });
+    }
+
+    public HidGenerationJob find(UUID jobId) {
+        HidGenerationJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new HealthIdNotFoundException(String.format("No HID generation job found with id %s", jobId));
+        }
+        return job;
+    }
+
+    public List<HidGenerationJob> findAll() {
+        List<HidGenerationJob> allJobs = new ArrayList<>(jobs.values());
+        Collections.sort(allJobs, new Comparator<HidGenerationJob>() {
+            @Override
+            public int compare(HidGenerationJob job1, HidGenerationJob job2) {
+                return Long.compare(job2.getId().timestamp(), job1.getId().timestamp());
+            }
+        });
+        return allJobs;
+    }
+
+    public HidGenerationJob cancel(UUID jobId) {
+        HidGenerationJob job = find(jobId);
+        if (job.cancel()) {
+            logger.info(String.format("Cancellation requested for HID generation job %s", jobId));
+        }
+        return job;
+    }
+
+    private HidGenerationJob submit(final HidGenerationJob job, final Generation generation) {
+        evictFinishedJobs();
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(job, generation);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            jobs.remove(job.getId());
+            throw new HidGenerationException("Too many HID generation jobs are queued. Try again later.", e);
+        }
+        logger.info(String.format("Queued HID generation job %s of type %s", job.getId(), job.getType()));
+        return job;
+    }
+
+    private void execute(HidGenerationJob job, Generation generation) {
+        job.markRunning();
+        logger.info(String.format("Started HID generation job %s", job.getId()));
+        try {
+            GeneratedHIDBlock generatedHIDBlock = generation.run();
+            job.markFinished(generatedHIDBlock);
+            logger.info(String.format("HID generation job %s finished with status %s. %s", job.getId(), job.getStatus(), job.getMessage()));
+        } catch (Exception e) {
+            logger.error(String.format("HID generation job %s failed", job.getId()), e);
+            job.markFailed(e.getMessage());
+        }
+    }
+
+    private void evictFinishedJobs() {
+        long now = currentTimeMillis();
+        Iterator<HidGenerationJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            HidGenerationJob job = iterator.next();
+            if (job.isFinished() && now - job.getFinishedAtMillis() > FINISHED_JOB_RETENTION_MILLIS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private interface Generation {
+        GeneratedHIDBlock run();
+    }
+}
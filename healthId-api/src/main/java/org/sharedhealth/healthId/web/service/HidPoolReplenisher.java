@@ -0,0 +1,148 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidPoolForecast;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.security.UserInfo;
+import org.sharedhealth.healthId.web.security.UserProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Generates MCI HIDs ahead of demand. Every minute it samples how many HIDs getNextBlock has
+ * handed out across all nodes, derives the allocation rate over the last hour and forecasts
+ * when the free HIDs run out. When that is less than {@code HID_REPLENISHMENT_LEAD_TIME} hours
+ * away, or fewer than {@code HEALTH_ID_WARNING_THRESHOLD} HIDs are left, the next
+ * {@code HID_REPLENISHMENT_CHUNK_SIZE} HIDs are generated in the first MCI series which still
+ * has that many valid HIDs left, so that generation moves on to the next series once one is
+ * exhausted. At most one chunk is generated per run, and a node finding the series claimed by
+ * another run skips its turn. Nothing is generated before the free HID count has been seeded,
+ * as it undercounts the pool until then; seeding is left to {@link HealthIdService}, as it
+ * scans the free HID tables.
+ */
+@Component
+public class HidPoolReplenisher {
+    private static final Logger logger = LoggerFactory.getLogger(HidPoolReplenisher.class);
+    private static final long REPLENISHMENT_INTERVAL = 60000;
+    private static final long RATE_WINDOW = 3600000;
+    private static final double MILLIS_PER_HOUR = 3600000;
+    static final String REPLENISHER_ID = "hid-pool-replenisher";
+
+    private final HealthIdService healthIdService;
+    private final HealthIdRepository healthIdRepository;
+    private final HealthIdProperties healthIdProperties;
+    private final UserInfo replenisher = new UserInfo(REPLENISHER_ID, REPLENISHER_ID, null, 1, true, null,
+            new ArrayList<String>(), new ArrayList<UserProfile>());
+    private final LinkedList<long[]> samples = new LinkedList<>();
+
+    private volatile Long remainingHIDs;
+    private volatile Double allocationRate;
+    private volatile boolean replenishing;
+    private volatile long lastReplenishedAt;
+    private volatile long lastReplenishedHIDs;
+    private volatile long replenishedHIDs;
+    private volatile String lastError;
+
+    @Autowired
+    public HidPoolReplenisher(HealthIdService healthIdService, HealthIdRepository healthIdRepository,
+                              HealthIdProperties healthIdProperties) {
+        this.healthIdService = healthIdService;
+        this.healthIdRepository = healthIdRepository;
+        this.healthIdProperties = healthIdProperties;
+    }
+
+    @Scheduled(fixedDelay = REPLENISHMENT_INTERVAL)
+    public void replenish() {
+        replenish(System.currentTimeMillis());
+    }
+
+    synchronized void replenish(long now) {
+        try {
+            sampleAllocations(now);
+            remainingHIDs = countRemainingHIDs();
+            long chunkSize = healthIdProperties.getHidReplenishmentChunkSize();
+            if (chunkSize <= 0) return;
+            if (!healthIdService.isFreeHidCountSeeded()) {
+                logger.debug("The free HID count is not seeded yet, the MCI HID pool is not replenished");
+                return;
+            }
+            if (!isRunningOut()) return;
+            generateChunk(chunkSize, now);
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            logger.error("Could not replenish the MCI HID pool", e);
+        }
+    }
+
+    public HidPoolForecast getForecast() {
+        return new HidPoolForecast(healthIdProperties.getHidReplenishmentChunkSize() > 0, remainingHIDs, allocationRate,
+                getHoursToExhaustion(), healthIdProperties.getHidReplenishmentLeadTime(),
+                healthIdProperties.getHidReplenishmentChunkSize(), replenishing, lastReplenishedAt, lastReplenishedHIDs,
+                replenishedHIDs, lastError);
+    }
+
+    /**
+     * Keeps the samples of the last hour, and the one before them, so that the rate always
+     * spans at least an hour once the replenisher has run that long.
+     */
+    private void sampleAllocations(long now) {
+        Long allocated = healthIdRepository.findAllocatedHIDCount().toBlocking().first();
+        samples.addLast(new long[]{now, allocated == null ? 0 : allocated});
+        while (samples.size() > 2 && now - samples.get(1)[0] >= RATE_WINDOW) {
+            samples.removeFirst();
+        }
+        long[] oldest = samples.getFirst();
+        long[] latest = samples.getLast();
+        if (latest[0] <= oldest[0]) return;
+        allocationRate = Math.max(0, latest[1] - oldest[1]) * MILLIS_PER_HOUR / (latest[0] - oldest[0]);
+    }
+
+    private long countRemainingHIDs() {
+        return healthIdService.countRemainingHIDs();
+    }
+
+    private Double getHoursToExhaustion() {
+        Long remaining = remainingHIDs;
+        Double rate = allocationRate;
+        if (remaining == null || rate == null || rate <= 0) return null;
+        return remaining / rate;
+    }
+
+    private boolean isRunningOut() {
+        if (remainingHIDs < healthIdProperties.getHealthIdWarningThreshold()) return true;
+        Double hoursToExhaustion = getHoursToExhaustion();
+        return hoursToExhaustion != null && hoursToExhaustion < healthIdProperties.getHidReplenishmentLeadTime();
+    }
+
+    private void generateChunk(long chunkSize, long now) {
+        Long seriesNo = healthIdService.findMciSeriesWithCapacity(chunkSize);
+        if (seriesNo == null) {
+            lastError = String.format("No MCI series up to %d has %d valid HIDs left", healthIdProperties.getMciEndHid(), chunkSize);
+            logger.error(String.format("Could not replenish the MCI HID pool: %s", lastError));
+            return;
+        }
+        replenishing = true;
+        try {
+            GeneratedHIDBlock block = healthIdService.generateBlock(seriesNo, chunkSize, replenisher);
+            lastReplenishedAt = now;
+            lastReplenishedHIDs = block.getTotalHIDs();
+            replenishedHIDs += block.getTotalHIDs();
+            lastError = null;
+            logger.info(String.format("Replenished the MCI HID pool with %d HIDs, %d were left", block.getTotalHIDs(), remainingHIDs));
+            remainingHIDs = countRemainingHIDs();
+        } catch (HidGenerationException e) {
+            lastError = e.getMessage();
+            logger.warn(String.format("Could not replenish the MCI HID pool, another run may hold the series: %s", e.getMessage()));
+        } finally {
+            replenishing = false;
+        }
+    }
+}
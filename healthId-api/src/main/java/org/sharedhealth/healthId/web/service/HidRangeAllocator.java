@@ -0,0 +1,184 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sharedhealth.healthId.web.Model.HidRange;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.repository.HidRangeRepository;
+import org.sharedhealth.healthId.web.utils.HidCapacityCounter;
+import org.sharedhealth.healthId.web.utils.HidValidityRule;
+import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+
+/**
+ * Hands out MCI HIDs from generated ranges of candidates instead of from stored rows. A
+ * block is allocated by recording the allocated span, keyed by the cursor of the range it
+ * starts at, with a conditional insert, and then moving the cursor past it, so no row is
+ * written or deleted per HID. The HIDs of the span are derived again from the validity rule
+ * and the check digit.
+ * <p>
+ * The recorded span is what makes a block allocated: a node finding a span recorded at the
+ * cursor moves the cursor past it itself, so a node which went down in between cannot leave
+ * HIDs handed out without a record, nor hold the range up. Ranges are listed as open until
+ * they are exhausted, so only those are read.
+ */
+@Component
+public class HidRangeAllocator {
+    private static final Logger logger = LoggerFactory.getLogger(HidRangeAllocator.class);
+    private static final int MAX_ADVANCE_ATTEMPTS = 5;
+
+    private final HidRangeRepository hidRangeRepository;
+    private final LuhnChecksumGenerator checksumGenerator;
+    private final HidValidityRule validityRule;
+    private final HidCapacityCounter capacityCounter;
+    private final Random random = new Random();
+
+    @Autowired
+    public HidRangeAllocator(HidRangeRepository hidRangeRepository, LuhnChecksumGenerator checksumGenerator,
+                             HealthIdProperties healthIdProperties) {
+        this.hidRangeRepository = hidRangeRepository;
+        this.checksumGenerator = checksumGenerator;
+        this.validityRule = HidValidityRule.compile(healthIdProperties.getMciInvalidHidPattern());
+        this.capacityCounter = HealthIdService.createCapacityCounter(validityRule);
+    }
+
+    /**
+     * Records {@code [beginsAt, endsAt]} as free candidates, split where it crosses a series.
+     */
+    public void addRange(long beginsAt, long endsAt) {
+        long from = beginsAt;
+        while (from <= endsAt) {
+            long seriesNo = HealthIdService.identifySeriesNo(from);
+            long to = Math.min(endsAt, HealthIdService.identifySeriesEnd(seriesNo));
+            hidRangeRepository.saveRange(seriesNo, from, to);
+            from = to + 1;
+        }
+    }
+
+    /**
+     * Allocates up to {@code blockSize} HIDs to the MCI, starting from a random open range so
+     * that nodes allocating at the same time rarely compete for the same cursor.
+     */
+    public List<MciHealthId> nextBlock(String mciCode, int blockSize) {
+        List<MciHealthId> block = new ArrayList<>();
+        List<HidRange> openRanges = findOpenRanges();
+        if (openRanges.isEmpty()) return block;
+        int first = random.nextInt(openRanges.size());
+        for (int i = 0; i < openRanges.size() && block.size() < blockSize; i++) {
+            HidRange range = openRanges.get((first + i) % openRanges.size());
+            allocateFrom(range, mciCode, blockSize - block.size(), block);
+        }
+        return block;
+    }
+
+    /**
+     * The allocation of a HID which was handed out from a range and has no row of its own
+     * yet, or null.
+     */
+    public OrgHealthId findAllocated(String healthId) {
+        if (!StringUtils.isNumeric(healthId) || healthId.length() < 3 || healthId.length() > 18) return null;
+        long number = Long.parseLong(healthId);
+        long candidate = number / 10;
+        if (!validityRule.isValid(candidate) || checkDigitOf(candidate) != number % 10) return null;
+        return hidRangeRepository.findAllocation(HealthIdService.identifySeriesNo(candidate), candidate, healthId);
+    }
+
+    /**
+     * The number of HIDs left in the open ranges, counted up to {@code threshold} when the
+     * rule cannot be counted without walking the candidates.
+     */
+    public long countRemaining(long threshold) {
+        long remaining = 0;
+        for (HidRange range : findOpenRanges()) {
+            remaining += countValid(range.getNextCandidate(), range.getEndsAt(), threshold - remaining);
+            if (capacityCounter == null && remaining >= threshold) break;
+        }
+        return remaining;
+    }
+
+    private void allocateFrom(HidRange range, String mciCode, int wanted, List<MciHealthId> block) {
+        HidRange current = range;
+        for (int attempt = 0; attempt < MAX_ADVANCE_ATTEMPTS && current != null && !current.isExhausted(); attempt++) {
+            long from = current.getNextCandidate();
+            long to = findLastCandidate(from, current.getEndsAt(), wanted);
+            Long recordedEnd = hidRangeRepository.saveAllocationIfAbsent(current.getSeriesNo(), from, to, mciCode, timeBased());
+            if (recordedEnd == null) {
+                moveCursor(current, from, to + 1);
+                addHealthIds(from, to, block);
+                return;
+            }
+            moveCursor(current, from, recordedEnd + 1);
+            current = hidRangeRepository.findRange(current.getSeriesNo(), current.getBeginsAt());
+        }
+        logger.debug(String.format("Gave up allocating from range %d of series %d", range.getBeginsAt(), range.getSeriesNo()));
+    }
+
+    /**
+     * Moves the cursor past a recorded allocation, unless another node did, and closes the
+     * range once that exhausts it.
+     */
+    private void moveCursor(HidRange range, long from, long next) {
+        if (hidRangeRepository.advanceRange(range, from, next) && next > range.getEndsAt()) {
+            hidRangeRepository.closeRange(range.getSeriesNo(), range.getBeginsAt());
+        }
+    }
+
+    private long findLastCandidate(long from, long endsAt, int wanted) {
+        if (capacityCounter != null) {
+            long last = capacityCounter.nthValid(from, wanted - 1);
+            return last < 0 || last > endsAt ? endsAt : last;
+        }
+        int found = 0;
+        for (long candidate = from; candidate <= endsAt; candidate++) {
+            if (validityRule.isValid(candidate) && ++found == wanted) return candidate;
+        }
+        return endsAt;
+    }
+
+    private long countValid(long from, long to, long limit) {
+        if (capacityCounter != null) return capacityCounter.countValid(from, to);
+        long count = 0;
+        for (long candidate = from; candidate <= to && count < limit; candidate++) {
+            if (validityRule.isValid(candidate)) count++;
+        }
+        return count;
+    }
+
+    private void addHealthIds(long from, long to, List<MciHealthId> block) {
+        for (long candidate = from; candidate <= to; candidate++) {
+            if (validityRule.isValid(candidate)) {
+                block.add(new MciHealthId(String.valueOf(candidate) + checkDigitOf(candidate)));
+            }
+        }
+    }
+
+    private int checkDigitOf(long candidate) {
+        return checksumGenerator.generate(HealthIdService.withoutLeadingDigit(candidate));
+    }
+
+    /**
+     * Closes the listed ranges found exhausted, as the node which exhausted one may have gone
+     * down before closing it.
+     */
+    private List<HidRange> findOpenRanges() {
+        List<HidRange> openRanges = new ArrayList<>();
+        for (HidRange range : hidRangeRepository.findOpenRanges()) {
+            if (range.isExhausted()) {
+                hidRangeRepository.closeRange(range.getSeriesNo(), range.getBeginsAt());
+            } else {
+                openRanges.add(range);
+            }
+        }
+        return openRanges;
+    }
+}
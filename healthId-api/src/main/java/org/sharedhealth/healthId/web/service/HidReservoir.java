@@ -0,0 +1,229 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidAllocationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.utils.HidRingBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+
+/**
+ * Keeps MCI HIDs reserved for this node in memory, so that a block is handed out without
+ * reading the free HIDs first. Whenever fewer than the low watermark are left, the reservoir
+ * is topped up to the high watermark in the background. HIDs are claimed and moved from the
+ * free HIDs into the reservations of the node before they enter the reservoir, so the HIDs
+ * of a node that goes down are neither lost nor handed out twice: they are read back when it
+ * starts again.
+ * <p>
+ * A block is allocated by first writing an entry to the allocation journal of the node. The
+ * entry is then applied: the org HIDs are written and the reservations dropped in unlogged
+ * batches per partition, sent concurrently, and the entry is removed once every write
+ * succeeded. An entry left behind, by failed writes or by a node going down, is applied
+ * again by the replay, once a minute and when the node starts, before the reservations are
+ * read back. A block only goes back into the reservoir when its journal write was rejected;
+ * when the write may have been applied, the block is left to the replay.
+ */
+@Component
+public class HidReservoir {
+    private static final Logger logger = LoggerFactory.getLogger(HidReservoir.class);
+    private static final long JOURNAL_REPLAY_INTERVAL = 60000;
+
+    private final HealthIdRepository healthIdRepository;
+    private final TaskExecutor executor;
+    private final String nodeId;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int claimTtl;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final Object refillLock = new Object();
+    private volatile HidRingBuffer buffer;
+
+    @Autowired
+    public HidReservoir(HealthIdRepository healthIdRepository, HealthIdProperties healthIdProperties,
+                        @Qualifier("HidReservoirExecutor") TaskExecutor executor) {
+        this.healthIdRepository = healthIdRepository;
+        this.executor = executor;
+        this.nodeId = healthIdProperties.getHidReservoirNodeId();
+        this.lowWatermark = healthIdProperties.getHidReservoirLowWatermark();
+        this.highWatermark = Math.max(lowWatermark, healthIdProperties.getHidReservoirHighWatermark());
+        this.claimTtl = healthIdProperties.getHidClaimTtl();
+        this.buffer = new HidRingBuffer(highWatermark);
+    }
+
+    /**
+     * Takes back the HIDs this node had reserved before it went down and fills up the rest.
+     */
+    @PostConstruct
+    public void start() {
+        int replayed = healthIdRepository.replayAllocationJournal(nodeId, 0);
+        if (replayed > 0) {
+            logger.info(String.format("Replayed %d allocations journaled by node %s", replayed, nodeId));
+        }
+        List<MciHealthId> reserved = healthIdRepository.findReservedHealthIds(nodeId);
+        buffer = new HidRingBuffer(Math.max(highWatermark, reserved.size()));
+        enqueue(reserved);
+        if (!reserved.isEmpty()) {
+            logger.info(String.format("Recovered %d HIDs reserved by node %s", reserved.size(), nodeId));
+        }
+        refillIfLow();
+    }
+
+    /**
+     * Allocates up to {@code blockSize} HIDs to the MCI once subscribed to. Fewer are emitted
+     * when the free HIDs run out or other nodes keep claiming the ones read here. A block
+     * served from the reservoir only waits for the allocation writes; when the reservoir
+     * runs short, the HIDs missing are reserved on an I/O thread rather than on the caller's.
+     */
+    public Observable<List<MciHealthId>> nextBlock(final String mciCode, final int blockSize) {
+        return Observable.defer(new Func0<Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call() {
+                List<MciHealthId> polled = toHealthIds(buffer.poll(blockSize));
+                refillIfLow();
+                Observable<List<MciHealthId>> taken = polled.size() == blockSize
+                        ? Observable.just(polled)
+                        : reserveShortfall(polled, blockSize);
+                return taken.concatMap(new Func1<List<MciHealthId>, Observable<List<MciHealthId>>>() {
+                    @Override
+                    public Observable<List<MciHealthId>> call(List<MciHealthId> block) {
+                        return block.isEmpty() ? Observable.just(block) : allocate(mciCode, block);
+                    }
+                });
+            }
+        });
+    }
+
+    @Scheduled(fixedDelay = JOURNAL_REPLAY_INTERVAL)
+    public void replayJournal() {
+        try {
+            int replayed = healthIdRepository.replayAllocationJournal(nodeId, JOURNAL_REPLAY_INTERVAL);
+            if (replayed > 0) {
+                logger.info(String.format("Replayed %d allocations journaled by node %s", replayed, nodeId));
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Could not replay the allocation journal of node %s", nodeId), e);
+        }
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    private Observable<List<MciHealthId>> allocate(String mciCode, final List<MciHealthId> block) {
+        return healthIdRepository.saveOrgHidAndReleaseReservations(nodeId, block, mciCode, timeBased())
+                .map(new Func1<Boolean, List<MciHealthId>>() {
+                    @Override
+                    public List<MciHealthId> call(Boolean applied) {
+                        return block;
+                    }
+                })
+                .doOnError(new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable error) {
+                        if (error instanceof HidAllocationException && !((HidAllocationException) error).mayHaveBeenJournaled()) {
+                            enqueue(block);
+                            return;
+                        }
+                        logger.warn(String.format("Allocation of %d HIDs by node %s may have been journaled, they are left to the journal replay or a restart",
+                                block.size(), nodeId));
+                    }
+                });
+    }
+
+    private Observable<List<MciHealthId>> reserveShortfall(final List<MciHealthId> polled, final int blockSize) {
+        return Observable.defer(new Func0<Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call() {
+                List<MciHealthId> block = new ArrayList<>(polled);
+                block.addAll(reserveNow(blockSize - polled.size()));
+                return Observable.just(block);
+            }
+        }).doOnError(new Action1<Throwable>() {
+            @Override
+            public void call(Throwable error) {
+                enqueue(polled);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private List<MciHealthId> reserveNow(int missing) {
+        synchronized (refillLock) {
+            List<MciHealthId> reserved = toHealthIds(buffer.poll(missing));
+            if (reserved.size() < missing) {
+                reserved.addAll(healthIdRepository.reserveNextBlock(nodeId, missing - reserved.size(), claimTtl));
+            }
+            return reserved;
+        }
+    }
+
+    private void refillIfLow() {
+        if (buffer.size() >= lowWatermark || !refillScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refill();
+                    } finally {
+                        refillScheduled.set(false);
+                    }
+                }
+            });
+        } catch (TaskRejectedException e) {
+            refillScheduled.set(false);
+            logger.warn("Could not schedule a refill of the HID reservoir", e);
+        }
+    }
+
+    private void refill() {
+        try {
+            synchronized (refillLock) {
+                int missing = highWatermark - buffer.size();
+                if (missing <= 0) return;
+                List<MciHealthId> reserved = healthIdRepository.reserveNextBlock(nodeId, missing, claimTtl);
+                enqueue(reserved);
+                logger.debug(String.format("Reserved %d HIDs for node %s", reserved.size(), nodeId));
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Could not refill the HID reservoir of node %s", nodeId), e);
+        }
+    }
+
+    private void enqueue(List<MciHealthId> mciHealthIds) {
+        int rejected = 0;
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            if (!buffer.offer(mciHealthId.getHid())) rejected++;
+        }
+        if (rejected > 0) {
+            logger.warn(String.format("%d HIDs reserved by node %s do not fit the reservoir, they are handed out after a restart",
+                    rejected, nodeId));
+        }
+    }
+
+    private static List<MciHealthId> toHealthIds(List<String> hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>(hids.size());
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return mciHealthIds;
+    }
+}
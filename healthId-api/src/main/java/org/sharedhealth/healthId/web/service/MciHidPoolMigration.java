@@ -0,0 +1,65 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Moves the free HIDs of the legacy MCI HID table into the bucketed pool while the service
+ * keeps handing out blocks. Every second at most {@code HID_POOL_MIGRATION_RATE} HIDs are
+ * moved. HIDs claimed by a node at the time are skipped, so after reaching the end of the
+ * table the migration goes over it once more and only finishes when it finds it empty.
+ */
+@Component
+public class MciHidPoolMigration {
+    private static final Logger logger = LoggerFactory.getLogger(MciHidPoolMigration.class);
+    private static final String MIGRATION_CLAIM = "mci-hid-pool-migration";
+
+    private final HealthIdRepository healthIdRepository;
+    private final HealthIdProperties healthIdProperties;
+    private String lastMovedHid;
+    private long moved;
+    private volatile boolean finished;
+
+    @Autowired
+    public MciHidPoolMigration(HealthIdRepository healthIdRepository, HealthIdProperties healthIdProperties) {
+        this.healthIdRepository = healthIdRepository;
+        this.healthIdProperties = healthIdProperties;
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public synchronized void migrateNextPage() {
+        int rate = healthIdProperties.getHidPoolMigrationRate();
+        if (finished || rate <= 0) return;
+        try {
+            List<MciHealthId> legacyHealthIds = healthIdRepository.findLegacyHealthIds(lastMovedHid, rate);
+            if (legacyHealthIds.isEmpty()) {
+                if (lastMovedHid == null) {
+                    finished = true;
+                    logger.info(String.format("Moved %d HIDs into the MCI HID pool, the legacy table is empty", moved));
+                }
+                lastMovedHid = null;
+                return;
+            }
+            moved += healthIdRepository.moveToPool(legacyHealthIds, MIGRATION_CLAIM, healthIdProperties.getHidClaimTtl());
+            lastMovedHid = legacyHealthIds.get(legacyHealthIds.size() - 1).getHid();
+        } catch (Exception e) {
+            logger.error("Could not move HIDs into the MCI HID pool", e);
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized long getMoved() {
+        return moved;
+    }
+}
@@ -0,0 +1,131 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscriber;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes generated MCI HIDs asynchronously while keeping the number of writes in flight
+ * within a window shared by all writers of a generation run. A writer belongs to a single
+ * thread, {@link #awaitCompletion()} waits for the writes it started.
+ * <p>
+ * Every HID is a partition of its own and is inserted with a lightweight transaction,
+ * so writes are not batched. A failed write is retried before it is counted as failed.
+ */
+public class MciHidWriter {
+    private static final Logger logger = LoggerFactory.getLogger(MciHidWriter.class);
+
+    private final HealthIdRepository healthIdRepository;
+    private final Semaphore window;
+    private final int retries;
+    private final HidGenerationJob job;
+
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong alreadyExisting = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Object lock = new Object();
+    private long pending;
+
+    public MciHidWriter(HealthIdRepository healthIdRepository, Semaphore window, int retries, HidGenerationJob job) {
+        this.healthIdRepository = healthIdRepository;
+        this.window = window;
+        this.retries = retries;
+        this.job = job;
+    }
+
+    public void write(final String hid) {
+        acquire();
+        synchronized (lock) {
+            pending++;
+        }
+        try {
+            save(hid);
+        } catch (RuntimeException e) {
+            done();
+            throw e;
+        }
+    }
+
+    private void save(final String hid) {
+        healthIdRepository.saveMciHealthId(new MciHealthId(hid)).retry(retries).subscribe(new Subscriber<Boolean>() {
+            @Override
+            public void onNext(Boolean inserted) {
+                persisted.incrementAndGet();
+                job.hidsWritten(1);
+                if (!inserted) {
+                    alreadyExisting.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                done();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                failed.incrementAndGet();
+                job.hidsFailed(1);
+                logger.error(String.format("Could not save HID %s after %s retries", hid, retries), e);
+                done();
+            }
+        });
+    }
+
+    /**
+     * Waits until every write started by this writer has either succeeded or failed, and
+     * returns the number of HIDs which are now in the pool.
+     */
+    public long awaitCompletion() {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HidGenerationException("Interrupted while waiting for HIDs to be saved", e);
+                }
+            }
+        }
+        if (failed.get() > 0) {
+            logger.warn(String.format("%s HIDs could not be saved", failed.get()));
+        }
+        return persisted.get();
+    }
+
+    public long getPersisted() {
+        return persisted.get();
+    }
+
+    public long getAlreadyExisting() {
+        return alreadyExisting.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void acquire() {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HidGenerationException("Interrupted while waiting to save HIDs", e);
+        }
+    }
+
+    private void done() {
+        window.release();
+        synchronized (lock) {
+            pending--;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.InvalidRequestException;
+import org.sharedhealth.healthId.web.repository.NextBlockRequestRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.sharedhealth.healthId.web.config.HealthIdCacheConfiguration.NEXT_BLOCK_CACHE;
+
+/**
+ * Serves nextBlock requests carrying an idempotency key. The block served for a key is kept in
+ * Cassandra for the replay TTL and in a local LRU, so a retried request gets the same HIDs back
+ * without taking any more from the MCI pool.
+ */
+@Component
+public class NextBlockRequestService {
+    private static final Logger logger = LoggerFactory.getLogger(NextBlockRequestService.class);
+    static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+
+    private final HealthIdService healthIdService;
+    private final NextBlockRequestRepository nextBlockRequestRepository;
+    private final Cache replayCache;
+    private final HealthIdProperties healthIdProperties;
+    private final ConcurrentMap<String, Observable<List<MciHealthId>>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    public NextBlockRequestService(HealthIdService healthIdService, NextBlockRequestRepository nextBlockRequestRepository,
+                                   CacheManager cacheManager, HealthIdProperties healthIdProperties) {
+        this.healthIdService = healthIdService;
+        this.nextBlockRequestRepository = nextBlockRequestRepository;
+        this.replayCache = cacheManager.getCache(NEXT_BLOCK_CACHE);
+        this.healthIdProperties = healthIdProperties;
+    }
+
+    public Observable<List<MciHealthId>> getNextBlock(final String mciCode, final String idempotencyKey, final int blockSize) {
+        if (idempotencyKey == null) {
+            return healthIdService.getNextBlock(mciCode, blockSize);
+        }
+        if (StringUtils.isBlank(idempotencyKey) || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new InvalidRequestException(String.format("Idempotency key should be 1 to %s characters.",
+                    MAX_IDEMPOTENCY_KEY_LENGTH));
+        }
+        final String cacheKey = mciCode + "/" + idempotencyKey;
+        return Observable.defer(new Func0<Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call() {
+                List<MciHealthId> replayed = findReplayedBlock(cacheKey);
+                if (replayed != null) {
+                    logger.debug("Replaying block for {}.", cacheKey);
+                    return Observable.just(replayed);
+                }
+                return joinInFlight(cacheKey, mciCode, idempotencyKey, blockSize);
+            }
+        });
+    }
+
+    /**
+     * Only blocks of MCI HIDs are put into the replay cache.
+     */
+    @SuppressWarnings("unchecked")
+    private List<MciHealthId> findReplayedBlock(String cacheKey) {
+        return replayCache.get(cacheKey, List.class);
+    }
+
+    private Observable<List<MciHealthId>> joinInFlight(final String cacheKey, String mciCode, String idempotencyKey,
+                                                       int blockSize) {
+        final AtomicReference<Observable<List<MciHealthId>>> request = new AtomicReference<>();
+        request.set(findOrAllocate(mciCode, idempotencyKey, blockSize)
+                .doOnNext(new Action1<List<MciHealthId>>() {
+                    @Override
+                    public void call(List<MciHealthId> block) {
+                        replayCache.put(cacheKey, block);
+                    }
+                })
+                .finallyDo(new Action0() {
+                    @Override
+                    public void call() {
+                        inFlight.remove(cacheKey, request.get());
+                    }
+                })
+                .cache());
+        Observable<List<MciHealthId>> existing = inFlight.putIfAbsent(cacheKey, request.get());
+        return existing != null ? existing : request.get();
+    }
+
+    private Observable<List<MciHealthId>> findOrAllocate(final String mciCode, final String idempotencyKey,
+                                                         final int blockSize) {
+        return nextBlockRequestRepository.findBlock(mciCode, idempotencyKey)
+                .concatMap(new Func1<List<MciHealthId>, Observable<List<MciHealthId>>>() {
+                    @Override
+                    public Observable<List<MciHealthId>> call(List<MciHealthId> storedBlock) {
+                        if (storedBlock != null) {
+                            return Observable.just(storedBlock);
+                        }
+                        return healthIdService.getNextBlock(mciCode, blockSize).concatMap(saveBlock(mciCode, idempotencyKey));
+                    }
+                });
+    }
+
+    private Func1<List<MciHealthId>, Observable<List<MciHealthId>>> saveBlock(final String mciCode, final String idempotencyKey) {
+        return new Func1<List<MciHealthId>, Observable<List<MciHealthId>>>() {
+            @Override
+            public Observable<List<MciHealthId>> call(final List<MciHealthId> block) {
+                int ttl = healthIdProperties.getNextBlockReplayTtl();
+                return nextBlockRequestRepository.saveBlock(mciCode, idempotencyKey, block, ttl)
+                        .doOnNext(new Action1<List<MciHealthId>>() {
+                            @Override
+                            public void call(List<MciHealthId> storedBlock) {
+                                if (storedBlock != block) {
+                                    logger.warn("Another request for {} of {} stored its block first, {} HIDs allocated here are not served.",
+                                            idempotencyKey, mciCode, block.size());
+                                }
+                            }
+                        });
+            }
+        };
+    }
+}
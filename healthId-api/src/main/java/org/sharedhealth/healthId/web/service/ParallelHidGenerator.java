@@ -0,0 +1,150 @@
+package org.sharedhealth.healthId.web.service;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a range of candidate HIDs into sub-ranges and processes them on a fork-join pool
+ * sized to the machine. Results of the sub-ranges are merged back in range order. A run
+ * stopped half way reports every HID its sub-ranges wrote, up to the last candidate processed
+ * in any of them. By default a range is split into halves of equal length, a {@link Partitioner} can split it
+ * by any other weight.
+ */
+public class ParallelHidGenerator {
+
+    public static final long DEFAULT_PARTITION_SIZE = 100000;
+
+    private final ForkJoinPool pool;
+    private final long partitionSize;
+
+    public ParallelHidGenerator() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_PARTITION_SIZE);
+    }
+
+    public ParallelHidGenerator(int parallelism, long partitionSize) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.partitionSize = partitionSize;
+    }
+
+    public interface RangeProcessor {
+        /**
+         * Processes every candidate from {@code from} to {@code to}, both inclusive, unless
+         * asked to stop, and reports how far it got.
+         */
+        RangeResult process(long from, long to);
+    }
+
+    public interface Partitioner {
+        /**
+         * The work in {@code [from, to]}. Ranges weighing no more than the partition size are
+         * processed whole.
+         */
+        long weight(long from, long to);
+
+        /**
+         * The last candidate of the left half of {@code [from, to]}. Only asked for ranges
+         * weighing more than the partition size, both halves must not be empty.
+         */
+        long split(long from, long to);
+    }
+
+    public static final Partitioner EQUAL_LENGTHS = new Partitioner() {
+        @Override
+        public long weight(long from, long to) {
+            return to - from + 1;
+        }
+
+        @Override
+        public long split(long from, long to) {
+            return from + (to - from) / 2;
+        }
+    };
+
+    public RangeResult generate(long start, long end, RangeProcessor processor) {
+        return generate(start, end, processor, EQUAL_LENGTHS);
+    }
+
+    public RangeResult generate(long start, long end, RangeProcessor processor, Partitioner partitioner) {
+        if (start > end) {
+            return new RangeResult(start, end, start - 1, 0);
+        }
+        return pool.invoke(new PartitionTask(start, end, processor, partitioner));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public static class RangeResult {
+        private final long from;
+        private final long to;
+        private final long lastProcessed;
+        private final long validHIDs;
+
+        public RangeResult(long from, long to, long lastProcessed, long validHIDs) {
+            this.from = from;
+            this.to = to;
+            this.lastProcessed = lastProcessed;
+            this.validHIDs = validHIDs;
+        }
+
+        /**
+         * Merges two adjacent results. The right result counts even when the left one stopped
+         * early, as its HIDs have been written already. Candidates the left one left out are
+         * then skipped, so that none of the written HIDs is generated again.
+         */
+        public static RangeResult merge(RangeResult left, RangeResult right) {
+            long lastProcessed = right.lastProcessed >= right.from ? right.lastProcessed : left.lastProcessed;
+            return new RangeResult(left.from, right.to, lastProcessed, left.validHIDs + right.validHIDs);
+        }
+
+        public boolean isComplete() {
+            return lastProcessed == to;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        public long getLastProcessed() {
+            return lastProcessed;
+        }
+
+        public long getValidHIDs() {
+            return validHIDs;
+        }
+    }
+
+    private class PartitionTask extends RecursiveTask<RangeResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final RangeProcessor processor;
+        private final Partitioner partitioner;
+
+        PartitionTask(long from, long to, RangeProcessor processor, Partitioner partitioner) {
+            this.from = from;
+            this.to = to;
+            this.processor = processor;
+            this.partitioner = partitioner;
+        }
+
+        @Override
+        protected RangeResult compute() {
+            if (partitioner.weight(from, to) <= partitionSize) {
+                return processor.process(from, to);
+            }
+            long mid = partitioner.split(from, to);
+            PartitionTask left = new PartitionTask(from, mid, processor, partitioner);
+            PartitionTask right = new PartitionTask(mid + 1, to, processor, partitioner);
+            left.fork();
+            RangeResult rightResult = right.compute();
+            return RangeResult.merge(left.join(), rightResult);
+        }
+    }
+}
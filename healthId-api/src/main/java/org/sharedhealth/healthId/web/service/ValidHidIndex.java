@@ -0,0 +1,42 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.utils.HidCapacityCounter;
+
+/**
+ * Ranks the valid HIDs of one series. {@link #rank(long)} tells how many valid HIDs of the
+ * series come before a number and {@link #select(long)} finds the valid HID of a given rank,
+ * both in a number of steps bound by the digits of the series rather than by its size.
+ */
+public class ValidHidIndex {
+    private final HidCapacityCounter counter;
+    private final long seriesNo;
+    private final long seriesEnd;
+    private final long size;
+
+    public ValidHidIndex(HidCapacityCounter counter, long seriesNo, long seriesEnd) {
+        this.counter = counter;
+        this.seriesNo = seriesNo;
+        this.seriesEnd = seriesEnd;
+        this.size = counter.countValid(seriesNo, seriesEnd);
+    }
+
+    /**
+     * The number of valid HIDs of the series below {@code hid}.
+     */
+    public long rank(long hid) {
+        return counter.countValid(seriesNo, Math.min(hid - 1, seriesEnd));
+    }
+
+    /**
+     * The valid HID of the series with {@code n} valid HIDs below it, or -1 if the series has
+     * no more than {@code n} valid HIDs.
+     */
+    public long select(long n) {
+        if (n < 0 || n >= size) return -1;
+        return counter.nthValid(seriesNo, n);
+    }
+
+    public long size() {
+        return size;
+    }
+}
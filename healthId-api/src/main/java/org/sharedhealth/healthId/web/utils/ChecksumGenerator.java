@@ -3,4 +3,10 @@ package org.sharedhealth.healthId.web.utils;
 public interface ChecksumGenerator {
 
     int generate(String code);
+
+    /**
+     * Same checksum as {@link #generate(String)} for the decimal digits of {@code code},
+     * computed without going through strings.
+     */
+    int generate(long code);
 }
@@ -0,0 +1,479 @@
+package org.sharedhealth.healthId.web.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A deterministic state machine over the decimal digits of a number, compiled from an
+ * invalid HID pattern. Feeding the digits of a candidate from the most significant one
+ * either ends in {@link #MATCHED}, meaning the pattern finds a match, or in any other state.
+ * <p>
+ * Only the shapes of alternatives used by the HID patterns are understood:
+ * <ul>
+ * <li>anchored prefixes such as {@code ^[^9]}, {@code ^.[^89]} or {@code ^(105|104)\d*$}</li>
+ * <li>lengths such as {@code ^\d{0,9}$} or {@code ^\d{11,}$}</li>
+ * <li>runs of a repeated digit such as {@code (\d)\7{3}}</li>
+ * <li>two runs in order such as {@code ((\d)\4{2})\d*((\d)\6{2})}</li>
+ * </ul>
+ * {@link #compile(String)} returns null for anything else.
+ */
+public final class DigitAutomaton {
+    public static final int MAX_DIGITS = 19;
+    public static final int MATCHED = 0;
+
+    private static final int ALL_DIGITS = 0x3FF;
+    private static final int MAX_PREFIX_ALTERNATIVES = 16;
+    private static final int MAX_STATES = 100000;
+
+    private static final Pattern LENGTH = Pattern.compile("\\^\\\\d(\\*|\\{(\\d+)(,(\\d*))?\\})\\$");
+    private static final Pattern RUN = Pattern.compile("\\(\\\\d\\)\\\\(\\d+)(\\{(\\d+)\\})?");
+    private static final Pattern TWO_RUNS = Pattern.compile(
+            "\\(\\(\\\\d\\)\\\\(\\d+)(\\{(\\d+)\\})?\\)\\\\d\\*\\(\\(\\\\d\\)\\\\(\\d+)(\\{(\\d+)\\})?\\)");
+
+    private final int[] transitions;
+    private final int start;
+    private final boolean[] invalidLengths;
+
+    private DigitAutomaton(int[] transitions, int start, boolean[] invalidLengths) {
+        this.transitions = transitions;
+        this.start = start;
+        this.invalidLengths = invalidLengths;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int next(int state, int digit) {
+        return transitions[state * 10 + digit];
+    }
+
+    public boolean isInvalidLength(int length) {
+        return length > MAX_DIGITS || invalidLengths[length];
+    }
+
+    public int stateCount() {
+        return transitions.length / 10;
+    }
+
+    public static DigitAutomaton compile(String invalidHidPattern) {
+        List<String> alternatives = splitAlternatives(invalidHidPattern);
+        if (alternatives == null) return null;
+
+        List<Component> components = new ArrayList<>();
+        List<int[]> prefixes = new ArrayList<>();
+        boolean[] invalidLengths = new boolean[MAX_DIGITS + 1];
+        int groupsBefore = 0;
+        for (String alternative : alternatives) {
+            int groups = countGroups(alternative);
+            if (groups < 0) return null;
+            int offset = groupsBefore;
+            groupsBefore += groups;
+
+            while (isWrappedInGroup(alternative)) {
+                if (!alternative.startsWith("(?")) offset++;
+                alternative = alternative.startsWith("(?:")
+                        ? alternative.substring(3, alternative.length() - 1)
+                        : alternative.substring(1, alternative.length() - 1);
+            }
+
+            Matcher length = LENGTH.matcher(alternative);
+            Matcher run = RUN.matcher(alternative);
+            Matcher twoRuns = TWO_RUNS.matcher(alternative);
+            if (length.matches()) {
+                markLengths(length, invalidLengths);
+            } else if (run.matches()) {
+                if (Integer.parseInt(run.group(1)) != offset + 1) return null;
+                components.add(new RunComponent(repeat(run.group(3)) + 1, false));
+            } else if (twoRuns.matches()) {
+                if (Integer.parseInt(twoRuns.group(1)) != offset + 2) return null;
+                if (Integer.parseInt(twoRuns.group(4)) != offset + 4) return null;
+                components.add(new TwoRunsComponent(repeat(twoRuns.group(3)) + 1, repeat(twoRuns.group(6)) + 1));
+            } else if (alternative.startsWith("^")) {
+                List<int[]> sequences = parsePrefix(alternative.substring(1));
+                if (sequences == null) return null;
+                prefixes.addAll(sequences);
+            } else {
+                return null;
+            }
+        }
+        if (!prefixes.isEmpty()) {
+            if (prefixes.size() > MAX_PREFIX_ALTERNATIVES) return null;
+            for (int[] prefix : prefixes) {
+                if (prefix.length == 0) return null;
+            }
+            components.add(new PrefixComponent(prefixes));
+        }
+        return build(components, invalidLengths);
+    }
+
+    private static DigitAutomaton build(List<Component> components, boolean[] invalidLengths) {
+        Map<List<Integer>, Integer> ids = new HashMap<>();
+        List<List<Integer>> states = new ArrayList<>();
+        states.add(null);
+
+        List<Integer> startTuple = new ArrayList<>();
+        for (Component component : components) {
+            startTuple.add(component.start());
+        }
+        ids.put(startTuple, 1);
+        states.add(startTuple);
+
+        int[] transitions = new int[64 * 10];
+        for (int state = 1; state < states.size(); state++) {
+            if (states.size() > MAX_STATES) return null;
+            List<Integer> tuple = states.get(state);
+            for (int digit = 0; digit <= 9; digit++) {
+                List<Integer> nextTuple = new ArrayList<>(components.size());
+                boolean matched = false;
+                for (int i = 0; i < components.size() && !matched; i++) {
+                    int next = components.get(i).next(tuple.get(i), digit);
+                    matched = next == Component.MATCH;
+                    nextTuple.add(next);
+                }
+                int nextState = MATCHED;
+                if (!matched) {
+                    Integer id = ids.get(nextTuple);
+                    if (id == null) {
+                        id = states.size();
+                        ids.put(nextTuple, id);
+                        states.add(nextTuple);
+                    }
+                    nextState = id;
+                }
+                if (transitions.length < (state + 1) * 10) {
+                    transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                }
+                transitions[state * 10 + digit] = nextState;
+            }
+        }
+        return new DigitAutomaton(Arrays.copyOf(transitions, states.size() * 10), 1, invalidLengths);
+    }
+
+    private static void markLengths(Matcher length, boolean[] invalidLengths) {
+        int min = 0;
+        int max = Integer.MAX_VALUE;
+        if (length.group(2) != null) {
+            min = Integer.parseInt(length.group(2));
+            if (length.group(3) == null) {
+                max = min;
+            } else if (!length.group(4).isEmpty()) {
+                max = Integer.parseInt(length.group(4));
+            }
+        }
+        for (int i = min; i <= Math.min(max, MAX_DIGITS); i++) {
+            invalidLengths[i] = true;
+        }
+    }
+
+    private static int repeat(String quantifier) {
+        return quantifier == null ? 1 : Integer.parseInt(quantifier);
+    }
+
+    /**
+     * Expands an anchored prefix into the digit sequences it matches, each position being a
+     * bit mask of the digits allowed there. A trailing {@code \d*} or {@code \d*$} changes
+     * nothing for numbers, any other end anchor is not understood.
+     */
+    private static List<int[]> parsePrefix(String body) {
+        if (body.endsWith("\\d*$")) {
+            body = body.substring(0, body.length() - 4);
+        } else if (body.endsWith("\\d*")) {
+            body = body.substring(0, body.length() - 3);
+        }
+        return parseSequence(body);
+    }
+
+    private static List<int[]> parseSequence(String body) {
+        List<int[]> sequences = new ArrayList<>();
+        sequences.add(new int[0]);
+        int i = 0;
+        while (i < body.length()) {
+            List<int[]> atom = new ArrayList<>();
+            char c = body.charAt(i);
+            if (c == '.') {
+                atom.add(new int[]{ALL_DIGITS});
+                i++;
+            } else if (c == '\\' && i + 1 < body.length() && body.charAt(i + 1) == 'd') {
+                atom.add(new int[]{ALL_DIGITS});
+                i += 2;
+            } else if (Character.isDigit(c)) {
+                atom.add(new int[]{1 << (c - '0')});
+                i++;
+            } else if (c == '[') {
+                int end = body.indexOf(']', i);
+                if (end < 0) return null;
+                int mask = parseClass(body.substring(i + 1, end));
+                if (mask < 0) return null;
+                atom.add(new int[]{mask});
+                i = end + 1;
+            } else if (c == '(') {
+                int end = closingParenthesis(body, i);
+                if (end < 0) return null;
+                String inner = body.substring(i + 1, end);
+                if (inner.startsWith("?:")) {
+                    inner = inner.substring(2);
+                } else if (inner.startsWith("?")) {
+                    return null;
+                }
+                List<String> options = splitAlternatives(inner);
+                if (options == null) return null;
+                for (String option : options) {
+                    List<int[]> expanded = parseSequence(option);
+                    if (expanded == null) return null;
+                    atom.addAll(expanded);
+                }
+                i = end + 1;
+            } else {
+                return null;
+            }
+
+            int times = 1;
+            if (i < body.length() && body.charAt(i) == '{') {
+                int end = body.indexOf('}', i);
+                if (end < 0) return null;
+                String count = body.substring(i + 1, end);
+                if (!count.matches("\\d+")) return null;
+                times = Integer.parseInt(count);
+                i = end + 1;
+            }
+            for (int t = 0; t < times; t++) {
+                sequences = concat(sequences, atom);
+                if (sequences.size() > MAX_PREFIX_ALTERNATIVES) return null;
+            }
+        }
+        return sequences;
+    }
+
+    private static List<int[]> concat(List<int[]> heads, List<int[]> tails) {
+        List<int[]> result = new ArrayList<>();
+        for (int[] head : heads) {
+            for (int[] tail : tails) {
+                int[] sequence = Arrays.copyOf(head, head.length + tail.length);
+                System.arraycopy(tail, 0, sequence, head.length, tail.length);
+                result.add(sequence);
+            }
+        }
+        return result;
+    }
+
+    private static int parseClass(String content) {
+        boolean negated = content.startsWith("^");
+        if (negated) content = content.substring(1);
+        if (content.isEmpty()) return -1;
+        int mask = 0;
+        int i = 0;
+        while (i < content.length()) {
+            char c = content.charAt(i);
+            if (c == '\\' && i + 1 < content.length() && content.charAt(i + 1) == 'd') {
+                mask |= ALL_DIGITS;
+                i += 2;
+            } else if (Character.isDigit(c) && i + 2 < content.length() && content.charAt(i + 1) == '-') {
+                char to = content.charAt(i + 2);
+                if (!Character.isDigit(to) || to < c) return -1;
+                for (char d = c; d <= to; d++) {
+                    mask |= 1 << (d - '0');
+                }
+                i += 3;
+            } else if (Character.isDigit(c)) {
+                mask |= 1 << (c - '0');
+                i++;
+            } else {
+                return -1;
+            }
+        }
+        return negated ? ~mask & ALL_DIGITS : mask;
+    }
+
+    /**
+     * Splits a pattern on its top level {@code |}, or returns null if it cannot be tokenized.
+     */
+    private static List<String> splitAlternatives(String pattern) {
+        List<String> alternatives = new ArrayList<>();
+        int depth = 0;
+        boolean inClass = false;
+        int from = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth < 0) return null;
+            } else if (c == '|' && depth == 0) {
+                alternatives.add(pattern.substring(from, i));
+                from = i + 1;
+            }
+        }
+        if (depth != 0 || inClass) return null;
+        alternatives.add(pattern.substring(from));
+        for (String alternative : alternatives) {
+            if (alternative.isEmpty()) return null;
+        }
+        return alternatives;
+    }
+
+    private static int countGroups(String alternative) {
+        int groups = 0;
+        boolean inClass = false;
+        for (int i = 0; i < alternative.length(); i++) {
+            char c = alternative.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(' && (i + 1 >= alternative.length() || alternative.charAt(i + 1) != '?')) {
+                groups++;
+            }
+        }
+        return groups;
+    }
+
+    private static boolean isWrappedInGroup(String alternative) {
+        return alternative.startsWith("(") && closingParenthesis(alternative, 0) == alternative.length() - 1
+                && (!alternative.startsWith("(?") || alternative.startsWith("(?:"));
+    }
+
+    private static int closingParenthesis(String pattern, int open) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = open; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) return i;
+            }
+        }
+        return -1;
+    }
+
+    private interface Component {
+        int MATCH = -1;
+
+        int start();
+
+        int next(int state, int digit);
+    }
+
+    /**
+     * Matches once a digit has been repeated {@code length} times in a row. State 0 has seen
+     * nothing yet, otherwise the state encodes the last digit and how often it was repeated.
+     */
+    private static class RunComponent implements Component {
+        private final int length;
+        private final boolean restartOnMatch;
+
+        RunComponent(int length, boolean restartOnMatch) {
+            this.length = length;
+            this.restartOnMatch = restartOnMatch;
+        }
+
+        @Override
+        public int start() {
+            return 0;
+        }
+
+        @Override
+        public int next(int state, int digit) {
+            int repeated = 1;
+            if (state != 0) {
+                int last = (state - 1) / length;
+                int count = (state - 1) % length + 1;
+                if (last == digit) repeated = count + 1;
+            }
+            if (repeated >= length) {
+                return restartOnMatch ? 0 : MATCH;
+            }
+            return 1 + digit * length + repeated - 1;
+        }
+    }
+
+    /**
+     * Matches a run of {@code first} repeated digits followed, anywhere later and without
+     * overlapping, by a run of {@code second} repeated digits. The earliest first run leaves
+     * the most room for the second one, so the first run never needs to be reconsidered.
+     */
+    private static class TwoRunsComponent implements Component {
+        private final RunComponent firstRun;
+        private final RunComponent secondRun;
+        private final int offset;
+
+        TwoRunsComponent(int first, int second) {
+            this.firstRun = new RunComponent(first, true);
+            this.secondRun = new RunComponent(second, false);
+            this.offset = 1 + 10 * first;
+        }
+
+        @Override
+        public int start() {
+            return 0;
+        }
+
+        @Override
+        public int next(int state, int digit) {
+            if (state < offset) {
+                int next = firstRun.next(state, digit);
+                return next == 0 ? offset : next;
+            }
+            int next = secondRun.next(state - offset, digit);
+            return next == MATCH ? MATCH : offset + next;
+        }
+    }
+
+    /**
+     * Matches when the leading digits follow one of the prefixes. The state encodes the
+     * position and the prefixes still possible, 0 once none of them can match any more.
+     */
+    private static class PrefixComponent implements Component {
+        private final List<int[]> prefixes;
+
+        PrefixComponent(List<int[]> prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        @Override
+        public int start() {
+            return encode(0, (1 << prefixes.size()) - 1);
+        }
+
+        @Override
+        public int next(int state, int digit) {
+            if (state == 0) return 0;
+            int position = state >>> MAX_PREFIX_ALTERNATIVES;
+            int alive = state & ((1 << MAX_PREFIX_ALTERNATIVES) - 1);
+            int stillAlive = 0;
+            for (int i = 0; i < prefixes.size(); i++) {
+                int[] prefix = prefixes.get(i);
+                if ((alive & (1 << i)) == 0 || (prefix[position] & (1 << digit)) == 0) continue;
+                if (prefix.length == position + 1) return MATCH;
+                stillAlive |= 1 << i;
+            }
+            return stillAlive == 0 ? 0 : encode(position + 1, stillAlive);
+        }
+
+        private int encode(int position, int alive) {
+            return position << MAX_PREFIX_ALTERNATIVES | alive;
+        }
+    }
+}
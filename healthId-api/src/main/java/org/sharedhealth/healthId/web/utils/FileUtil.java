@@ -2,7 +2,6 @@ package org.sharedhealth.healthId.web.utils;
 
 
 import com.google.common.base.Charsets;
-import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,11 +21,6 @@ public class FileUtil {
         }
     }
 
-    public static void addHidToFile(File file, String hid) throws IOException {
-        String hidToWrite = hid + System.getProperty("line.separator");
-        Files.append(hidToWrite, file, Charsets.UTF_8);
-    }
-
     public static File createHIDFile(String hidStorageDirPath, String fileName) {
         File outputDir = new File(hidStorageDirPath);
         outputDir.mkdirs();
@@ -0,0 +1,90 @@
+package org.sharedhealth.healthId.web.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over candidate numbers, i.e. HIDs without their check digit. It can be
+ * serialised to bytes so that it can be stored with its series.
+ */
+public class HidBloomFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final long[] bits;
+    private final int hashFunctions;
+    private long entries;
+
+    public HidBloomFilter(long expectedEntries, double falsePositiveProbability) {
+        long expected = Math.max(1, expectedEntries);
+        long numberOfBits = (long) Math.ceil(-expected * Math.log(falsePositiveProbability) / (LN2 * LN2));
+        this.bits = new long[(int) Math.max(1, (numberOfBits + 63) / 64)];
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bits.length * 64 / expected * LN2));
+    }
+
+    private HidBloomFilter(long[] bits, int hashFunctions, long entries) {
+        this.bits = bits;
+        this.hashFunctions = hashFunctions;
+        this.entries = entries;
+    }
+
+    public static HidBloomFilter empty() {
+        return new HidBloomFilter(new long[1], 1, 0);
+    }
+
+    public void put(long candidate) {
+        long hash = mix(candidate);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long numberOfBits = (long) bits.length * 64;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = ((first + (long) i * second) & Long.MAX_VALUE) % numberOfBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        entries++;
+    }
+
+    public boolean mightContain(long candidate) {
+        if (entries == 0) return false;
+        long hash = mix(candidate);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long numberOfBits = (long) bits.length * 64;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = ((first + (long) i * second) & Long.MAX_VALUE) % numberOfBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public ByteBuffer toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8);
+        buffer.asLongBuffer().put(bits);
+        return buffer;
+    }
+
+    public static HidBloomFilter fromBytes(ByteBuffer bytes, int hashFunctions, long entries) {
+        long[] bits = new long[bytes.remaining() / 8];
+        bytes.duplicate().asLongBuffer().get(bits);
+        return new HidBloomFilter(bits, hashFunctions, entries);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads consecutive candidates over the whole range.
+     */
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,117 @@
+package org.sharedhealth.healthId.web.utils;
+
+/**
+ * Counts the valid HIDs in a range without enumerating them. For every number of remaining
+ * digits and every state of the {@link DigitAutomaton}, the number of digit strings that never
+ * reach {@link DigitAutomaton#MATCHED} is computed once. Counting the valid numbers up to a
+ * bound then walks the digits of the bound and adds, at each position, the completions of the
+ * smaller digits, which takes a few hundred additions whatever the size of the range.
+ */
+public class HidCapacityCounter {
+    private static final int MAX_REMAINING_DIGITS = DigitAutomaton.MAX_DIGITS - 1;
+
+    private final DigitAutomaton automaton;
+    private final long[][] completions;
+    private final long[] validOfLength;
+    private final long representable;
+
+    public HidCapacityCounter(DigitAutomaton automaton) {
+        this.automaton = automaton;
+        int states = automaton.stateCount();
+        this.completions = new long[MAX_REMAINING_DIGITS + 1][states];
+        for (int state = 1; state < states; state++) {
+            completions[0][state] = 1;
+        }
+        for (int remaining = 1; remaining <= MAX_REMAINING_DIGITS; remaining++) {
+            for (int state = 1; state < states; state++) {
+                long count = 0;
+                for (int digit = 0; digit <= 9; digit++) {
+                    count += completions[remaining - 1][automaton.next(state, digit)];
+                }
+                completions[remaining][state] = count;
+            }
+        }
+        this.validOfLength = new long[DigitAutomaton.MAX_DIGITS + 1];
+        for (int length = 1; length <= DigitAutomaton.MAX_DIGITS; length++) {
+            if (automaton.isInvalidLength(length)) continue;
+            long count = 0;
+            for (int digit = 1; digit <= 9; digit++) {
+                count += completions[length - 1][automaton.next(automaton.start(), digit)];
+            }
+            validOfLength[length] = count;
+        }
+        this.representable = countValidUpTo(Long.MAX_VALUE);
+    }
+
+    /**
+     * The number of valid HIDs in {@code [from, to]}, both inclusive.
+     */
+    public long countValid(long from, long to) {
+        if (to < from || to < 1) return 0;
+        return countValidUpTo(to) - countValidUpTo(Math.max(from, 1) - 1);
+    }
+
+    /**
+     * The {@code n}-th valid HID at or after {@code from}, counting from 0, or -1 if there is
+     * no such HID up to {@link Long#MAX_VALUE}.
+     */
+    public long nthValid(long from, long n) {
+        if (n < 0) return -1;
+        long before = countValidUpTo(Math.max(from, 1) - 1);
+        if (n >= representable - before) return -1;
+        return smallestWithCount(before + n + 1);
+    }
+
+    private long countValidUpTo(long bound) {
+        if (bound < 1) return 0;
+        int length = HidValidityRule.numberOfDigits(bound);
+        long count = 0;
+        for (int shorter = 1; shorter < length; shorter++) {
+            count += validOfLength[shorter];
+        }
+        if (automaton.isInvalidLength(length)) return count;
+
+        String digits = String.valueOf(bound);
+        int state = automaton.start();
+        for (int position = 0; position < length; position++) {
+            int boundDigit = digits.charAt(position) - '0';
+            int remaining = length - position - 1;
+            for (int digit = position == 0 ? 1 : 0; digit < boundDigit; digit++) {
+                count += completions[remaining][automaton.next(state, digit)];
+            }
+            state = automaton.next(state, boundDigit);
+            if (state == DigitAutomaton.MATCHED) return count;
+        }
+        return count + 1;
+    }
+
+    /**
+     * The smallest number up to which {@code count} valid HIDs exist, found by descending the
+     * digits and skipping, at each position, the completions of every smaller digit.
+     */
+    private long smallestWithCount(long count) {
+        long remainingCount = count;
+        int length = 1;
+        while (remainingCount > validOfLength[length]) {
+            remainingCount -= validOfLength[length];
+            length++;
+        }
+        int state = automaton.start();
+        long value = 0;
+        for (int position = 0; position < length; position++) {
+            int remaining = length - position - 1;
+            for (int digit = position == 0 ? 1 : 0; digit <= 9; digit++) {
+                int next = automaton.next(state, digit);
+                long completing = completions[remaining][next];
+                if (remainingCount > completing) {
+                    remainingCount -= completing;
+                } else {
+                    value = value * 10 + digit;
+                    state = next;
+                    break;
+                }
+            }
+        }
+        return value;
+    }
+}
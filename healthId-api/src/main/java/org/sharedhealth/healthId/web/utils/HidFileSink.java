@@ -0,0 +1,132 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes the HIDs of a generation run to a file, one per line. Lines are collected in a
+ * direct buffer and written to a temporary file next to the target, which is forced to disk
+ * every {@code syncInterval} lines. Closing the sink renames the temporary file to the target,
+ * so the target only ever appears complete. Aborting it deletes the temporary file instead. If
+ * the process dies before either, the lines synced so far can be found in the temporary file.
+ */
+public class HidFileSink implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(HidFileSink.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final String TEMP_FILE_SUFFIX = ".part";
+
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+    private final Path target;
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long syncInterval;
+    private long lines;
+    private boolean closed;
+
+    public HidFileSink(File target, long syncInterval) throws IOException {
+        this(target, syncInterval, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HidFileSink(File target, long syncInterval, int bufferSize) throws IOException {
+        this.target = target.toPath();
+        this.tempFile = new File(target.getParentFile(), target.getName() + TEMP_FILE_SUFFIX).toPath();
+        this.channel = FileChannel.open(tempFile, CREATE, WRITE, TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Appends a line. HIDs are plain digits, so every character is written as a single byte.
+     */
+    public void write(CharSequence hid) throws IOException {
+        if (buffer.remaining() < hid.length() + LINE_SEPARATOR.length) {
+            flush();
+        }
+        for (int i = 0; i < hid.length(); i++) {
+            buffer.put((byte) hid.charAt(i));
+        }
+        buffer.put(LINE_SEPARATOR);
+        lines++;
+        if (syncInterval > 0 && lines % syncInterval == 0) {
+            sync();
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public File getTarget() {
+        return target.toFile();
+    }
+
+    /**
+     * Syncs the remaining lines and moves the temporary file to the target. A sink without
+     * any line leaves no file behind.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (lines > 0) sync();
+        } finally {
+            channel.close();
+        }
+        if (lines == 0) {
+            Files.deleteIfExists(tempFile);
+            return;
+        }
+        try {
+            Files.move(tempFile, target, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.warn(String.format("Atomic move not supported for %s, replacing it instead", target));
+            Files.move(tempFile, target, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Drops the lines written so far along with the temporary file, leaving the target as it
+     * was.
+     */
+    public void abort() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.sharedhealth.healthId.web.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring of HIDs which any number of threads may offer to and poll from without
+ * taking a lock. Every slot carries a sequence number telling whether it is waiting for the
+ * producer or the consumer of a given lap, so a thread only has to win one compare-and-set
+ * on the head or the tail to own a slot.
+ */
+public class HidRingBuffer {
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final int mask;
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a ring of the smallest power of two which holds {@code minimumCapacity} HIDs.
+     */
+    public HidRingBuffer(int minimumCapacity) {
+        int capacity = minimumCapacity <= 2 ? 2 : Integer.highestOneBit(Math.min(minimumCapacity, MAX_CAPACITY) - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Appends the HID, returns false without waiting when the ring is full.
+     */
+    public boolean offer(String hid) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, hid);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Removes the oldest HID, returns null without waiting when the ring is empty.
+     */
+    public String poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    String hid = slots.getAndSet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return hid;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            position = head.get();
+        }
+    }
+
+    /**
+     * Removes up to {@code max} HIDs, fewer when the ring runs empty.
+     */
+    public List<String> poll(int max) {
+        List<String> hids = new ArrayList<>(Math.max(0, Math.min(max, capacity())));
+        while (hids.size() < max) {
+            String hid = poll();
+            if (hid == null) break;
+            hids.add(hid);
+        }
+        return hids;
+    }
+
+    /**
+     * The number of HIDs in the ring, exact only while no other thread changes it.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,110 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a candidate number is a valid HID according to a configured invalid HID
+ * pattern. Patterns the {@link DigitAutomaton} understands are checked directly on the digits
+ * of the number without allocating, any other pattern falls back to the regex.
+ */
+public abstract class HidValidityRule {
+    private static final Logger logger = LoggerFactory.getLogger(HidValidityRule.class);
+
+    private static final long[] POWERS_OF_TEN = new long[DigitAutomaton.MAX_DIGITS];
+
+    static {
+        long power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    protected final Pattern invalidHidPattern;
+
+    protected HidValidityRule(Pattern invalidHidPattern) {
+        this.invalidHidPattern = invalidHidPattern;
+    }
+
+    public static HidValidityRule compile(String invalidHidPattern) {
+        Pattern pattern = Pattern.compile(invalidHidPattern);
+        DigitAutomaton automaton = DigitAutomaton.compile(invalidHidPattern);
+        if (automaton == null) {
+            logger.warn(String.format("Cannot compile invalid HID pattern %s, falling back to regex matching", invalidHidPattern));
+            return new RegexRule(pattern);
+        }
+        logger.info(String.format("Compiled invalid HID pattern %s into %s states", invalidHidPattern, automaton.stateCount()));
+        return new AutomatonRule(pattern, automaton);
+    }
+
+    public abstract boolean isValid(long candidate);
+
+    /**
+     * The compiled automaton, or null when the rule falls back to the regex.
+     */
+    public abstract DigitAutomaton getAutomaton();
+
+    public boolean isValid(String candidate) {
+        return !invalidHidPattern.matcher(candidate).find();
+    }
+
+    public static int numberOfDigits(long number) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && number >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static class RegexRule extends HidValidityRule {
+        RegexRule(Pattern invalidHidPattern) {
+            super(invalidHidPattern);
+        }
+
+        @Override
+        public boolean isValid(long candidate) {
+            return isValid(String.valueOf(candidate));
+        }
+
+        @Override
+        public DigitAutomaton getAutomaton() {
+            return null;
+        }
+    }
+
+    private static class AutomatonRule extends HidValidityRule {
+        private final DigitAutomaton automaton;
+
+        AutomatonRule(Pattern invalidHidPattern, DigitAutomaton automaton) {
+            super(invalidHidPattern);
+            this.automaton = automaton;
+        }
+
+        @Override
+        public boolean isValid(long candidate) {
+            if (candidate < 0) {
+                return isValid(String.valueOf(candidate));
+            }
+            int digits = numberOfDigits(candidate);
+            if (automaton.isInvalidLength(digits)) return false;
+            int state = automaton.start();
+            long rest = candidate;
+            for (int i = digits - 1; i >= 0; i--) {
+                long power = POWERS_OF_TEN[i];
+                int digit = (int) (rest / power);
+                rest -= digit * power;
+                state = automaton.next(state, digit);
+                if (state == DigitAutomaton.MATCHED) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public DigitAutomaton getAutomaton() {
+            return automaton;
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class HttpUtil {
     public static final String CLIENT_ID_KEY = "client_id";
     public static final String AUTH_TOKEN_KEY = "X-Auth-Token";
     public static final String FROM_KEY = "From";
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
 
     public static HttpHeaders getHrmIdentityHeaders(HealthIdProperties properties) {
         HttpHeaders httpHeaders = new HttpHeaders();
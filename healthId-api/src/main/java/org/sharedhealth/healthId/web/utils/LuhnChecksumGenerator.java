@@ -17,6 +17,13 @@ public class LuhnChecksumGenerator implements ChecksumGenerator {
 
     private static final Logger logger = getLogger(LuhnChecksumGenerator.class);
 
+    private static final ThreadLocal<Incremental> incrementals = new ThreadLocal<Incremental>() {
+        @Override
+        protected Incremental initialValue() {
+            return new Incremental();
+        }
+    };
+
     @Override
     public int generate(String code) {
         try {
@@ -28,4 +35,79 @@ public class LuhnChecksumGenerator implements ChecksumGenerator {
             throw new HidGenerationException(message, e);
         }
     }
+
+    /**
+     * Generation loops step through consecutive codes, so every thread keeps the digit sum of
+     * the last code it saw and only adjusts the digits that change on +1.
+     */
+    @Override
+    public int generate(long code) {
+        return incrementals.get().generate(code);
+    }
+
+    /**
+     * The Luhn digit sum of {@code code} with the check digit yet to be appended, i.e. the
+     * rightmost digit of the code is doubled.
+     */
+    public static int digitSum(long code) {
+        int sum = 0;
+        boolean doubled = true;
+        for (long rest = code; rest > 0; rest /= 10) {
+            sum += weighted((int) (rest % 10), doubled);
+            doubled = !doubled;
+        }
+        return sum;
+    }
+
+    public static int checkDigit(int digitSum) {
+        return (10 - digitSum % 10) % 10;
+    }
+
+    private static int weighted(int digit, boolean doubled) {
+        if (!doubled) return digit;
+        int twice = digit * 2;
+        return twice > 9 ? twice - 9 : twice;
+    }
+
+    private static HidGenerationException invalidCode(long code) {
+        String message = "Cannot create checksum using Luhn algorithm for code " + code;
+        logger.debug(message);
+        return new HidGenerationException(message);
+    }
+
+    /**
+     * Checksums for a sequence of codes, reusing the previous digit sum when the code is one
+     * more than the previous one. Not thread safe.
+     */
+    public static class Incremental {
+        private long lastCode = -1;
+        private int lastSum;
+
+        public int generate(long code) {
+            if (code <= 0) {
+                // commons-validator rejects a code whose digits sum to zero, and negative codes
+                throw invalidCode(code);
+            }
+            int sum = code == lastCode + 1 && lastCode > 0 ? nextSum() : digitSum(code);
+            lastCode = code;
+            lastSum = sum;
+            return checkDigit(sum);
+        }
+
+        /**
+         * Adding one turns the trailing nines into zeros and increments the digit before them.
+         * A nine weighs nine whether doubled or not, a zero weighs nothing.
+         */
+        private int nextSum() {
+            long rest = lastCode;
+            int position = 0;
+            while (rest % 10 == 9) {
+                rest /= 10;
+                position++;
+            }
+            int digit = (int) (rest % 10);
+            boolean doubled = position % 2 == 0;
+            return lastSum - 9 * position - weighted(digit, doubled) + weighted(digit + 1, doubled);
+        }
+    }
 }
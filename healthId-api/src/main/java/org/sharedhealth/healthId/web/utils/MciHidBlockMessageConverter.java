@@ -0,0 +1,79 @@
+package org.sharedhealth.healthId.web.utils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.MciHidBlock;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a block of MCI HIDs straight to the response, as {@code {"total":N,"hids":[...]}}
+ * or, for {@code text/plain}, as one HID per line, without building a map or a copy of the
+ * HIDs to hand to the object mapper first.
+ */
+public class MciHidBlockMessageConverter extends AbstractHttpMessageConverter<MciHidBlock> {
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final int NEW_LINE = '\n';
+
+    public MciHidBlockMessageConverter() {
+        super(MediaType.APPLICATION_JSON, new MediaType("text", "plain", StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return MciHidBlock.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected MciHidBlock readInternal(Class<? extends MciHidBlock> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("HID blocks are only written");
+    }
+
+    @Override
+    protected void writeInternal(MciHidBlock block, HttpOutputMessage outputMessage) throws IOException {
+        MediaType contentType = outputMessage.getHeaders().getContentType();
+        if (contentType != null && MediaType.TEXT_PLAIN.includes(contentType)) {
+            writeLines(block, outputMessage.getBody());
+        } else {
+            writeJson(block, outputMessage.getBody());
+        }
+    }
+
+    private void writeJson(MciHidBlock block, OutputStream body) throws IOException {
+        JsonGenerator generator = jsonFactory.createGenerator(body, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeNumberField("total", block.getTotal());
+        generator.writeArrayFieldStart("hids");
+        for (MciHealthId mciHealthId : block.getHealthIds()) {
+            generator.writeString(mciHealthId.getHid());
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    private void writeLines(MciHidBlock block, OutputStream body) throws IOException {
+        for (MciHealthId mciHealthId : block.getHealthIds()) {
+            String hid = mciHealthId.getHid();
+            for (int i = 0; i < hid.length(); i++) {
+                body.write(hid.charAt(i));
+            }
+            body.write(NEW_LINE);
+        }
+        body.flush();
+    }
+}
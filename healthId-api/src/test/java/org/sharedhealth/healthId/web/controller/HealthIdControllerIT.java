@@ -7,6 +7,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.HealthIdUsage;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -17,11 +18,14 @@ import org.springframework.web.context.WebApplicationContext;
 import javax.servlet.Filter;
 import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -29,6 +33,8 @@ import static org.sharedhealth.healthId.web.controller.HealthIdController.*;
 import static org.sharedhealth.healthId.web.utils.FileUtil.asString;
 import static org.sharedhealth.healthId.web.utils.HttpUtil.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.TEXT_PLAIN;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
@@ -174,6 +180,9 @@ public class HealthIdControllerIT extends BaseControllerTest {
                 .header(FROM_KEY, validEmail)
                 .header(CLIENT_ID_KEY, validClientId)
                 .contentType(APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvcResult = mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(status().isOk())
                 .andReturn();
         String contentAsString = mvcResult.getResponse().getContentAsString();
@@ -210,6 +219,9 @@ public class HealthIdControllerIT extends BaseControllerTest {
                 .header(FROM_KEY, validEmail)
                 .header(CLIENT_ID_KEY, validClientId)
                 .contentType(APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvcResult = mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(status().isOk())
                 .andReturn();
         String contentAsString = mvcResult.getResponse().getContentAsString();
@@ -219,6 +231,83 @@ public class HealthIdControllerIT extends BaseControllerTest {
         assertTrue(blockSize == (Integer) response.get("total"));
     }
 
+    @Test
+    public void testGetNextBlockAsText() throws Exception {
+        validAccessToken = "85HoExoxghh1pislg65hUM0q3wM9kfzcMdpYS0ixPD";
+        validClientId = "18570";
+        validEmail = "shrsystemadmin@test.com";
+
+        createMCIHealthIds();
+
+        mockMvc = MockMvcBuilders
+                .webAppContextSetup(webApplicationContext)
+                .addFilters(springSecurityFilterChain)
+                .build();
+
+        givenThat(WireMock.get(urlEqualTo("/token/" + validAccessToken))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(asString("jsons/userDetails/userDetailForSHRSystemAdmin.json"))));
+
+        int blockSize = 5;
+        MvcResult mvcResult = mockMvc.perform(get(API_END_POINT + "/nextBlock/mci/MCI1?blockSize=" + blockSize)
+                .accept(TEXT_PLAIN)
+                .header(AUTH_TOKEN_KEY, validAccessToken)
+                .header(FROM_KEY, validEmail)
+                .header(CLIENT_ID_KEY, validClientId))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvcResult = mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String[] hids = mvcResult.getResponse().getContentAsString().split("\n");
+        assertEquals(blockSize, hids.length);
+        assertEquals(blockSize, new HashSet<>(asList(hids)).size());
+    }
+
+    @Test
+    public void testGetNextBlockReplayedForSameIdempotencyKey() throws Exception {
+        validAccessToken = "85HoExoxghh1pislg65hUM0q3wM9kfzcMdpYS0ixPD";
+        validClientId = "18570";
+        validEmail = "shrsystemadmin@test.com";
+
+        createMCIHealthIds();
+
+        mockMvc = MockMvcBuilders
+                .webAppContextSetup(webApplicationContext)
+                .addFilters(springSecurityFilterChain)
+                .build();
+
+        givenThat(WireMock.get(urlEqualTo("/token/" + validAccessToken))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(asString("jsons/userDetails/userDetailForSHRSystemAdmin.json"))));
+
+        String first = getNextBlockWithIdempotencyKey("request-1");
+        String retried = getNextBlockWithIdempotencyKey("request-1");
+        String other = getNextBlockWithIdempotencyKey("request-2");
+
+        assertEquals(first, retried);
+        assertFalse(first.equals(other));
+    }
+
+    private String getNextBlockWithIdempotencyKey(String idempotencyKey) throws Exception {
+        MvcResult mvcResult = mockMvc.perform(get(API_END_POINT + "/nextBlock/mci/MCI1?blockSize=3")
+                .accept(TEXT_PLAIN)
+                .header(AUTH_TOKEN_KEY, validAccessToken)
+                .header(FROM_KEY, validEmail)
+                .header(CLIENT_ID_KEY, validClientId)
+                .header(IDEMPOTENCY_KEY, idempotencyKey))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+    }
+
     @Test
     public void testGenerateOnlyForShrSystemAdmin() throws Exception {
         validAccessToken = "40214a6c-e27c-4223-981c-1f837be90f02";
@@ -346,6 +435,49 @@ public class HealthIdControllerIT extends BaseControllerTest {
                 .andReturn();
     }
 
+    @Test
+    public void testMarkUsedInBulk() throws Exception {
+        validAccessToken = "85HoExoxghh1pislg65hUM0q3wM9kfzcMdpYS0ixPD";
+        validClientId = "18570";
+        validEmail = "shrsystemadmin@test.com";
+
+        List<String> healthIds = createOrgHealthIds(2, "mci1", false);
+
+        mockMvc = MockMvcBuilders
+                .webAppContextSetup(webApplicationContext)
+                .addFilters(springSecurityFilterChain)
+                .build();
+
+        givenThat(WireMock.get(urlEqualTo("/token/" + validAccessToken))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(asString("jsons/userDetails/userDetailForSHRSystemAdmin.json"))));
+        String usedAt = timeBased().toString();
+        String content = new ObjectMapper().writeValueAsString(asList(
+                new HealthIdUsage(healthIds.get(0), usedAt),
+                new HealthIdUsage(healthIds.get(1), usedAt),
+                new HealthIdUsage("98000000000", usedAt)));
+
+        MvcResult mvcResult = mockMvc.perform(post(API_END_POINT + MARK_USED_URI)
+                .accept(APPLICATION_JSON)
+                .header(AUTH_TOKEN_KEY, validAccessToken)
+                .header(FROM_KEY, validEmail)
+                .header(CLIENT_ID_KEY, validClientId)
+                .content(content)
+                .contentType(APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvcResult = mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        Map response = new ObjectMapper().readValue(mvcResult.getResponse().getContentAsString(), Map.class);
+        assertEquals("Accepted", response.get(healthIds.get(0)));
+        assertEquals("Accepted", response.get(healthIds.get(1)));
+        assertEquals("Health Id not allocated to any Organization.", response.get("98000000000"));
+    }
+
     @Test
     public void markUsedShouldFailForNonShrSystemAdmins() throws Exception {
         validAccessToken = "40214a6c-e27c-4223-981c-1f837be90f02";
@@ -9,18 +9,27 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sharedhealth.healthId.web.Model.FacilityResponse;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HealthIdUsage;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
 import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.security.UserProfile;
 import org.sharedhealth.healthId.web.service.FacilityService;
 import org.sharedhealth.healthId.web.service.HealthIdService;
+import org.sharedhealth.healthId.web.service.HidGenerationJobService;
+import org.sharedhealth.healthId.web.service.NextBlockRequestService;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
+import rx.Observable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
@@ -36,6 +45,10 @@ public class HealthIdControllerTest {
     private FacilityService facilityService;
     @Mock
     private HealthIdProperties healthIdProperties;
+    @Mock
+    private HidGenerationJobService hidGenerationJobService;
+    @Mock
+    private NextBlockRequestService nextBlockRequestService;
 
     @Rule
     public ExpectedException expectedEx = ExpectedException.none();
@@ -59,7 +72,7 @@ public class HealthIdControllerTest {
     public void testGenerate() {
         GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(1000L, "MCI", 1000L, 1099L, 100L, "", timeBased());
         when(healthIdService.generateAll(any(UserInfo.class))).thenReturn(hidBlock);
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
         assertEquals("Generated 100 HIDs.", healthIdController.generate().getResult());
         verify(healthIdService, times(1)).generateAll(any(UserInfo.class));
     }
@@ -73,7 +86,7 @@ public class HealthIdControllerTest {
         testProperties.setMciEndHid("3000");
 
         when(healthIdService.generateBlock(eq(start), eq(total), any(UserInfo.class))).thenReturn(hidBlock);
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         ResponseEntity result = (ResponseEntity) healthIdController.generateBlock(start, total).getResult();
         assertEquals("Generated 100 HIDs.", result.getBody());
         assertEquals(HttpStatus.OK, result.getStatusCode());
@@ -94,7 +107,7 @@ public class HealthIdControllerTest {
         when(facilityService.find(facilityID)).thenReturn(facility);
         when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class))).thenReturn(hidBlock);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         ResponseEntity result = (ResponseEntity) healthIdController.generateBlockForOrg(facilityID, start, total).getResult();
 
         assertEquals("Generated 100 HIDs.", result.getBody());
@@ -117,7 +130,7 @@ public class HealthIdControllerTest {
         when(facilityService.find(facilityID)).thenReturn(facility);
         when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class))).thenReturn(hidBlock);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         ResponseEntity result = (ResponseEntity) healthIdController.generateBlockForOrg(facilityID, start, total).getResult();
 
         assertEquals("Can generate only 100 HIDs, because series exhausted. Use another series.", result.getBody());
@@ -137,7 +150,7 @@ public class HealthIdControllerTest {
         testProperties.setOtherOrgEndHid("3000");
         when(facilityService.find(facilityId)).thenReturn(null);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         healthIdController.generateBlockForOrg(facilityId, start, total);
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
     }
@@ -157,7 +170,7 @@ public class HealthIdControllerTest {
         testProperties.setOtherOrgEndHid("3000");
         when(facilityService.find(facilityID)).thenReturn(facility);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         healthIdController.generateBlockForOrg(facilityID, start, total);
 
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
@@ -173,7 +186,7 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("1000 not for MCI");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         healthIdController.generateBlock(start, total);
 
         verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
@@ -188,7 +201,7 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("This endpoint is not for MCI. To generate HIDs for MCI use /generateBlock endpoint");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         healthIdController.generateBlockForOrg(mciFacilityId, start, total);
         verify(healthIdService, never()).generateBlockForOrg(eq(start), eq(total), eq(mciFacilityId), any(UserInfo.class));
     }
@@ -209,9 +222,124 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("4000 series is not valid.");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
         healthIdController.generateBlockForOrg(facilityID, start, total);
 
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldSubmitBlockGenerationJob() throws Exception {
+        long start = 1000L, total = 100L;
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("3000");
+        HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.MCI_BLOCK, "MCI", start, total, 0);
+        when(hidGenerationJobService.submitGenerateBlock(eq(start), eq(total), any(UserInfo.class))).thenReturn(job);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
+        ResponseEntity<HidGenerationJob> response = healthIdController.submitGenerateBlock(start, total);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals(job, response.getBody());
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+    }
+
+    @Test
+    public void shouldNotSubmitGenerationJobForInvalidOrg() throws Exception {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Invalid Organization:- 12345");
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setOtherOrgStartHid("1000");
+        testProperties.setOtherOrgEndHid("3000");
+        when(facilityService.find("12345")).thenReturn(null);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties, hidGenerationJobService, nextBlockRequestService);
+        healthIdController.submitGenerateBlockForOrg("12345", 1000L, 10L);
+    }
+
+    @Test
+    public void shouldCancelGenerationJob() throws Exception {
+        HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.ALL, "MCI", 1000L, 0, 100);
+        when(hidGenerationJobService.cancel(job.getId())).thenReturn(job);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+
+        assertEquals(job, healthIdController.cancelJob(job.getId().toString()));
+    }
+
+    @Test
+    public void shouldRejectMalformedJobId() throws Exception {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Invalid job id:- not-a-job");
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+        healthIdController.findJob("not-a-job");
+    }
+
+    @Test
+    public void shouldCountCapacityOverConfiguredRangeOfOrganization() throws Exception {
+        when(healthIdProperties.getMciOrgCode()).thenReturn("MCI");
+        when(healthIdProperties.getOtherOrgStartHid()).thenReturn(9100000000L);
+        when(healthIdProperties.getOtherOrgEndHid()).thenReturn(9799999999L);
+        when(healthIdService.countValidHIDs(9100000000L, 9799999999L, false)).thenReturn(123L);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+        Map<String, Object> capacity = healthIdController.capacity("12345", null, null);
+
+        assertEquals(9100000000L, capacity.get("from"));
+        assertEquals(9799999999L, capacity.get("to"));
+        assertEquals(123L, capacity.get("valid"));
+    }
+
+    @Test
+    public void shouldCountCapacityOfGivenRangeForMci() throws Exception {
+        when(healthIdProperties.getMciOrgCode()).thenReturn("MCI");
+        when(healthIdService.countValidHIDs(9800000000L, 9800099999L, true)).thenReturn(42L);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+
+        assertEquals(42L, healthIdController.capacity(null, 9800000000L, 9800099999L).get("valid"));
+    }
+
+    @Test
+    public void shouldRejectBulkMarkUsedWithoutUsedAt() {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Every Health Id should have healthId and used_at");
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+        healthIdController.markUsedInBulk(asList(new HealthIdUsage("91000000505", timeBased().toString()), new HealthIdUsage("91000005005", null)));
+    }
+
+    @Test
+    public void shouldRejectBulkMarkUsedWithTheSameHealthIdTwice() {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Health Id 91000000505 is marked used more than once");
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+        try {
+            healthIdController.markUsedInBulk(asList(new HealthIdUsage("91000000505", timeBased().toString()),
+                    new HealthIdUsage("91000005005", timeBased().toString()), new HealthIdUsage("91000000505", timeBased().toString())));
+        } finally {
+            verify(healthIdService, never()).markOrgHealthIdsUsed(anyListOf(HealthIdUsage.class));
+        }
+    }
+
+    @Test
+    public void shouldCheckAvailabilityOfEveryHealthIdInRequestOrder() {
+        Map<String, OrgHealthId> orgHealthIds = new HashMap<>();
+        orgHealthIds.put("91000000505", new OrgHealthId("91000000505", "ORG", timeBased()));
+        orgHealthIds.put("91000005005", new OrgHealthId("91000005005", "OTHER-ORG", timeBased()));
+        List<String> healthIds = asList("92000000003", "91000005005", "91000000505");
+        when(healthIdService.findOrgHealthIds(healthIds)).thenReturn(Observable.just(orgHealthIds));
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties, hidGenerationJobService, nextBlockRequestService);
+        Map<String, Map> results = (Map<String, Map>) healthIdController.checkAvailabilityInBulk(healthIds, "ORG").getResult();
+
+        assertEquals(healthIds, new ArrayList<>(results.keySet()));
+        assertEquals("Health Id is not allocated to any organization.", results.get("92000000003").get("reason"));
+        assertEquals("Health Id is allocated to another organization.", results.get("91000005005").get("reason"));
+        assertEquals(true, results.get("91000000505").get("availability"));
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.SeriesWatermark;
 import org.sharedhealth.healthId.web.config.EnvironmentMock;
 import org.sharedhealth.healthId.web.launch.WebMvcConfig;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,11 +16,15 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
 import java.util.List;
+import java.util.UUID;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_GENERATED_HID_BLOCKS;
 import static org.sharedhealth.healthId.web.utils.TestUtil.truncateAllColumnFamilies;
 
@@ -69,4 +74,48 @@ public class GeneratedHidBlockRepositoryIT {
         assertEquals(hidBlock1, hidBlocks.get(0));
         assertEquals(hidBlock3, hidBlocks.get(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldAllowOnlyOneClaimOnASeries() throws Exception {
+        UUID firstRun = timeBased();
+        UUID secondRun = timeBased();
+        assertTrue(hidBlockRepository.createSeriesWatermark(9100L, 9099L));
+        assertFalse(hidBlockRepository.createSeriesWatermark(9100L, 9150L));
+
+        assertTrue(hidBlockRepository.claimSeriesWatermark(9100L, 9099L, firstRun, 60));
+        assertFalse(hidBlockRepository.claimSeriesWatermark(9100L, 9099L, secondRun, 60));
+        assertEquals(firstRun, hidBlockRepository.findSeriesWatermark(9100L).getClaimedBy());
+
+        assertFalse(hidBlockRepository.releaseSeriesWatermark(9100L, secondRun, 9150L));
+        assertTrue(hidBlockRepository.releaseSeriesWatermark(9100L, firstRun, 9150L));
+
+        SeriesWatermark watermark = hidBlockRepository.findSeriesWatermark(9100L);
+        assertEquals(9150L, watermark.getEndsAt());
+        assertNull(watermark.getClaimedBy());
+        assertFalse(hidBlockRepository.claimSeriesWatermark(9100L, 9099L, secondRun, 60));
+        assertTrue(hidBlockRepository.claimSeriesWatermark(9100L, 9150L, secondRun, 60));
+    }
+
+    @Test
+    public void shouldRenewOnlyTheCurrentClaim() throws Exception {
+        UUID firstRun = timeBased();
+        UUID secondRun = timeBased();
+        hidBlockRepository.createSeriesWatermark(9100L, 9099L);
+        hidBlockRepository.claimSeriesWatermark(9100L, 9099L, firstRun, 60);
+
+        assertTrue(hidBlockRepository.renewSeriesWatermark(9100L, firstRun, 60));
+        assertFalse(hidBlockRepository.renewSeriesWatermark(9100L, secondRun, 60));
+        hidBlockRepository.releaseSeriesWatermark(9100L, firstRun, 9150L);
+        assertFalse(hidBlockRepository.renewSeriesWatermark(9100L, firstRun, 60));
+        assertNull(hidBlockRepository.findSeriesWatermark(9100L).getClaimedBy());
+    }
+
+    @Test
+    public void shouldRaiseWatermarkOnlyFromExpectedValue() throws Exception {
+        hidBlockRepository.createSeriesWatermark(9100L, 9150L);
+
+        assertFalse(hidBlockRepository.raiseSeriesWatermark(9100L, 9099L, 9199L));
+        assertTrue(hidBlockRepository.raiseSeriesWatermark(9100L, 9150L, 9199L));
+        assertEquals(9199L, hidBlockRepository.findSeriesWatermark(9100L).getEndsAt());
+    }
+}
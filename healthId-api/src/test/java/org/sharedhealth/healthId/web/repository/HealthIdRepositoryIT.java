@@ -2,6 +2,7 @@ package org.sharedhealth.healthId.web.repository;
 
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select;
+import net.sf.ehcache.CacheManager;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -17,15 +18,18 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
-import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_MCI_HEALTH_ID;
-import static org.sharedhealth.healthId.web.repository.RepositoryConstants.HID;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @WebAppConfiguration
@@ -43,6 +47,7 @@ public class HealthIdRepositoryIT {
     @After
     public void tearDown() {
         TestUtil.truncateAllColumnFamilies(cqlTemplate);
+        CacheManager.getInstance().clearAll();
     }
 
     private void createHealthIds(long prefix) {
@@ -67,10 +72,130 @@ public class HealthIdRepositoryIT {
         List<MciHealthId> nextBlock = healthIdRepository.getNextBlock(2);
         MciHealthId mciHealthId = nextBlock.get(0);
         String hid = mciHealthId.getHid();
-        OrgHealthId orgHealthId = new OrgHealthId(hid, "MCI", null);
-        healthIdRepository.saveOrgHidAndDeleteMciHid(asList(mciHealthId), asList(orgHealthId));
+        healthIdRepository.saveOrgHidAndDeleteMciHid("node-1", asList(mciHealthId), "MCI", timeBased()).toBlocking().first();
         assertNull(getHealthId(hid));
-        assertNotNull(healthIdRepository.findOrgHealthId(hid));
+        assertNotNull(healthIdRepository.findOrgHealthId(hid).toBlocking().first());
+        assertEquals(0, healthIdRepository.replayAllocationJournal("node-1", 0));
+    }
+
+    @Test
+    public void shouldReplayJournaledAllocationWithoutResettingUsedHIDs() throws Exception {
+        createHealthIds(98190001231L);
+        List<MciHealthId> reserved = healthIdRepository.reserveNextBlock("node-1", 2, 600);
+        UUID generatedAt = timeBased();
+        Set<String> healthIds = new HashSet<>(asList(reserved.get(0).getHid(), reserved.get(1).getHid()));
+        cqlTemplate.execute(QueryBuilder.insertInto(CF_HID_ALLOCATION_JOURNAL)
+                .value(NODE_ID, "node-1")
+                .value(ENTRY_ID, timeBased())
+                .value(HEALTH_IDS, healthIds)
+                .value(ALLOCATED_FOR, "MCI")
+                .value(GENERATED_AT, generatedAt)
+                .value(RESERVED, true));
+        OrgHealthId used = new OrgHealthId(reserved.get(0).getHid(), "MCI", generatedAt);
+        used.markUsed(timeBased());
+        healthIdRepository.saveOrUpdateOrgHealthId(used).toBlocking().first();
+
+        assertEquals(1, healthIdRepository.replayAllocationJournal("node-1", 0));
+
+        assertTrue(healthIdRepository.findReservedHealthIds("node-1").isEmpty());
+        assertTrue(healthIdRepository.findOrgHealthId(reserved.get(0).getHid()).toBlocking().first().isUsed());
+        assertNotNull(healthIdRepository.findOrgHealthId(reserved.get(1).getHid()).toBlocking().first());
+        assertEquals(0, healthIdRepository.replayAllocationJournal("node-1", 0));
+    }
+
+    @Test
+    public void shouldMoveReservedHIDsOutOfMciHIDsUntilTheyAreAllocated() throws Exception {
+        long prefix = 98190001231L;
+        createHealthIds(prefix);
+        List<MciHealthId> reserved = healthIdRepository.reserveNextBlock("node-1", 3, 600);
+
+        assertEquals(3, reserved.size());
+        assertNull(getHealthId(reserved.get(0).getHid()));
+        assertEquals(reserved.size(), healthIdRepository.findReservedHealthIds("node-1").size());
+        assertTrue(healthIdRepository.findReservedHealthIds("node-2").isEmpty());
+        assertEquals(10, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+
+        MciHealthId allocated = reserved.get(0);
+        healthIdRepository.saveOrgHidAndReleaseReservations("node-1", asList(allocated), "MCI", timeBased()).toBlocking().first();
+        assertEquals(2, healthIdRepository.findReservedHealthIds("node-1").size());
+        assertNotNull(healthIdRepository.findOrgHealthId(allocated.getHid()).toBlocking().first());
+    }
+
+    @Test
+    public void shouldDrawABlockFromSeveralBucketsOfThePool() throws Exception {
+        createHealthIds(9800000000L);
+        List<MciHealthId> reserved = healthIdRepository.reserveNextBlock("node-1", 10, 600);
+
+        Set<Integer> buckets = new HashSet<>();
+        for (MciHealthId mciHealthId : reserved) {
+            buckets.add(HealthIdRepository.bucketOf(mciHealthId.getHid()));
+            assertNull(getHealthId(mciHealthId.getHid()));
+        }
+        assertEquals(10, new HashSet<>(reserved).size());
+        assertTrue(buckets.size() > 1);
+        assertTrue(healthIdRepository.reserveNextBlock("node-1", 10, 600).isEmpty());
+    }
+
+    @Test
+    public void shouldMoveLegacyHIDsIntoThePool() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            cqlTemplate.execute(QueryBuilder.insertInto(CF_MCI_HEALTH_ID).value(HID, String.valueOf(9800000000L + i)));
+        }
+        List<MciHealthId> legacy = healthIdRepository.findLegacyHealthIds(null, 3);
+        assertEquals(3, legacy.size());
+        assertEquals(3, healthIdRepository.moveToPool(legacy, "migration", 600));
+        List<MciHealthId> rest = healthIdRepository.findLegacyHealthIds(legacy.get(2).getHid(), 3);
+        assertEquals(2, rest.size());
+        assertEquals(2, healthIdRepository.moveToPool(rest, "migration", 600));
+
+        assertTrue(healthIdRepository.findLegacyHealthIds(null, 3).isEmpty());
+        assertEquals(5, healthIdRepository.reserveNextBlock("node-1", 10, 600).size());
+    }
+
+    @Test
+    public void shouldCountFreeHIDsAsTheyAreSavedAndAllocated() throws Exception {
+        createHealthIds(98190001231L);
+        List<MciHealthId> reserved = healthIdRepository.reserveNextBlock("node-1", 3, 600);
+        assertEquals(10, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+
+        healthIdRepository.saveOrgHidAndReleaseReservations("node-1", reserved, "MCI", timeBased()).toBlocking().first();
+        healthIdRepository.saveMciHealthId(new MciHealthId("98190001231")).toBlocking().first();
+
+        assertEquals(7, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+    }
+
+    @Test
+    public void shouldSeedTheFreeHIDCountOnce() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            cqlTemplate.execute(QueryBuilder.insertInto(CF_MCI_HEALTH_ID).value(HID, String.valueOf(9800000000L + i)));
+        }
+        createHealthIds(98190001231L);
+
+        assertTrue(healthIdRepository.seedFreeHIDCount("node-1", 600));
+        assertTrue(healthIdRepository.seedFreeHIDCount("node-2", 600));
+
+        assertEquals(15, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+    }
+
+    @Test
+    public void shouldNotSeedTheFreeHIDCountWhileAnotherNodeHoldsTheClaim() throws Exception {
+        createHealthIds(98190001231L);
+        cqlTemplate.execute(QueryBuilder.insertInto(CF_MCI_HID_COUNT_SEEDS).value(NAME, FREE_MCI_HIDS).value(SEEDED_BY, "node-2"));
+
+        assertFalse(healthIdRepository.seedFreeHIDCount("node-1", 600));
+
+        assertEquals(10, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+    }
+
+    @Test
+    public void shouldNotSaveAnOrgHIDOverAnotherOrgsHID() throws Exception {
+        OrgHealthId first = new OrgHealthId("9110", "OTHER-ORG", timeBased());
+        OrgHealthId second = new OrgHealthId("9110", "ANOTHER-ORG", timeBased());
+
+        assertTrue(healthIdRepository.saveOrgHealthIdIfAbsent(first).toBlocking().first());
+        assertFalse(healthIdRepository.saveOrgHealthIdIfAbsent(second).toBlocking().first());
+
+        assertEquals("OTHER-ORG", healthIdRepository.findOrgHealthId("9110").toBlocking().first().getAllocatedFor());
     }
 
     @Test
@@ -94,10 +219,65 @@ public class HealthIdRepositoryIT {
         assertEquals(hid, orgHealthId);
     }
 
+    @Test
+    public void shouldFindOrgHIDsByGivenHIDs() throws Exception {
+        OrgHealthId hid = new OrgHealthId("1234", "XYZ", timeBased());
+        OrgHealthId otherHid = new OrgHealthId("1134", "ABC", timeBased());
+        cqlTemplate.insert(asList(hid, otherHid, new OrgHealthId("1334", "ABC", timeBased())));
+
+        Map<String, OrgHealthId> orgHealthIds = healthIdRepository.findOrgHealthIds(asList("1234", "1134", "1434")).toBlocking().single();
+        assertEquals(2, orgHealthIds.size());
+        assertEquals(hid, orgHealthIds.get("1234"));
+        assertEquals(otherHid, orgHealthIds.get("1134"));
+    }
+
+    @Test
+    public void shouldMarkOrgHIDUsedOnlyOnce() throws Exception {
+        cqlTemplate.insert(new OrgHealthId("1234", "XYZ", timeBased()));
+        UUID usedAt = timeBased();
+
+        assertTrue(healthIdRepository.markOrgHealthIdUsed("1234", usedAt).toBlocking().single());
+        assertFalse(healthIdRepository.markOrgHealthIdUsed("1234", timeBased()).toBlocking().single());
+        assertNull(healthIdRepository.markOrgHealthIdUsed("1434", usedAt).toBlocking().single());
+
+        OrgHealthId orgHealthId = healthIdRepository.findOrgHealthId("1234").toBlocking().first();
+        assertTrue(orgHealthId.isUsed());
+        assertEquals(usedAt, orgHealthId.getUsedAt());
+        assertNull(healthIdRepository.findOrgHealthId("1434").toBlocking().first());
+    }
+
+    @Test
+    public void shouldMarkJournaledOrgHIDUsed() throws Exception {
+        cqlTemplate.execute(QueryBuilder.insertInto(CF_ORG_HEALTH_ID)
+                .value(HEALTH_ID, "1234")
+                .value(ALLOCATED_FOR, "MCI")
+                .value(GENERATED_AT, timeBased()));
+
+        assertTrue(healthIdRepository.markOrgHealthIdUsed("1234", timeBased()).toBlocking().single());
+        assertFalse(healthIdRepository.markOrgHealthIdUsed("1234", timeBased()).toBlocking().single());
+    }
+
+    @Test
+    public void shouldCacheLookupsUntilTheOrgHIDIsWritten() throws Exception {
+        assertNull(healthIdRepository.findOrgHealthId("1234").toBlocking().first());
+        cqlTemplate.insert(new OrgHealthId("1234", "XYZ", timeBased()));
+        assertNull(healthIdRepository.findOrgHealthId("1234").toBlocking().first());
+        assertTrue(healthIdRepository.findOrgHealthIds(asList("1234")).toBlocking().single().isEmpty());
+
+        OrgHealthId hid = new OrgHealthId("1234", "ABC", timeBased());
+        healthIdRepository.saveOrUpdateOrgHealthId(hid).toBlocking().first();
+        assertEquals(hid, healthIdRepository.findOrgHealthId("1234").toBlocking().first());
+
+        healthIdRepository.markOrgHealthIdUsed("1234", timeBased()).toBlocking().single();
+        assertTrue(healthIdRepository.findOrgHealthId("1234").toBlocking().first().isUsed());
+    }
+
     public MciHealthId getHealthId(String hid) {
+        Select pooled = QueryBuilder.select().from(CF_MCI_HID_POOL);
+        pooled.where(QueryBuilder.eq(BUCKET, HealthIdRepository.bucketOf(hid))).and(QueryBuilder.eq(HID, hid));
+        if (!cqlTemplate.query(pooled).isExhausted()) return new MciHealthId(hid);
         Select selectHealthId = QueryBuilder.select().from(CF_MCI_HEALTH_ID).where(QueryBuilder.eq(HID, hid)).limit(1);
         List<MciHealthId> mciHealthIds = cqlTemplate.select(selectHealthId, MciHealthId.class);
         return mciHealthIds.isEmpty() ? null : mciHealthIds.get(0);
     }
 }
-
@@ -0,0 +1,96 @@
+package org.sharedhealth.healthId.web.repository;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.HidRange;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.config.EnvironmentMock;
+import org.sharedhealth.healthId.web.launch.WebMvcConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.UUID;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.sharedhealth.healthId.web.utils.TestUtil.truncateAllColumnFamilies;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(initializers = EnvironmentMock.class, classes = WebMvcConfig.class)
+public class HidRangeRepositoryIT {
+
+    @SuppressWarnings("SpringJavaAutowiringInspection")
+    @Autowired
+    @Qualifier("HealthIdCassandraTemplate")
+    private CassandraOperations cqlTemplate;
+
+    @Autowired
+    private HidRangeRepository hidRangeRepository;
+
+    @After
+    public void tearDown() {
+        truncateAllColumnFamilies(cqlTemplate);
+    }
+
+    @Test
+    public void shouldAdvanceCursorOnlyFromExpectedPosition() throws Exception {
+        hidRangeRepository.saveRange(9800000000L, 9800000000L, 9800000999L);
+        HidRange range = hidRangeRepository.findOpenRanges().get(0);
+
+        assertTrue(hidRangeRepository.advanceRange(range, 9800000000L, 9800000100L));
+        assertFalse(hidRangeRepository.advanceRange(range, 9800000000L, 9800000200L));
+        assertEquals(9800000100L, hidRangeRepository.findRange(9800000000L, 9800000000L).getNextCandidate());
+    }
+
+    @Test
+    public void shouldNotResetCursorWhenRangeIsSavedAgain() throws Exception {
+        hidRangeRepository.saveRange(9800000000L, 9800000000L, 9800000999L);
+        HidRange range = hidRangeRepository.findRange(9800000000L, 9800000000L);
+        hidRangeRepository.advanceRange(range, 9800000000L, 9800000100L);
+
+        hidRangeRepository.saveRange(9800000000L, 9800000000L, 9800000999L);
+
+        assertEquals(9800000100L, hidRangeRepository.findRange(9800000000L, 9800000000L).getNextCandidate());
+    }
+
+    @Test
+    public void shouldFindAllocationCoveringCandidate() throws Exception {
+        UUID allocatedAt = timeBased();
+        hidRangeRepository.saveAllocationIfAbsent(9800000000L, 9800000000L, 9800000099L, "MCI", allocatedAt);
+        hidRangeRepository.saveAllocationIfAbsent(9800000000L, 9800000200L, 9800000299L, "MCI", allocatedAt);
+
+        OrgHealthId allocation = hidRangeRepository.findAllocation(9800000000L, 9800000050L, "98000000505");
+        assertEquals("MCI", allocation.getAllocatedFor());
+        assertEquals("98000000505", allocation.getHealthId());
+        assertNull(hidRangeRepository.findAllocation(9800000000L, 9800000150L, "98000001504"));
+    }
+
+    @Test
+    public void shouldKeepTheAllocationRecordedFirstAtACursor() throws Exception {
+        assertNull(hidRangeRepository.saveAllocationIfAbsent(9800000000L, 9800000000L, 9800000099L, "MCI-1", timeBased()));
+
+        assertEquals(9800000099L, hidRangeRepository.saveAllocationIfAbsent(9800000000L, 9800000000L, 9800000049L, "MCI-2", timeBased()).longValue());
+        assertEquals("MCI-1", hidRangeRepository.findAllocation(9800000000L, 9800000050L, "98000000505").getAllocatedFor());
+    }
+
+    @Test
+    public void shouldOnlyFindRangesUntilTheyAreClosed() throws Exception {
+        hidRangeRepository.saveRange(9800000000L, 9800000000L, 9800000999L);
+        hidRangeRepository.saveRange(9900000000L, 9900000000L, 9900000999L);
+
+        hidRangeRepository.closeRange(9800000000L, 9800000000L);
+
+        assertEquals(1, hidRangeRepository.findOpenRanges().size());
+        assertEquals(9900000000L, hidRangeRepository.findOpenRanges().get(0).getSeriesNo());
+        assertEquals(9800000000L, hidRangeRepository.findRange(9800000000L, 9800000000L).getBeginsAt());
+    }
+}
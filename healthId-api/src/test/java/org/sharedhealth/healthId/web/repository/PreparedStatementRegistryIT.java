@@ -0,0 +1,131 @@
+package org.sharedhealth.healthId.web.repository;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
+import net.sf.ehcache.CacheManager;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.EnvironmentMock;
+import org.sharedhealth.healthId.web.launch.WebMvcConfig;
+import org.sharedhealth.healthId.web.utils.TestUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static org.junit.Assert.*;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(initializers = EnvironmentMock.class, classes = WebMvcConfig.class)
+public class PreparedStatementRegistryIT {
+    private static final Logger logger = LoggerFactory.getLogger(PreparedStatementRegistryIT.class);
+    private static final int ITERATIONS = 2000;
+
+    @SuppressWarnings("SpringJavaAutowiringInspection")
+    @Autowired
+    @Qualifier("HealthIdCassandraTemplate")
+    private CassandraOperations cqlTemplate;
+
+    @Autowired
+    private PreparedStatementRegistry preparedStatements;
+
+    @Autowired
+    private HealthIdRepository healthIdRepository;
+
+    @After
+    public void tearDown() {
+        TestUtil.truncateAllColumnFamilies(cqlTemplate);
+        CacheManager.getInstance().clearAll();
+    }
+
+    @Test
+    public void shouldPrepareAStatementOnlyOnce() throws Exception {
+        RegularStatement select = QueryBuilder.select().from(CF_ORG_HEALTH_ID).where(eq(HEALTH_ID, bindMarker()));
+        int prepared = preparedStatements.size();
+
+        PreparedStatement first = preparedStatements.prepare(select);
+        PreparedStatement second = preparedStatements.prepare(
+                QueryBuilder.select().from(CF_ORG_HEALTH_ID).where(eq(HEALTH_ID, bindMarker())));
+
+        assertSame(first, second);
+        assertEquals(prepared + 1, preparedStatements.size());
+    }
+
+    @Test
+    public void shouldPrepareRepositoryQueriesAtStartup() throws Exception {
+        int prepared = preparedStatements.size();
+
+        healthIdRepository.saveMciHealthId(new MciHealthId("98000000011")).toBlocking().first();
+        CacheManager.getInstance().clearAll();
+        healthIdRepository.findOrgHealthId("98000000011").toBlocking().first();
+
+        assertEquals(prepared, preparedStatements.size());
+    }
+
+    @Test
+    public void shouldSaveAndFindFasterWithPreparedStatements() throws Exception {
+        long unpreparedSave = time(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    String hid = String.valueOf(98100000000L + i);
+                    cqlTemplate.execute(QueryBuilder.insertInto(CF_MCI_HID_POOL)
+                            .value(BUCKET, HealthIdRepository.bucketOf(hid)).value(HID, hid).ifNotExists());
+                }
+            }
+        });
+        long preparedSave = time(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    healthIdRepository.saveMciHealthId(new MciHealthId(String.valueOf(98200000000L + i))).toBlocking().first();
+                }
+            }
+        });
+        long unpreparedFind = time(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Select select = QueryBuilder.select().from(CF_ORG_HEALTH_ID)
+                            .where(eq(HEALTH_ID, String.valueOf(98300000000L + i))).limit(1);
+                    cqlTemplate.query(select).one();
+                }
+            }
+        });
+        long preparedFind = time(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    healthIdRepository.findOrgHealthId(String.valueOf(98400000000L + i)).toBlocking().first();
+                }
+            }
+        });
+
+        logger.info(String.format("saveMciHealthId: %s ops/s unprepared, %s ops/s prepared",
+                throughput(unpreparedSave), throughput(preparedSave)));
+        logger.info(String.format("findOrgHealthId: %s ops/s unprepared, %s ops/s prepared",
+                throughput(unpreparedFind), throughput(preparedFind)));
+    }
+
+    private long time(Runnable runnable) {
+        long start = System.nanoTime();
+        runnable.run();
+        return System.nanoTime() - start;
+    }
+
+    private long throughput(long nanos) {
+        return ITERATIONS * 1000000000L / Math.max(nanos, 1);
+    }
+}
@@ -4,9 +4,18 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.SeriesClaim;
+import org.sharedhealth.healthId.web.Model.SeriesWatermark;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.repository.GeneratedHidBlockRepository;
 
+import java.util.UUID;
+
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -19,7 +28,9 @@ public class GeneratedHIDBlockServiceTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        hidBlockService = new GeneratedHidBlockService(generatedHidBlockRepository);
+        HealthIdProperties healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setHidSeriesClaimTtl("60");
+        hidBlockService = new GeneratedHidBlockService(generatedHidBlockRepository, healthIdProperties);
     }
 
     @Test
@@ -43,6 +54,84 @@ public class GeneratedHIDBlockServiceTest {
 
     @Test
     public void shouldIdentifyStartForAGivenSeries() throws Exception {
+        long seriesNo = 9100L;
+        when(generatedHidBlockRepository.getPreGeneratedHidBlocks(seriesNo)).thenReturn(asList(
+                new GeneratedHIDBlock(seriesNo, "MCI", 9100L, 9165L, 20L, null, timeBased()),
+                new GeneratedHIDBlock(seriesNo, "MCI", 9166L, 9170L, 5L, null, timeBased())));
+        when(generatedHidBlockRepository.createSeriesWatermark(seriesNo, 9170L)).thenReturn(true);
+        when(generatedHidBlockRepository.claimSeriesWatermark(eq(seriesNo), eq(9170L), any(UUID.class), eq(60))).thenReturn(true);
+
+        SeriesClaim claim = hidBlockService.claimSeries(seriesNo);
+
+        assertEquals(9171L, claim.getStartsAt());
+        verify(generatedHidBlockRepository).createSeriesWatermark(seriesNo, 9170L);
+    }
+
+    @Test
+    public void shouldStartAtSeriesNoWhenNothingWasGenerated() throws Exception {
+        long seriesNo = 9100L;
+        when(generatedHidBlockRepository.createSeriesWatermark(seriesNo, 9099L)).thenReturn(true);
+        when(generatedHidBlockRepository.claimSeriesWatermark(eq(seriesNo), eq(9099L), any(UUID.class), eq(60))).thenReturn(true);
+
+        assertEquals(9100L, hidBlockService.claimSeries(seriesNo).getStartsAt());
+    }
+
+    @Test
+    public void shouldClaimFromCachedWatermarkAfterRelease() throws Exception {
+        long seriesNo = 9100L;
+        when(generatedHidBlockRepository.findSeriesWatermark(seriesNo)).thenReturn(new SeriesWatermark(seriesNo, 9150L, null));
+        when(generatedHidBlockRepository.claimSeriesWatermark(eq(seriesNo), anyLong(), any(UUID.class), eq(60))).thenReturn(true);
+        when(generatedHidBlockRepository.releaseSeriesWatermark(eq(seriesNo), any(UUID.class), eq(9170L))).thenReturn(true);
+
+        SeriesClaim first = hidBlockService.claimSeries(seriesNo);
+        hidBlockService.releaseSeries(first, 9170L);
+        SeriesClaim second = hidBlockService.claimSeries(seriesNo);
+
+        assertEquals(9151L, first.getStartsAt());
+        assertEquals(9171L, second.getStartsAt());
+        verify(generatedHidBlockRepository, times(1)).findSeriesWatermark(seriesNo);
+        verify(generatedHidBlockRepository, never()).getPreGeneratedHidBlocks(seriesNo);
+    }
+
+    @Test
+    public void shouldReloadWatermarkWhenCachedOneIsStale() throws Exception {
+        long seriesNo = 9100L;
+        when(generatedHidBlockRepository.findSeriesWatermark(seriesNo)).thenReturn(new SeriesWatermark(seriesNo, 9150L, null),
+                new SeriesWatermark(seriesNo, 9200L, null));
+        when(generatedHidBlockRepository.claimSeriesWatermark(eq(seriesNo), anyLong(), any(UUID.class), eq(60))).thenReturn(true);
+        when(generatedHidBlockRepository.releaseSeriesWatermark(eq(seriesNo), any(UUID.class), anyLong())).thenReturn(true);
+        hidBlockService.releaseSeries(hidBlockService.claimSeries(seriesNo), 9160L);
+        when(generatedHidBlockRepository.claimSeriesWatermark(eq(seriesNo), eq(9160L), any(UUID.class), eq(60))).thenReturn(false);
+
+        assertEquals(9201L, hidBlockService.claimSeries(seriesNo).getStartsAt());
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldFailFastWhenSeriesIsClaimedByAnotherRun() throws Exception {
+        long seriesNo = 9100L;
+        when(generatedHidBlockRepository.findSeriesWatermark(seriesNo)).thenReturn(new SeriesWatermark(seriesNo, 9150L, timeBased()));
+
+        hidBlockService.claimSeries(seriesNo);
+    }
+
+    @Test
+    public void shouldRaiseWatermarkWhenClaimExpiredBeforeRelease() throws Exception {
+        long seriesNo = 9100L;
+        SeriesClaim claim = new SeriesClaim(seriesNo, 9151L, timeBased());
+        when(generatedHidBlockRepository.releaseSeriesWatermark(seriesNo, claim.getClaimedBy(), 9170L)).thenReturn(false);
+        when(generatedHidBlockRepository.findSeriesWatermark(seriesNo)).thenReturn(new SeriesWatermark(seriesNo, 9150L, null));
+        when(generatedHidBlockRepository.raiseSeriesWatermark(seriesNo, 9150L, 9170L)).thenReturn(true);
+
+        hidBlockService.releaseSeries(claim, 9170L);
+
+        verify(generatedHidBlockRepository).raiseSeriesWatermark(seriesNo, 9150L, 9170L);
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldFailWhenTheClaimCannotBeRenewed() throws Exception {
+        SeriesClaim claim = new SeriesClaim(9100L, 9151L, timeBased());
+        when(generatedHidBlockRepository.renewSeriesWatermark(9100L, claim.getClaimedBy(), 60)).thenReturn(false);
 
+        hidBlockService.renewSeries(claim);
     }
-}
\ No newline at end of file
+}
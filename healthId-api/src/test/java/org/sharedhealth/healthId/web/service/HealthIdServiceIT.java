@@ -1,5 +1,6 @@
 package org.sharedhealth.healthId.web.service;
 
+import net.sf.ehcache.CacheManager;
 import org.apache.commons.collections.CollectionUtils;
 import org.junit.After;
 import org.junit.Test;
@@ -45,13 +46,14 @@ public class HealthIdServiceIT {
     @After
     public void tearDown() throws Exception {
         TestUtil.truncateAllColumnFamilies(cqlTemplate);
+        CacheManager.getInstance().clearAll();
     }
 
     @Test
     public void shouldGenerateUniqueBlock() throws Exception {
         createHealthIds(9800000000L, 50);
-        List<MciHealthId> mciHealthIds = healthIdService.getNextBlock("MCI1", 10);
-        List<MciHealthId> mciHealthIds2 = healthIdService.getNextBlock("MCI2", 20);
+        List<MciHealthId> mciHealthIds = healthIdService.getNextBlock("MCI1", 10).toBlocking().first();
+        List<MciHealthId> mciHealthIds2 = healthIdService.getNextBlock("MCI2", 20).toBlocking().first();
         Collection intersection = CollectionUtils.intersection(mciHealthIds, mciHealthIds2);
         assertTrue(CollectionUtils.isEmpty(intersection));
     }
@@ -72,11 +74,13 @@ public class HealthIdServiceIT {
     @Test
     public void shouldGiveOutRemainingHIDsAndIfNeedToGenerateNewHIDsOrNot() throws Exception {
         createHealthIds(9800000000L, 50);
-        int remainingHIDs = healthIdService.findRemainingHIDs().toBlocking().first();
-        assertEquals(10, remainingHIDs);
+        healthIdService.refreshRemainingHIDs();
+        long remainingHIDs = healthIdService.findRemainingHIDs().toBlocking().first();
+        assertEquals(50, remainingHIDs);
 
-        healthIdService.getNextBlock("MCI1",45);
+        healthIdService.getNextBlock("MCI1", 45).toBlocking().first();
 
+        healthIdService.refreshRemainingHIDs();
         remainingHIDs = healthIdService.findRemainingHIDs().toBlocking().first();
         assertEquals(5, remainingHIDs);
     }
@@ -11,21 +11,33 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HealthIdUsage;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.Model.SeriesClaim;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
 import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.security.UserProfile;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
 import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
 import rx.Observable;
+import rx.functions.Action1;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
@@ -46,10 +58,14 @@ public class HealthIdServiceTest {
     private LuhnChecksumGenerator checksumGenerator;
     @Mock
     private GeneratedHidBlockService generatedHidBlockService;
+    @Mock
+    private HidReservoir hidReservoir;
+    @Mock
+    private HidRangeAllocator hidRangeAllocator;
 
     @Before
     public void setUp() throws Exception {
-        healthIdProperties = new HealthIdProperties();
+        healthIdProperties = createProperties();
         healthIdProperties.setMciInvalidHidPattern("^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}");
         healthIdProperties.setOtherOrgInvalidHidPattern("^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}");
         healthIdProperties.setMciStartHid("9800000000");
@@ -57,6 +73,16 @@ public class HealthIdServiceTest {
         healthIdProperties.setHealthIdBlockSize("10");
         healthIdProperties.setMciOrgCode("MCI");
         initMocks(this);
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.countAllocatedHIDs(anyLong())).thenReturn(Observable.just(0L));
+        when(hidReservoir.nextBlock(anyString(), anyInt())).thenReturn(Observable.<List<MciHealthId>>just(new ArrayList<MciHealthId>()));
+        when(generatedHidBlockService.claimSeries(anyLong())).thenAnswer(new Answer<SeriesClaim>() {
+            @Override
+            public SeriesClaim answer(InvocationOnMock invocation) throws Throwable {
+                long seriesNo = (Long) invocation.getArguments()[0];
+                return new SeriesClaim(seriesNo, seriesNo, timeBased());
+            }
+        });
     }
 
     @After
@@ -117,7 +143,7 @@ public class HealthIdServiceTest {
 
     @Test
     public void shouldExecuteConfiguredInvalidRegex() {
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciStartHid("1000");
         testProperties.setMciEndHid("1099");
         testProperties.setHidStoragePath("test-hid");
@@ -125,14 +151,14 @@ public class HealthIdServiceTest {
         // and we will mark it as invalid
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
         assertEquals(80, hidBlock.getTotalHIDs().longValue());
     }
 
     @Test
     public void shouldExecuteCorrectMCIHIDRegex() {
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciStartHid("9800005790");
         testProperties.setMciEndHid("9800005792");
         testProperties.setHidStoragePath("test-hid");
@@ -140,16 +166,16 @@ public class HealthIdServiceTest {
         // and we will mark it as invalid
         testProperties.setMciInvalidHidPattern("^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
         assertEquals(0, hidBlock.getTotalHIDs().longValue());
     }
 
     @Test
     public void shouldSaveValidHids() {
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
 
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciStartHid("1000");
         testProperties.setMciEndHid("1099");
         testProperties.setHidStoragePath("test-hid");
@@ -157,29 +183,29 @@ public class HealthIdServiceTest {
         // and we will mark it as invalid
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
         assertEquals(80, hidBlock.getTotalHIDs().longValue());
 
         ArgumentCaptor<MciHealthId> healthIdArgumentCaptor = ArgumentCaptor.forClass(MciHealthId.class);
         verify(healthIdRepository, times(80)).saveMciHealthId(healthIdArgumentCaptor.capture());
-        verify(checksumGenerator, times(80)).generate(any(String.class));
+        verify(checksumGenerator, times(80)).generate(anyLong());
         assertTrue(String.valueOf(healthIdArgumentCaptor.getValue().getHid()).endsWith("1"));
     }
 
     @Test
     public void shouldSaveTheGeneratedBlock() throws Exception {
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setMciStartHid("1000");
         testProperties.setMciEndHid("1099");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateAll(getUserInfo());
 
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
@@ -193,18 +219,65 @@ public class HealthIdServiceTest {
         assertRequestedBy(passedHidBlock);
     }
 
+    @Test
+    public void shouldClaimEverySeriesOfTheRangeAndReleaseEachAtItsLastGeneratedHID() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setMciStartHid("1090");
+        testProperties.setMciEndHid("1109");
+        testProperties.setHidStoragePath("test-hid");
+        SeriesClaim firstClaim = new SeriesClaim(1000L, 1000L, timeBased());
+        SeriesClaim secondClaim = new SeriesClaim(1100L, 1100L, timeBased());
+        when(generatedHidBlockService.claimSeries(1000L)).thenReturn(firstClaim);
+        when(generatedHidBlockService.claimSeries(1100L)).thenReturn(secondClaim);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        healthIdService.generateAll(getUserInfo());
+
+        verify(generatedHidBlockService).releaseSeries(firstClaim, 1099L);
+        verify(generatedHidBlockService).releaseSeries(secondClaim, 1109L);
+        verify(generatedHidBlockService, never()).claimSeries(1200L);
+        verify(generatedHidBlockService, never()).raiseWatermark(anyLong(), anyLong());
+    }
+
+    @Test
+    public void shouldReleaseTheClaimedSeriesWhenGenerationFails() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        SeriesClaim seriesClaim = new SeriesClaim(1000L, 1020L, timeBased());
+        when(generatedHidBlockService.claimSeries(1000L)).thenReturn(seriesClaim);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenThrow(new RuntimeException("unavailable"));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        try {
+            healthIdService.generateAll(getUserInfo());
+            fail("Expected the failure to be rethrown");
+        } catch (RuntimeException e) {
+            assertEquals("unavailable", e.getMessage());
+        }
+
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 1099L);
+    }
+
     @Test
     public void shouldNotSaveBlockIfNoHIDsAreGenerated() throws Exception {
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setMciStartHid("1040");
         testProperties.setMciEndHid("1050");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateAll(getUserInfo());
 
         verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
@@ -212,7 +285,7 @@ public class HealthIdServiceTest {
 
     @Test
     public void shouldNotGenerateAnyHidsIfStartHidIsGreaterThanEndHid() {
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciStartHid("1000");
         testProperties.setMciEndHid("999");
         testProperties.setHidStoragePath("test-hid");
@@ -220,15 +293,15 @@ public class HealthIdServiceTest {
         // and we will mark it as invalid
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
         assertEquals(0, hidBlock.getTotalHIDs().longValue());
     }
 
     @Test(expected = HealthIdExhaustedException.class)
     public void shouldGetExceptionIfIdsAreNotGeneratedBeforeFetch() throws ExecutionException, InterruptedException {
-        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
-        healthIdService.getNextBlock(healthIdProperties.getMciOrgCode(), 10);
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        healthIdService.getNextBlock(healthIdProperties.getMciOrgCode(), 10).toBlocking().first();
     }
 
     @Test
@@ -237,31 +310,91 @@ public class HealthIdServiceTest {
         result.add(new MciHealthId("898998"));
         result.add(new MciHealthId("898999"));
         int blockSize = 3;
-        when(healthIdRepository.getNextBlock(blockSize)).thenReturn(result);
+        when(hidReservoir.nextBlock("MCI", blockSize)).thenReturn(Observable.<List<MciHealthId>>just(result));
 
-        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
-        List<MciHealthId> nextBlock = healthIdService.getNextBlock("MCI", blockSize);
-        verify(healthIdRepository).getNextBlock(blockSize);
-        verify(healthIdRepository, times(1)).saveOrgHidAndDeleteMciHid(any(List.class), any(List.class));
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        List<MciHealthId> nextBlock = healthIdService.getNextBlock("MCI", blockSize).toBlocking().first();
+        verify(hidReservoir).nextBlock("MCI", blockSize);
         assertEquals(2, nextBlock.size());
     }
 
+    @Test
+    public void shouldTopUpBlockFromReservoirWhenRangesRunShort() {
+        healthIdProperties.setHidAllocationMode("ranges");
+        when(hidRangeAllocator.nextBlock("MCI", 3)).thenReturn(new ArrayList<>(asList(new MciHealthId("98000000011"))));
+        when(hidReservoir.nextBlock("MCI", 2)).thenReturn(Observable.<List<MciHealthId>>just(asList(new MciHealthId("98000000021"))));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        List<MciHealthId> nextBlock = healthIdService.getNextBlock("MCI", 3).toBlocking().first();
+
+        assertEquals(asList(new MciHealthId("98000000011"), new MciHealthId("98000000021")), nextBlock);
+    }
+
+    @Test
+    public void shouldRecordRangeInsteadOfWritingHIDsInRangeAllocationMode() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setHidAllocationMode("ranges");
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(10000, 100, getUserInfo());
+
+        verify(hidRangeAllocator).addRange(10000, 10119);
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+        assertEquals(100, hidBlock.getTotalHIDs().longValue());
+        assertEquals(10119, hidBlock.getEndsAt().longValue());
+    }
+
+    @Test
+    public void shouldFindHIDAllocatedFromRangeWithoutRow() throws Exception {
+        healthIdProperties.setHidAllocationMode("ranges");
+        OrgHealthId allocated = new OrgHealthId("98000000011", "MCI", timeBased());
+        when(healthIdRepository.findOrgHealthId("98000000011")).thenReturn(Observable.<OrgHealthId>just(null));
+        when(hidRangeAllocator.findAllocated("98000000011")).thenReturn(allocated);
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertEquals(allocated, healthIdService.findOrgHealthId("98000000011").toBlocking().first());
+    }
+
+    @Test
+    public void shouldFindHIDsAllocatedFromRangesWithoutRows() throws Exception {
+        healthIdProperties.setHidAllocationMode("ranges");
+        OrgHealthId withRow = new OrgHealthId("98000000029", "MCI", timeBased());
+        OrgHealthId allocated = new OrgHealthId("98000000011", "MCI", timeBased());
+        Map<String, OrgHealthId> found = new HashMap<>();
+        found.put("98000000029", withRow);
+        List<String> healthIds = asList("98000000011", "98000000029", "98000000037");
+        when(healthIdRepository.findOrgHealthIds(healthIds)).thenReturn(Observable.just(found));
+        when(hidRangeAllocator.findAllocated("98000000011")).thenReturn(allocated);
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        Map<String, OrgHealthId> orgHealthIds = healthIdService.findOrgHealthIds(healthIds).toBlocking().single();
+
+        assertEquals(2, orgHealthIds.size());
+        assertEquals(allocated, orgHealthIds.get("98000000011"));
+        assertEquals(withRow, orgHealthIds.get("98000000029"));
+        verify(hidRangeAllocator, never()).findAllocated("98000000029");
+    }
+
     @Test
     public void shouldGenerateValidHealthIdsForGivenTotalHIDs() throws Exception {
         long start = 10000;
         long totalHIDs = 100;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
         verify(healthIdRepository, times(100)).saveMciHealthId(any(MciHealthId.class));
-        verify(checksumGenerator, times(100)).generate(any(String.class));
+        verify(checksumGenerator, times(100)).generate(anyLong());
 
         verify(healthIdRepository, times(1)).saveMciHealthId(new MciHealthId("100001"));
         verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("100401"));
@@ -269,22 +402,40 @@ public class HealthIdServiceTest {
         verify(healthIdRepository, times(1)).saveMciHealthId(new MciHealthId("101191"));
     }
 
+    @Test
+    public void shouldCountOnlyPersistedHIDsInBlock() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setHidWriteRetries("1");
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("10011"))).thenReturn(Observable.<Boolean>error(new RuntimeException("timeout")));
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("10021"))).thenReturn(Observable.just(false));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 10, getUserInfo());
+
+        assertEquals(1009, hidBlock.getEndsAt().longValue());
+        assertEquals(9, hidBlock.getTotalHIDs().longValue());
+    }
+
     @Test
     public void shouldCalculateBlockEndAt() throws Exception {
         long start = 1000;
         long totalHIDs = 50;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(new ArrayList<GeneratedHIDBlock>());
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
@@ -302,23 +453,23 @@ public class HealthIdServiceTest {
     public void shouldIdentifyStartOfBlockFromPreGeneratedBlock() throws Exception {
         long start = 1000;
         long totalHIDs = 20;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(1000L, testProperties.getMciOrgCode(), 1000L, 1069L, 20L, null, timeBased());
+        SeriesClaim seriesClaim = new SeriesClaim(1000L, 1070L, timeBased());
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(asList(generatedHIDBlock));
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.claimSeries(1000L)).thenReturn(seriesClaim);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).claimSeries(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -326,6 +477,7 @@ public class HealthIdServiceTest {
         assertEquals(1000, passedHidBlock.getSeriesNo().longValue());
         assertEquals(1070, passedHidBlock.getBeginsAt().longValue());
         assertEquals(1089, passedHidBlock.getEndsAt().longValue());
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 1089L);
         assertEquals(testProperties.getMciOrgCode(), passedHidBlock.getGeneratedFor());
         assertEquals(20, passedHidBlock.getTotalHIDs().longValue());
         assertRequestedBy(passedHidBlock);
@@ -341,14 +493,14 @@ public class HealthIdServiceTest {
     public void shouldNotSaveBlockIfNoHIDsGeneratedInBlock() throws Exception {
         long start = 1040;
         long totalHIDs = 0;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
         verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
@@ -358,21 +510,20 @@ public class HealthIdServiceTest {
     public void shouldAssignBlockFromStartOfSeriesNo() throws Exception {
         long start = 1040;
         long totalHIDs = 50;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(new ArrayList<GeneratedHIDBlock>());
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).claimSeries(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -388,24 +539,24 @@ public class HealthIdServiceTest {
     @Test
     public void shouldGenerateHIDsOnlyInGivenSeries() throws Exception {
         long start = 1040;
-        long totalHIDs = 20;
-        HealthIdProperties testProperties = new HealthIdProperties();
+        long totalHIDs = 10;
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("mci");
 
-        GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(1000L, testProperties.getMciOrgCode(), 1000L, 1089L, 80L, null, timeBased());
+        SeriesClaim seriesClaim = new SeriesClaim(1000L, 1090L, timeBased());
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(asList(generatedHIDBlock));
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.claimSeries(1000L)).thenReturn(seriesClaim);
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).claimSeries(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -413,11 +564,45 @@ public class HealthIdServiceTest {
         assertEquals(1000, passedHidBlock.getSeriesNo().longValue());
         assertEquals(1090, passedHidBlock.getBeginsAt().longValue());
         assertEquals(1099, passedHidBlock.getEndsAt().longValue());
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 1099L);
         assertEquals(testProperties.getMciOrgCode(), passedHidBlock.getGeneratedFor());
         assertEquals(10, passedHidBlock.getTotalHIDs().longValue());
         assertRequestedBy(passedHidBlock);
     }
 
+    @Test
+    public void shouldRejectRequestForMoreHIDsThanRemainInSeries() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        SeriesClaim seriesClaim = new SeriesClaim(1000L, 1090L, timeBased());
+
+        when(generatedHidBlockService.claimSeries(1000L)).thenReturn(seriesClaim);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        try {
+            healthIdService.generateBlock(1040, 11, getUserInfo());
+            fail("Expected request to be rejected");
+        } catch (InvalidRequestException e) {
+            assertEquals("Only 10 valid HIDs remain in series 1000. Use another series.", e.getMessage());
+        }
+
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+        verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 1089L);
+    }
+
+    @Test
+    public void shouldCountValidHIDsWithoutGeneratingThem() throws Exception {
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertEquals(0, healthIdService.countValidHIDs(9100000000L, 9799999999L, true));
+        assertTrue(healthIdService.countValidHIDs(9100000000L, 9799999999L, false) > 0);
+        assertEquals(healthIdService.countValidHIDs(9800000000L, 9999999999L, true),
+                healthIdService.countValidHIDs(9800000000L, 9899999999L, true) + healthIdService.countValidHIDs(9900000000L, 9999999999L, true));
+    }
+
     @Test
     public void shouldGenerateHIDsForGivenOrganization() throws Exception {
         final Date date = new DateTime().toDate();
@@ -426,25 +611,30 @@ public class HealthIdServiceTest {
         long start = 10000;
         long totalHIDs = 100;
         String orgCode = "OTHER-ORG";
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
-        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null));
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
 
-        verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
-        verify(checksumGenerator, times(100)).generate(anyString());
+        verify(healthIdRepository, times(100)).saveOrgHealthIdIfAbsent(any(OrgHealthId.class));
+        verify(checksumGenerator, times(100)).generate(anyLong());
+
+        verify(healthIdRepository, times(1)).saveOrgHealthIdIfAbsent(argThat(orgHID("100001", orgCode)));
+        verify(healthIdRepository, never()).saveOrgHealthIdIfAbsent(argThat(orgHID("100401", orgCode)));
+        verify(healthIdRepository, never()).saveOrgHealthIdIfAbsent(argThat(orgHID("100501", orgCode)));
+        verify(healthIdRepository, times(1)).saveOrgHealthIdIfAbsent(argThat(orgHID("101191", orgCode)));
 
-        verify(healthIdRepository, times(1)).saveOrUpdateOrgHealthId(argThat(orgHID("100001", orgCode)));
-        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(argThat(orgHID("100401", orgCode)));
-        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(argThat(orgHID("100501", orgCode)));
-        verify(healthIdRepository, times(1)).saveOrUpdateOrgHealthId(argThat(orgHID("101191", orgCode)));
+        File[] hidFiles = new File("test-hid").listFiles();
+        assertEquals(1, hidFiles.length);
+        assertTrue(hidFiles[0].getName().startsWith(orgCode));
+        assertEquals(100, Files.readAllLines(hidFiles[0].toPath(), StandardCharsets.US_ASCII).size());
     }
 
     Matcher<OrgHealthId> orgHID(final String healthId, final String orgCode) {
@@ -464,20 +654,20 @@ public class HealthIdServiceTest {
         long start = 10000;
         long totalHIDs = 100;
         String orgCode = "OTHER-ORG";
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
-        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null));
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
         healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
 
-        verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
-        verify(checksumGenerator, times(100)).generate(anyString());
+        verify(healthIdRepository, times(100)).saveOrgHealthIdIfAbsent(any(OrgHealthId.class));
+        verify(checksumGenerator, times(100)).generate(anyLong());
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
 
@@ -494,24 +684,300 @@ public class HealthIdServiceTest {
         long start = 10000;
         long totalHIDs = 100;
         String orgCode = "OTHER-ORG";
-        HealthIdProperties testProperties = new HealthIdProperties();
+        HealthIdProperties testProperties = createProperties();
         testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
-        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
-        when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null),
-                Observable.just(new OrgHealthId("100011", "XYZ", any(UUID.class))),
-                Observable.<OrgHealthId>just(null));
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.findExistingOrgHealthIds(anyCollection())).thenReturn(new HashSet<>(asList("100011")));
 
-        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
-        healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
+
+        verify(healthIdRepository, never()).findOrgHealthId(anyString());
+        verify(healthIdRepository, times(2)).findExistingOrgHealthIds(anyCollection());
+        verify(checksumGenerator, times(101)).generate(anyLong());
+        verify(healthIdRepository, times(100)).saveOrgHealthIdIfAbsent(any(OrgHealthId.class));
+        verify(healthIdRepository, never()).saveOrgHealthIdIfAbsent(argThat(orgHID("100011", orgCode)));
+        assertEquals(10120, hidBlock.getEndsAt().longValue());
+        assertEquals(100, hidBlock.getTotalHIDs().longValue());
+    }
+
+    @Test
+    public void shouldSkipHIDsSavedByAnotherRun() throws Exception {
+        String orgCode = "OTHER-ORG";
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(argThat(orgHID("100011", orgCode)))).thenReturn(Observable.just(false));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlockForOrg(10000L, 100, orgCode, getUserInfo());
+
+        verify(healthIdRepository, times(101)).saveOrgHealthIdIfAbsent(any(OrgHealthId.class));
+        assertEquals(10120, hidBlock.getEndsAt().longValue());
+        assertEquals(100, hidBlock.getTotalHIDs().longValue());
+        List<String> lines = Files.readAllLines(new File("test-hid").listFiles()[0].toPath(), StandardCharsets.US_ASCII);
+        assertEquals(100, lines.size());
+        assertFalse(lines.contains("100011"));
+    }
+
+    @Test
+    public void shouldWriteOrgHIDsInCandidateOrderWhenTheirInsertsFinishOutOfOrder() throws Exception {
+        String orgCode = "OTHER-ORG";
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(argThat(orgHID("100001", orgCode))))
+                .thenReturn(Observable.just(true).delay(100, TimeUnit.MILLISECONDS));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        healthIdService.generateBlockForOrg(10000L, 10, orgCode, getUserInfo());
+
+        List<String> lines = Files.readAllLines(new File("test-hid").listFiles()[0].toPath(), StandardCharsets.US_ASCII);
+        assertEquals(10, lines.size());
+        assertEquals("100001", lines.get(0));
+        assertEquals("100091", lines.get(9));
+    }
+
+    @Test
+    public void shouldNotLookUpCandidatesRuledOutByTheExistenceIndex() throws Exception {
+        String orgCode = "OTHER-ORG";
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        HidBloomFilter outOfRangeFilter = new HidBloomFilter(10, 0.0001);
+        outOfRangeFilter.put(10060L);
+        GeneratedHIDBlock previousBlock = new GeneratedHIDBlock(10000L, "XYZ", 10000L, 10019L, 20L, null, timeBased());
+        SeriesClaim seriesClaim = new SeriesClaim(10000L, 10020L, timeBased());
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(generatedHidBlockService.claimSeries(10000L)).thenReturn(seriesClaim);
+        when(generatedHidBlockService.getPreGeneratedHidBlocks(10000L)).thenReturn(asList(previousBlock));
+        when(generatedHidBlockService.findOutOfRangeFilter(10000L)).thenReturn(outOfRangeFilter);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.findExistingOrgHealthIds(asList("100601"))).thenReturn(new HashSet<>(asList("100601")));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlockForOrg(10000L, 50, orgCode, getUserInfo());
+
+        verify(healthIdRepository, times(1)).findExistingOrgHealthIds(anyCollection());
+        verify(healthIdRepository, never()).saveOrgHealthIdIfAbsent(argThat(orgHID("100601", orgCode)));
+        assertEquals(10020, hidBlock.getBeginsAt().longValue());
+        assertEquals(10090, hidBlock.getEndsAt().longValue());
+        assertEquals(50, hidBlock.getTotalHIDs().longValue());
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 10090L);
+    }
+
+    @Test
+    public void shouldReleaseSeriesPastConsumedCandidatesWhenGenerationFails() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        SeriesClaim seriesClaim = new SeriesClaim(10000L, 10000L, timeBased());
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(generatedHidBlockService.claimSeries(10000L)).thenReturn(seriesClaim);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.<Boolean>error(new RuntimeException("timeout")));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        try {
+            healthIdService.generateBlockForOrg(10000L, 10, "OTHER-ORG", getUserInfo());
+            fail("Expected generation to fail");
+        } catch (RuntimeException e) {
+            assertEquals("timeout", e.getMessage());
+        }
+
+        verify(generatedHidBlockService).releaseSeries(seriesClaim, 10009L);
+        verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
+    }
+
+    @Test
+    public void shouldStopGeneratingForOrgOnceTheSeriesClaimIsLost() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        SeriesClaim seriesClaim = new SeriesClaim(10000L, 10000L, timeBased());
+
+        when(checksumGenerator.generate(anyLong())).thenReturn(1);
+        when(generatedHidBlockService.claimSeries(10000L)).thenReturn(seriesClaim);
+        doThrow(new HidGenerationException("Claim on series 10000 expired before the block was generated"))
+                .when(generatedHidBlockService).renewSeries(seriesClaim);
+        when(healthIdRepository.saveOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        try {
+            healthIdService.generateBlockForOrg(10000L, 900, "OTHER-ORG", getUserInfo());
+            fail("Expected generation to fail");
+        } catch (HidGenerationException e) {
+            assertEquals("Claim on series 10000 expired before the block was generated", e.getMessage());
+        }
 
-        verify(healthIdRepository, times(101)).findOrgHealthId(anyString());
-        verify(checksumGenerator, times(101)).generate(anyString());
-        verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+        verify(healthIdRepository, times(900)).saveOrgHealthIdIfAbsent(any(OrgHealthId.class));
+        verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
+        assertEquals(0, new File("test-hid").listFiles().length);
+    }
+
+    @Test
+    public void shouldFindTheNextMciSeriesWithCapacityOnceOneIsExhausted() throws Exception {
+        HealthIdProperties testProperties = createProperties();
+        testProperties.setMciStartHid("9800000000");
+        testProperties.setMciEndHid("9999999999");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        when(generatedHidBlockService.findWatermark(9800000000L)).thenReturn(9899999990L);
+        when(generatedHidBlockService.findWatermark(9900000000L)).thenReturn(9899999999L);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertEquals(9800000000L, healthIdService.findMciSeriesWithCapacity(9).longValue());
+        assertEquals(9900000000L, healthIdService.findMciSeriesWithCapacity(1000).longValue());
+
+        when(generatedHidBlockService.findWatermark(9900000000L)).thenReturn(9999999999L);
+        assertNull(healthIdService.findMciSeriesWithCapacity(1000));
+    }
+
+    @Test
+    public void shouldRebuildExistenceFiltersFromHIDsOutsideGeneratedBlocks() throws Exception {
+        GeneratedHIDBlock block = new GeneratedHIDBlock(9100000000L, "XYZ", 9100000000L, 9100000099L, 100L, null, timeBased());
+        when(generatedHidBlockService.getPreGeneratedHidBlocks(9100000000L)).thenReturn(asList(block));
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Action1<String> action = (Action1<String>) invocation.getArguments()[0];
+                action.call("91000000505");
+                action.call("91000005005");
+                action.call("92000000003");
+                action.call("legacy-id");
+                return null;
+            }
+        }).when(healthIdRepository).scanOrgHealthIds(any(Action1.class));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        Map<Long, Long> entries = healthIdService.rebuildExistenceFilters();
+
+        assertEquals(2, entries.size());
+        assertEquals(1L, entries.get(9100000000L).longValue());
+        assertEquals(1L, entries.get(9200000000L).longValue());
+        ArgumentCaptor<Map> filters = ArgumentCaptor.forClass(Map.class);
+        verify(generatedHidBlockService).saveOutOfRangeFilters(filters.capture());
+        HidBloomFilter filter = (HidBloomFilter) filters.getValue().get(9100000000L);
+        assertTrue(filter.mightContain(9100000500L));
+        assertFalse(filter.mightContain(9100000050L));
+    }
+
+    @Test
+    public void shouldMarkEachHealthIdUsedAndReportResultsInRequestOrder() throws Exception {
+        UUID usedAt = timeBased();
+        when(healthIdRepository.markOrgHealthIdUsed("91000000505", usedAt)).thenReturn(Observable.just(true));
+        when(healthIdRepository.markOrgHealthIdUsed("91000005005", usedAt)).thenReturn(Observable.<Boolean>just(null));
+        when(healthIdRepository.markOrgHealthIdUsed("92000000003", usedAt)).thenReturn(Observable.just(true));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        Map<String, String> results = healthIdService.markOrgHealthIdsUsed(asList(
+                new HealthIdUsage("92000000003", usedAt.toString()),
+                new HealthIdUsage("91000005005", usedAt.toString()),
+                new HealthIdUsage("91000000505", "not-a-uuid"),
+                new HealthIdUsage("91000000505", usedAt.toString()))).toBlocking().single();
+
+        assertEquals(asList("92000000003", "91000005005", "91000000505"), new ArrayList<>(results.keySet()));
+        assertEquals(HealthIdService.MARKED_USED, results.get("92000000003"));
+        assertEquals("Health Id not allocated to any Organization.", results.get("91000005005"));
+        verify(healthIdRepository).markOrgHealthIdUsed("91000000505", usedAt);
+    }
+
+    @Test
+    public void shouldNotMarkUsedHealthIdUsedAgain() throws Exception {
+        UUID usedAt = timeBased();
+        when(healthIdRepository.markOrgHealthIdUsed("91000000505", usedAt)).thenReturn(Observable.just(false));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertFalse(healthIdService.markOrgHealthIdUsed("91000000505", usedAt).toBlocking().single());
+        verify(healthIdRepository, never()).findOrgHealthId(anyString());
+        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+    }
+
+    @Test(expected = HealthIdNotFoundException.class)
+    public void shouldNotMarkUnallocatedHealthIdUsed() throws Exception {
+        UUID usedAt = timeBased();
+        when(healthIdRepository.markOrgHealthIdUsed("91000000505", usedAt)).thenReturn(Observable.<Boolean>just(null));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+        healthIdService.markOrgHealthIdUsed("91000000505", usedAt).toBlocking().single();
+    }
+
+    @Test
+    public void shouldCreateUsedRowForHealthIdAllocatedFromRange() throws Exception {
+        healthIdProperties.setHidAllocationMode("ranges");
+        UUID usedAt = timeBased();
+        when(healthIdRepository.markOrgHealthIdUsed("98000000011", usedAt)).thenReturn(Observable.<Boolean>just(null));
+        when(hidRangeAllocator.findAllocated("98000000011")).thenReturn(new OrgHealthId("98000000011", "MCI", timeBased()));
+        when(healthIdRepository.saveUsedOrgHealthIdIfAbsent(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertTrue(healthIdService.markOrgHealthIdUsed("98000000011", usedAt).toBlocking().single());
+        ArgumentCaptor<OrgHealthId> saved = ArgumentCaptor.forClass(OrgHealthId.class);
+        verify(healthIdRepository).saveUsedOrgHealthIdIfAbsent(saved.capture());
+        assertTrue(saved.getValue().isUsed());
+        assertEquals(usedAt, saved.getValue().getUsedAt());
+    }
+
+    @Test
+    public void shouldAnswerRemainingHIDsFromTheLastRefresh() throws Exception {
+        healthIdProperties.setHidReservoirNodeId("node-1");
+        when(healthIdRepository.seedFreeHIDCount("node-1", 3600)).thenReturn(true);
+        when(healthIdRepository.findFreeHIDCount()).thenReturn(Observable.just(120L), Observable.just(80L));
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        healthIdService.refreshRemainingHIDs();
+        assertEquals(120L, healthIdService.findRemainingHIDs().toBlocking().single().longValue());
+        assertEquals(120L, healthIdService.findRemainingHIDs().toBlocking().single().longValue());
+
+        healthIdService.refreshRemainingHIDs();
+        assertEquals(80L, healthIdService.findRemainingHIDs().toBlocking().single().longValue());
+        verify(healthIdRepository, times(1)).seedFreeHIDCount("node-1", 3600);
+        verify(healthIdRepository, times(2)).findFreeHIDCount();
+    }
+
+    @Test
+    public void shouldCountHIDsLeftInRangesAsRemaining() throws Exception {
+        healthIdProperties.setHidAllocationMode("ranges");
+        healthIdProperties.setHealthIdWarningThreshold("100");
+        when(healthIdRepository.findFreeHIDCount()).thenReturn(Observable.<Long>just(null));
+        when(hidRangeAllocator.countRemaining(100)).thenReturn(30L);
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertEquals(30L, healthIdService.findRemainingHIDs().toBlocking().single().longValue());
+    }
+
+    @Test
+    public void shouldReportEmptyResultsForNoHealthIds() throws Exception {
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService, hidReservoir, hidRangeAllocator);
+
+        assertTrue(healthIdService.markOrgHealthIdsUsed(new ArrayList<HealthIdUsage>()).toBlocking().single().isEmpty());
+    }
 
+    private static HealthIdProperties createProperties() {
+        HealthIdProperties properties = new HealthIdProperties();
+        properties.setHidAllocationMode(HealthIdProperties.HID_ALLOCATION_MODE_ROWS);
+        properties.setHidWriteConcurrency("256");
+        properties.setHidWriteRetries("3");
+        return properties;
     }
 
     private UserInfo getUserInfo() {
@@ -0,0 +1,52 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.utils.HidBloomFilter;
+
+import java.util.List;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class HidExistenceIndexTest {
+
+    @Test
+    public void shouldCoverMergedRangesOfGeneratedBlocks() throws Exception {
+        List<GeneratedHIDBlock> blocks = asList(block(9100000200L, 9100000299L), block(9100000000L, 9100000099L),
+                block(9100000100L, 9100000149L));
+        HidExistenceIndex index = new HidExistenceIndex(blocks, HidBloomFilter.empty());
+
+        assertTrue(index.isInGeneratedRange(9100000000L));
+        assertTrue(index.isInGeneratedRange(9100000149L));
+        assertFalse(index.isInGeneratedRange(9100000150L));
+        assertFalse(index.isInGeneratedRange(9100000199L));
+        assertTrue(index.isInGeneratedRange(9100000299L));
+        assertFalse(index.isInGeneratedRange(9100000300L));
+        assertFalse(index.mightExist(9100000300L));
+    }
+
+    @Test
+    public void shouldConsultTheFilterOutsideGeneratedRanges() throws Exception {
+        HidBloomFilter filter = new HidBloomFilter(100, 0.0001);
+        filter.put(9100000500L);
+        HidExistenceIndex index = new HidExistenceIndex(asList(block(9100000000L, 9100000099L)), filter);
+
+        assertTrue(index.mightExist(9100000050L));
+        assertTrue(index.mightExist(9100000500L));
+        assertFalse(index.mightExist(9100000501L));
+    }
+
+    @Test
+    public void shouldTreatEveryCandidateAsPossiblyExistingWithoutAFilter() throws Exception {
+        HidExistenceIndex index = new HidExistenceIndex(asList(block(9100000000L, 9100000099L)), null);
+
+        assertFalse(index.hasOutOfRangeFilter());
+        assertTrue(index.mightExist(9100000500L));
+    }
+
+    private GeneratedHIDBlock block(long beginsAt, long endsAt) {
+        return new GeneratedHIDBlock(9100000000L, "XYZ", beginsAt, endsAt, endsAt - beginsAt + 1, null, timeBased());
+    }
+}
@@ -0,0 +1,131 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.security.UserInfo;
+import org.sharedhealth.healthId.web.security.UserProfile;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidGenerationJobServiceTest {
+    @Mock
+    private HealthIdService healthIdService;
+
+    private HealthIdProperties healthIdProperties;
+    private HidGenerationJobService jobService;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setMciStartHid("9800000000");
+        healthIdProperties.setMciEndHid("9999999999");
+        healthIdProperties.setMciOrgCode("MCI");
+        jobService = new HidGenerationJobService(healthIdService, healthIdProperties, new SyncTaskExecutor());
+    }
+
+    @Test
+    public void shouldRunBlockGenerationAsJobAndRecordResult() throws Exception {
+        GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(9800000000L, "MCI", 9800000000L, 9800000119L, 100L, "", timeBased());
+        when(healthIdService.generateBlock(eq(9800000000L), eq(100L), any(UserInfo.class), any(HidGenerationJob.class))).thenReturn(hidBlock);
+
+        HidGenerationJob job = jobService.submitGenerateBlock(9800000000L, 100L, getUserInfo());
+
+        verify(healthIdService).generateBlock(eq(9800000000L), eq(100L), any(UserInfo.class), eq(job));
+        assertEquals(HidGenerationJob.Status.COMPLETED, job.getStatus());
+        assertEquals("Generated 100 HIDs.", job.getMessage());
+        assertEquals(hidBlock, job.getGeneratedBlock());
+        assertSame(job, jobService.find(job.getId()));
+    }
+
+    @Test
+    public void shouldMarkJobFailedWhenGenerationFails() throws Exception {
+        when(healthIdService.generateBlockForOrg(eq(9100000000L), eq(10L), eq("ORG"), any(UserInfo.class), any(HidGenerationJob.class)))
+                .thenThrow(new HidGenerationException("HID Storage path does not exists"));
+
+        HidGenerationJob job = jobService.submitGenerateBlockForOrg(9100000000L, 10L, "ORG", getUserInfo());
+
+        assertEquals(HidGenerationJob.Status.FAILED, job.getStatus());
+        assertEquals("HID Storage path does not exists", job.getMessage());
+    }
+
+    @Test
+    public void shouldNotRegisterJobWhenExecutorIsFull() throws Exception {
+        TaskExecutor fullExecutor = mock(TaskExecutor.class);
+        doThrow(new TaskRejectedException("queue full")).when(fullExecutor).execute(any(Runnable.class));
+        jobService = new HidGenerationJobService(healthIdService, healthIdProperties, fullExecutor);
+
+        try {
+            jobService.submitGenerateAll(getUserInfo());
+            fail("Expected submission to be rejected");
+        } catch (HidGenerationException e) {
+            assertTrue(jobService.findAll().isEmpty());
+        }
+    }
+
+    @Test
+    public void shouldRequestCancellationOfQueuedJob() throws Exception {
+        TaskExecutor idleExecutor = mock(TaskExecutor.class);
+        jobService = new HidGenerationJobService(healthIdService, healthIdProperties, idleExecutor);
+
+        HidGenerationJob job = jobService.submitGenerateAll(getUserInfo());
+        jobService.cancel(job.getId());
+
+        assertTrue(job.isCancelled());
+        assertEquals(HidGenerationJob.Status.QUEUED, job.getStatus());
+    }
+
+    @Test
+    public void shouldReportCompletedJobAsCancelledWhenCancelledWhileRunning() throws Exception {
+        final HidGenerationJob[] runningJob = new HidGenerationJob[1];
+        when(healthIdService.generateAll(any(UserInfo.class), any(HidGenerationJob.class))).thenAnswer(new Answer<GeneratedHIDBlock>() {
+            @Override
+            public GeneratedHIDBlock answer(InvocationOnMock invocation) throws Throwable {
+                runningJob[0] = (HidGenerationJob) invocation.getArguments()[1];
+                runningJob[0].candidatesScanned(50);
+                runningJob[0].hidsWritten(40);
+                jobService.cancel(runningJob[0].getId());
+                return new GeneratedHIDBlock(9800000000L, "MCI", 9800000000L, 9800000049L, 40L, "", timeBased());
+            }
+        });
+
+        HidGenerationJob job = jobService.submitGenerateAll(getUserInfo());
+
+        assertSame(job, runningJob[0]);
+        assertEquals(HidGenerationJob.Status.CANCELLED, job.getStatus());
+        assertEquals(50, job.getHidsScanned());
+        assertEquals(40, job.getHidsWritten());
+        assertEquals(Long.valueOf(0), job.getEtaSeconds());
+    }
+
+    @Test(expected = HealthIdNotFoundException.class)
+    public void shouldFailToFindUnknownJob() throws Exception {
+        jobService.find(UUID.randomUUID());
+    }
+
+    private UserInfo getUserInfo() {
+        UserProfile adminProfile = new UserProfile("mci-supervisor", "102", asList("10"));
+        return new UserInfo("102", "ABC", "abc@mail", 1, true, "111100",
+                new ArrayList<String>(), asList(adminProfile));
+    }
+}
@@ -0,0 +1,155 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidPoolForecast;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.security.UserInfo;
+import rx.Observable;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidPoolReplenisherTest {
+    private static final long HOUR = 3600000;
+
+    @Mock
+    private HealthIdService healthIdService;
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HealthIdProperties healthIdProperties;
+    private HidPoolReplenisher replenisher;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setMciStartHid("9800000000");
+        healthIdProperties.setMciEndHid("9999999999");
+        healthIdProperties.setHealthIdWarningThreshold("100");
+        healthIdProperties.setHidReplenishmentChunkSize("1000");
+        healthIdProperties.setHidReplenishmentLeadTime("24");
+        when(healthIdRepository.findAllocatedHIDCount()).thenReturn(Observable.<Long>just(null));
+        when(healthIdService.countRemainingHIDs()).thenReturn(10000L);
+        when(healthIdService.isFreeHidCountSeeded()).thenReturn(true);
+        when(healthIdService.findMciSeriesWithCapacity(1000L)).thenReturn(9800000000L);
+        when(healthIdService.generateBlock(anyLong(), anyLong(), any(UserInfo.class))).thenReturn(
+                new GeneratedHIDBlock(98L, "MCI", 9800000000L, 9800001200L, 1000L, "{}", timeBased()));
+        replenisher = new HidPoolReplenisher(healthIdService, healthIdRepository, healthIdProperties);
+    }
+
+    @Test
+    public void shouldGenerateAChunkWhenFewerHIDsThanTheThresholdAreLeft() throws Exception {
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L, 1050L);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService).generateBlock(eq(9800000000L), eq(1000L), any(UserInfo.class));
+        HidPoolForecast forecast = replenisher.getForecast();
+        assertEquals(1050L, forecast.getRemainingHIDs().longValue());
+        assertEquals(1000L, forecast.getReplenishedHIDs());
+        assertNotNull(forecast.getLastReplenishedAt());
+    }
+
+    @Test
+    public void shouldGenerateAChunkWhenThePoolIsForecastToRunOutWithinTheLeadTime() throws Exception {
+        when(healthIdRepository.findAllocatedHIDCount()).thenReturn(Observable.just(0L), Observable.just(1000L));
+
+        replenisher.replenish(HOUR);
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        replenisher.replenish(2 * HOUR);
+
+        verify(healthIdService).generateBlock(eq(9800000000L), eq(1000L), any(UserInfo.class));
+        HidPoolForecast forecast = replenisher.getForecast();
+        assertEquals(1000.0, forecast.getAllocationRate(), 0.001);
+        assertEquals(10.0, forecast.getHoursToExhaustion(), 0.001);
+    }
+
+    @Test
+    public void shouldNotGenerateWhileThePoolLastsBeyondTheLeadTime() throws Exception {
+        when(healthIdRepository.findAllocatedHIDCount()).thenReturn(Observable.just(0L), Observable.just(100L));
+
+        replenisher.replenish(HOUR);
+        replenisher.replenish(2 * HOUR);
+
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        assertEquals(100.0, replenisher.getForecast().getHoursToExhaustion(), 0.001);
+    }
+
+    @Test
+    public void shouldOnlyForecastWhenReplenishmentIsOff() throws Exception {
+        healthIdProperties.setHidReplenishmentChunkSize("0");
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        assertFalse(replenisher.getForecast().isEnabled());
+        assertEquals(50L, replenisher.getForecast().getRemainingHIDs().longValue());
+    }
+
+    @Test
+    public void shouldNotGenerateBeforeTheFreeHidCountIsSeeded() throws Exception {
+        when(healthIdService.isFreeHidCountSeeded()).thenReturn(false);
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        assertEquals(50L, replenisher.getForecast().getRemainingHIDs().longValue());
+    }
+
+    @Test
+    public void shouldGenerateInTheNextSeriesWithCapacityLeft() throws Exception {
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L);
+        when(healthIdService.findMciSeriesWithCapacity(1000L)).thenReturn(9900000000L);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService).generateBlock(eq(9900000000L), eq(1000L), any(UserInfo.class));
+    }
+
+    @Test
+    public void shouldRecordThatNoSeriesHasCapacityLeft() throws Exception {
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L);
+        when(healthIdService.findMciSeriesWithCapacity(1000L)).thenReturn(null);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        assertEquals("No MCI series up to 9999999999 has 1000 valid HIDs left", replenisher.getForecast().getLastError());
+    }
+
+    @Test
+    public void shouldNotSeedTheFreeHidCount() throws Exception {
+        when(healthIdService.isFreeHidCountSeeded()).thenReturn(false);
+
+        replenisher.replenish(HOUR);
+
+        verify(healthIdService, never()).refreshRemainingHIDs();
+    }
+
+    @Test
+    public void shouldRecordWhyAChunkCouldNotBeGenerated() throws Exception {
+        when(healthIdService.countRemainingHIDs()).thenReturn(50L);
+        when(healthIdService.generateBlock(anyLong(), anyLong(), any(UserInfo.class)))
+                .thenThrow(new HidGenerationException("Could not claim series 98"));
+
+        replenisher.replenish(HOUR);
+
+        HidPoolForecast forecast = replenisher.getForecast();
+        assertEquals("Could not claim series 98", forecast.getLastError());
+        assertFalse(forecast.isReplenishing());
+        assertEquals(0, forecast.getReplenishedHIDs());
+    }
+}
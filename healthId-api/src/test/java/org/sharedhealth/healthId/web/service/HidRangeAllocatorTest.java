@@ -0,0 +1,132 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidRange;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.repository.HidRangeRepository;
+import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
+
+import java.util.List;
+import java.util.UUID;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidRangeAllocatorTest {
+    @Mock
+    private HidRangeRepository hidRangeRepository;
+
+    private LuhnChecksumGenerator checksumGenerator = new LuhnChecksumGenerator();
+    private HidRangeAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        HealthIdProperties healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setMciInvalidHidPattern("^(1005|1004)\\d*$");
+        allocator = new HidRangeAllocator(hidRangeRepository, checksumGenerator, healthIdProperties);
+    }
+
+    @Test
+    public void shouldSplitRangesAtSeriesBoundaries() throws Exception {
+        allocator.addRange(9899999990L, 9900000009L);
+
+        verify(hidRangeRepository).saveRange(9800000000L, 9899999990L, 9899999999L);
+        verify(hidRangeRepository).saveRange(9900000000L, 9900000000L, 9900000009L);
+    }
+
+    @Test
+    public void shouldMoveCursorPastLastValidHIDOfBlock() throws Exception {
+        HidRange range = new HidRange(10000, 10000, 10099, 10030);
+        when(hidRangeRepository.findOpenRanges()).thenReturn(asList(range));
+        when(hidRangeRepository.saveAllocationIfAbsent(eq(10000L), eq(10030L), eq(10064L), eq("MCI"), any(UUID.class))).thenReturn(null);
+        when(hidRangeRepository.advanceRange(range, 10030, 10065)).thenReturn(true);
+
+        List<MciHealthId> block = allocator.nextBlock("MCI", 15);
+
+        assertEquals(15, block.size());
+        assertEquals(healthId(10030), block.get(0).getHid());
+        assertEquals(healthId(10064), block.get(14).getHid());
+        verify(hidRangeRepository).advanceRange(range, 10030, 10065);
+        verify(hidRangeRepository, never()).closeRange(anyLong(), anyLong());
+    }
+
+    @Test
+    public void shouldHandOutTheBlockOnceItsAllocationIsRecordedEvenIfTheCursorWasMovedByAnotherNode() throws Exception {
+        HidRange range = new HidRange(10000, 10000, 10099, 10010);
+        when(hidRangeRepository.findOpenRanges()).thenReturn(asList(range));
+        when(hidRangeRepository.saveAllocationIfAbsent(eq(10000L), eq(10010L), eq(10014L), eq("MCI"), any(UUID.class))).thenReturn(null);
+        when(hidRangeRepository.advanceRange(range, 10010, 10015)).thenReturn(false);
+
+        List<MciHealthId> block = allocator.nextBlock("MCI", 5);
+
+        assertEquals(5, block.size());
+        assertEquals(healthId(10010), block.get(0).getHid());
+    }
+
+    @Test
+    public void shouldMoveCursorPastAnAllocationRecordedByAnotherNodeAndReadItAgain() throws Exception {
+        HidRange range = new HidRange(10000, 10000, 10099, 10000);
+        HidRange movedRange = new HidRange(10000, 10000, 10099, 10008);
+        when(hidRangeRepository.findOpenRanges()).thenReturn(asList(range));
+        when(hidRangeRepository.saveAllocationIfAbsent(eq(10000L), eq(10000L), eq(10004L), eq("MCI"), any(UUID.class))).thenReturn(10007L);
+        when(hidRangeRepository.findRange(10000, 10000)).thenReturn(movedRange);
+        when(hidRangeRepository.saveAllocationIfAbsent(eq(10000L), eq(10008L), eq(10012L), eq("MCI"), any(UUID.class))).thenReturn(null);
+
+        List<MciHealthId> block = allocator.nextBlock("MCI", 5);
+
+        verify(hidRangeRepository).advanceRange(range, 10000, 10008);
+        verify(hidRangeRepository).advanceRange(movedRange, 10008, 10013);
+        assertEquals(healthId(10008), block.get(0).getHid());
+        assertEquals(5, block.size());
+    }
+
+    @Test
+    public void shouldCloseTheRangeItExhausts() throws Exception {
+        HidRange range = new HidRange(10000, 10000, 10099, 10095);
+        when(hidRangeRepository.findOpenRanges()).thenReturn(asList(range));
+        when(hidRangeRepository.saveAllocationIfAbsent(eq(10000L), eq(10095L), eq(10099L), eq("MCI"), any(UUID.class))).thenReturn(null);
+        when(hidRangeRepository.advanceRange(range, 10095, 10100)).thenReturn(true);
+
+        assertEquals(5, allocator.nextBlock("MCI", 10).size());
+        verify(hidRangeRepository).closeRange(10000, 10000);
+    }
+
+    @Test
+    public void shouldSkipAndCloseExhaustedRanges() throws Exception {
+        when(hidRangeRepository.findOpenRanges()).thenReturn(asList(new HidRange(10000, 10000, 10099, 10100)));
+
+        assertEquals(0, allocator.nextBlock("MCI", 5).size());
+        verify(hidRangeRepository, never()).saveAllocationIfAbsent(anyLong(), anyLong(), anyLong(), anyString(), any(UUID.class));
+        verify(hidRangeRepository, never()).advanceRange(any(HidRange.class), anyLong(), anyLong());
+        verify(hidRangeRepository).closeRange(10000, 10000);
+    }
+
+    @Test
+    public void shouldFindAllocationOnlyForHIDsWithValidCheckDigit() throws Exception {
+        OrgHealthId allocation = new OrgHealthId(healthId(10030), "MCI", timeBased());
+        when(hidRangeRepository.findAllocation(10000, 10030, healthId(10030))).thenReturn(allocation);
+        String wrongCheckDigit = "10030" + (checksumGenerator.generate(30L) + 1) % 10;
+
+        assertEquals(allocation, allocator.findAllocated(healthId(10030)));
+        assertNull(allocator.findAllocated(wrongCheckDigit));
+        assertNull(allocator.findAllocated(healthId(10045)));
+        verify(hidRangeRepository, times(1)).findAllocation(anyLong(), anyLong(), anyString());
+    }
+
+    private String healthId(long candidate) {
+        return String.valueOf(candidate) + checksumGenerator.generate(HealthIdService.withoutLeadingDigit(candidate));
+    }
+}
@@ -0,0 +1,166 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.EnvironmentMock;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.launch.WebMvcConfig;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.utils.TestUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.data.cassandra.core.CassandraOperations;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs several reservoirs with their own node ids against the same keyspace, the way several
+ * instances of the service share a cluster, and lets each of them allocate from a few threads
+ * until the free HIDs run out.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(initializers = EnvironmentMock.class, classes = WebMvcConfig.class)
+public class HidReservoirIT {
+    private static final Logger logger = LoggerFactory.getLogger(HidReservoirIT.class);
+    private static final long FIRST_HID = 9800000000L;
+    private static final int TOTAL_HIDS = 3000;
+    private static final int BLOCK_SIZE = 20;
+    private static final int THREADS_PER_INSTANCE = 2;
+    private static final int MAX_EMPTY_BLOCKS = 50;
+    private static final long ALLOCATION_DEADLINE = TimeUnit.MINUTES.toNanos(2);
+
+    @Autowired
+    @Qualifier("HealthIdCassandraTemplate")
+    private CassandraOperations cqlTemplate;
+
+    @Autowired
+    private HealthIdRepository healthIdRepository;
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.truncateAllColumnFamilies(cqlTemplate);
+    }
+
+    @Test
+    public void shouldNeverHandOutAHidTwiceAcrossInstances() throws Exception {
+        createHealthIds(TOTAL_HIDS);
+
+        Allocation allocation = allocateAll(4);
+
+        assertTrue(allocation.failures.toString(), allocation.failures.isEmpty());
+        assertEquals(TOTAL_HIDS, allocation.served.size());
+        assertEquals(TOTAL_HIDS, new HashSet<>(allocation.served).size());
+        assertEquals(0, healthIdRepository.findFreeHIDCount().toBlocking().first().longValue());
+    }
+
+    @Test
+    public void shouldAllocateEveryHidWithOneOrMoreInstances() throws Exception {
+        createHealthIds(TOTAL_HIDS);
+        Allocation oneInstance = allocateAll(1);
+        TestUtil.truncateAllColumnFamilies(cqlTemplate);
+        createHealthIds(TOTAL_HIDS);
+        Allocation fourInstances = allocateAll(4);
+
+        assertEquals(TOTAL_HIDS, oneInstance.served.size());
+        assertEquals(TOTAL_HIDS, fourInstances.served.size());
+        logger.info(String.format("1 instance: %.0f HIDs/s, 4 instances: %.0f HIDs/s",
+                oneInstance.throughput(), fourInstances.throughput()));
+    }
+
+    private Allocation allocateAll(int instances) throws InterruptedException {
+        final Allocation allocation = new Allocation();
+        ExecutorService executor = Executors.newFixedThreadPool(instances * THREADS_PER_INSTANCE);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int instance = 0; instance < instances; instance++) {
+            final HidReservoir hidReservoir = createInstance("node-" + instance);
+            for (int thread = 0; thread < THREADS_PER_INSTANCE; thread++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            allocateUntilExhausted(hidReservoir, allocation);
+                        } catch (Exception e) {
+                            allocation.failures.add(e);
+                        }
+                    }
+                });
+            }
+        }
+        long startedAt = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+        allocation.elapsedNanos = System.nanoTime() - startedAt;
+        return allocation;
+    }
+
+    /**
+     * Allocates until a block comes back empty while no HID is counted as free. Gives up after
+     * {@code MAX_EMPTY_BLOCKS} empty blocks in a row, or once the deadline has passed, so that
+     * a count which drifted from the pool cannot keep the test spinning.
+     */
+    private void allocateUntilExhausted(HidReservoir hidReservoir, Allocation allocation) {
+        long deadline = System.nanoTime() + ALLOCATION_DEADLINE;
+        int emptyBlocks = 0;
+        while (emptyBlocks < MAX_EMPTY_BLOCKS && System.nanoTime() < deadline) {
+            List<MciHealthId> block = hidReservoir.nextBlock("MCI", BLOCK_SIZE).toBlocking().first();
+            if (block.isEmpty()) {
+                Long free = healthIdRepository.findFreeHIDCount().toBlocking().first();
+                if (free == null || free <= 0) return;
+                emptyBlocks++;
+                continue;
+            }
+            emptyBlocks = 0;
+            for (MciHealthId mciHealthId : block) {
+                allocation.served.add(mciHealthId.getHid());
+            }
+        }
+    }
+
+    private HidReservoir createInstance(String nodeId) {
+        HealthIdProperties properties = new HealthIdProperties();
+        properties.setHidReservoirNodeId(nodeId);
+        properties.setHidReservoirLowWatermark("0");
+        properties.setHidReservoirHighWatermark("0");
+        properties.setHidClaimTtl("600");
+        HidReservoir hidReservoir = new HidReservoir(healthIdRepository, properties, new SyncTaskExecutor());
+        hidReservoir.start();
+        return hidReservoir;
+    }
+
+    private void createHealthIds(int numberOfHids) {
+        for (int i = 0; i < numberOfHids; i++) {
+            healthIdRepository.saveMciHealthId(new MciHealthId(String.valueOf(FIRST_HID + i))).toBlocking().last();
+        }
+    }
+
+    private static class Allocation {
+        private final Queue<String> served = new ConcurrentLinkedQueue<>();
+        private final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+        private long elapsedNanos;
+
+        private double throughput() {
+            return served.size() * 1e9 / elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidAllocationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.springframework.core.task.SyncTaskExecutor;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidReservoirTest {
+    private static final String NODE_ID = "node-1";
+
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HidReservoir hidReservoir;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        HealthIdProperties healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setHidReservoirNodeId(NODE_ID);
+        healthIdProperties.setHidReservoirLowWatermark("2");
+        healthIdProperties.setHidReservoirHighWatermark("5");
+        healthIdProperties.setHidClaimTtl("600");
+        when(healthIdRepository.findReservedHealthIds(NODE_ID)).thenReturn(new ArrayList<MciHealthId>());
+        when(healthIdRepository.reserveNextBlock(eq(NODE_ID), anyInt(), anyInt())).thenReturn(new ArrayList<MciHealthId>());
+        when(healthIdRepository.saveOrgHidAndReleaseReservations(anyString(), anyList(), anyString(), any(UUID.class)))
+                .thenReturn(Observable.just(true));
+        hidReservoir = new HidReservoir(healthIdRepository, healthIdProperties, new SyncTaskExecutor());
+    }
+
+    @Test
+    public void shouldServeRecoveredReservationsAndRefillBelowLowWatermark() throws Exception {
+        when(healthIdRepository.findReservedHealthIds(NODE_ID)).thenReturn(hids("9800000001", "9800000002", "9800000003"));
+        when(healthIdRepository.reserveNextBlock(NODE_ID, 4, 600)).thenReturn(hids("9800000004", "9800000005", "9800000006", "9800000007"));
+
+        hidReservoir.start();
+        verify(healthIdRepository, never()).reserveNextBlock(anyString(), anyInt(), anyInt());
+
+        List<MciHealthId> block = hidReservoir.nextBlock("MCI", 2).toBlocking().first();
+
+        assertEquals(hids("9800000001", "9800000002"), block);
+        verify(healthIdRepository).saveOrgHidAndReleaseReservations(eq(NODE_ID), eq(block), eq("MCI"), any(UUID.class));
+        verify(healthIdRepository).reserveNextBlock(NODE_ID, 4, 600);
+        assertEquals(5, hidReservoir.size());
+    }
+
+    @Test
+    public void shouldReserveTheShortfallWhileServingABlock() throws Exception {
+        hidReservoir.start();
+        when(healthIdRepository.reserveNextBlock(NODE_ID, 3, 600)).thenReturn(hids("9800000001", "9800000002", "9800000003"));
+
+        List<MciHealthId> block = hidReservoir.nextBlock("MCI", 3).toBlocking().first();
+
+        assertEquals(hids("9800000001", "9800000002", "9800000003"), block);
+        verify(healthIdRepository).saveOrgHidAndReleaseReservations(eq(NODE_ID), eq(block), eq("MCI"), any(UUID.class));
+    }
+
+    @Test
+    public void shouldReplayJournalBeforeRecoveringReservations() throws Exception {
+        hidReservoir.start();
+
+        InOrder inOrder = inOrder(healthIdRepository);
+        inOrder.verify(healthIdRepository).replayAllocationJournal(NODE_ID, 0);
+        inOrder.verify(healthIdRepository).findReservedHealthIds(NODE_ID);
+    }
+
+    @Test
+    public void shouldNotTakeHidsBeforeSubscription() throws Exception {
+        when(healthIdRepository.findReservedHealthIds(NODE_ID)).thenReturn(hids("9800000001", "9800000002", "9800000003"));
+        hidReservoir.start();
+
+        hidReservoir.nextBlock("MCI", 2);
+
+        assertEquals(3, hidReservoir.size());
+        verify(healthIdRepository, never()).saveOrgHidAndReleaseReservations(anyString(), anyList(), anyString(), any(UUID.class));
+    }
+
+    @Test
+    public void shouldKeepHidsInReservoirIfJournalWriteIsRejected() throws Exception {
+        when(healthIdRepository.findReservedHealthIds(NODE_ID)).thenReturn(hids("9800000001", "9800000002", "9800000003"));
+        when(healthIdRepository.saveOrgHidAndReleaseReservations(anyString(), anyList(), anyString(), any(UUID.class)))
+                .thenReturn(Observable.<Boolean>error(new HidAllocationException("unavailable", null, false)));
+        hidReservoir.start();
+
+        try {
+            hidReservoir.nextBlock("MCI", 2).toBlocking().first();
+            fail("Allocation should have failed");
+        } catch (HidAllocationException e) {
+            assertEquals("unavailable", e.getMessage());
+        }
+        assertEquals(3, hidReservoir.size());
+    }
+
+    @Test
+    public void shouldLeaveHidsToReplayIfJournalWriteMayHaveApplied() throws Exception {
+        when(healthIdRepository.findReservedHealthIds(NODE_ID)).thenReturn(hids("9800000001", "9800000002", "9800000003"));
+        when(healthIdRepository.saveOrgHidAndReleaseReservations(anyString(), anyList(), anyString(), any(UUID.class)))
+                .thenReturn(Observable.<Boolean>error(new HidAllocationException("write timeout", null, true)));
+        hidReservoir.start();
+
+        try {
+            hidReservoir.nextBlock("MCI", 2).toBlocking().first();
+            fail("Allocation should have failed");
+        } catch (HidAllocationException e) {
+            assertEquals("write timeout", e.getMessage());
+        }
+        assertEquals(1, hidReservoir.size());
+    }
+
+    @Test
+    public void shouldServeNothingWhenFreeHidsRunOut() throws Exception {
+        hidReservoir.start();
+
+        assertTrue(hidReservoir.nextBlock("MCI", 10).toBlocking().first().isEmpty());
+        verify(healthIdRepository, never()).saveOrgHidAndReleaseReservations(anyString(), anyList(), anyString(), any(UUID.class));
+    }
+
+    private List<MciHealthId> hids(String... hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>();
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return mciHealthIds;
+    }
+}
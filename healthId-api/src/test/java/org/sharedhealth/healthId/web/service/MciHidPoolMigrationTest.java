@@ -0,0 +1,79 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class MciHidPoolMigrationTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HealthIdProperties healthIdProperties;
+    private MciHidPoolMigration migration;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setHidPoolMigrationRate("2");
+        healthIdProperties.setHidClaimTtl("600");
+        when(healthIdRepository.findLegacyHealthIds(anyString(), anyInt())).thenReturn(new ArrayList<MciHealthId>());
+        when(healthIdRepository.findLegacyHealthIds(null, 2)).thenReturn(new ArrayList<MciHealthId>());
+        migration = new MciHidPoolMigration(healthIdRepository, healthIdProperties);
+    }
+
+    @Test
+    public void shouldMovePagesAndGoOverTheTableOnceMoreBeforeFinishing() throws Exception {
+        List<MciHealthId> firstPage = hids("9800000001", "9800000002");
+        List<MciHealthId> secondPage = hids("9800000003");
+        List<MciHealthId> skipped = hids("9800000002");
+        when(healthIdRepository.findLegacyHealthIds(null, 2)).thenReturn(firstPage, skipped, new ArrayList<MciHealthId>());
+        when(healthIdRepository.findLegacyHealthIds("9800000002", 2)).thenReturn(secondPage, new ArrayList<MciHealthId>());
+        when(healthIdRepository.moveToPool(eq(firstPage), anyString(), anyInt())).thenReturn(1);
+        when(healthIdRepository.moveToPool(eq(secondPage), anyString(), anyInt())).thenReturn(1);
+        when(healthIdRepository.moveToPool(eq(skipped), anyString(), anyInt())).thenReturn(1);
+
+        for (int run = 0; run < 6; run++) {
+            migration.migrateNextPage();
+        }
+
+        assertTrue(migration.isFinished());
+        assertEquals(3, migration.getMoved());
+        verify(healthIdRepository, times(3)).moveToPool(anyList(), anyString(), anyInt());
+    }
+
+    @Test
+    public void shouldNotMoveAnythingWhenDisabled() throws Exception {
+        healthIdProperties.setHidPoolMigrationRate("0");
+
+        migration.migrateNextPage();
+
+        assertFalse(migration.isFinished());
+        verify(healthIdRepository, never()).findLegacyHealthIds(anyString(), anyInt());
+        verify(healthIdRepository, never()).moveToPool(anyList(), anyString(), anyInt());
+    }
+
+    private List<MciHealthId> hids(String... hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>();
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return mciHealthIds;
+    }
+}
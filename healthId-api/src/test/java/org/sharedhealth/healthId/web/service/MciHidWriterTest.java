@@ -0,0 +1,78 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidGenerationJob;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class MciHidWriterTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+    }
+
+    @Test
+    public void shouldHoldAPermitOfTheWindowUntilTheWriteFinishes() throws Exception {
+        PublishSubject<Boolean> pendingWrite = PublishSubject.create();
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenReturn(pendingWrite);
+        Semaphore window = new Semaphore(2);
+        MciHidWriter writer = new MciHidWriter(healthIdRepository, window, 0, HidGenerationJob.untracked());
+
+        writer.write("98000000011");
+        writer.write("98000000021");
+        assertEquals(0, window.availablePermits());
+
+        pendingWrite.onNext(true);
+        pendingWrite.onCompleted();
+        assertEquals(2, window.availablePermits());
+        assertEquals(2, writer.awaitCompletion());
+    }
+
+    @Test
+    public void shouldRetryFailedWritesAndAccountForThem() throws Exception {
+        final int[] attempts = {0};
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("98000000011"))).thenReturn(Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(rx.Subscriber<? super Boolean> subscriber) {
+                attempts[0]++;
+                if (attempts[0] < 3) {
+                    subscriber.onError(new RuntimeException("Write timed out"));
+                } else {
+                    subscriber.onNext(true);
+                    subscriber.onCompleted();
+                }
+            }
+        }));
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("98000000021"))).thenReturn(Observable.<Boolean>error(new RuntimeException("Write timed out")));
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("98000000031"))).thenReturn(Observable.just(false));
+        HidGenerationJob job = new HidGenerationJob(HidGenerationJob.Type.MCI_BLOCK, "MCI", 9800000000L, 3, 0);
+        Semaphore window = new Semaphore(10);
+        MciHidWriter writer = new MciHidWriter(healthIdRepository, window, 2, job);
+
+        writer.write("98000000011");
+        writer.write("98000000021");
+        writer.write("98000000031");
+
+        assertEquals(2, writer.awaitCompletion());
+        assertEquals(3, attempts[0]);
+        assertEquals(1, writer.getFailed());
+        assertEquals(1, writer.getAlreadyExisting());
+        assertEquals(2, job.getHidsWritten());
+        assertEquals(1, job.getHidsFailed());
+        assertEquals(10, window.availablePermits());
+    }
+}
@@ -0,0 +1,101 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.InvalidRequestException;
+import org.sharedhealth.healthId.web.repository.NextBlockRequestRepository;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import rx.Observable;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.sharedhealth.healthId.web.config.HealthIdCacheConfiguration.NEXT_BLOCK_CACHE;
+
+public class NextBlockRequestServiceTest {
+    @Mock
+    private HealthIdService healthIdService;
+    @Mock
+    private NextBlockRequestRepository nextBlockRequestRepository;
+
+    private NextBlockRequestService nextBlockRequestService;
+    private final List<MciHealthId> block = asList(new MciHealthId("98000000011"), new MciHealthId("98000000029"));
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        HealthIdProperties healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setNextBlockReplayTtl("3600");
+        nextBlockRequestService = new NextBlockRequestService(healthIdService, nextBlockRequestRepository,
+                new ConcurrentMapCacheManager(NEXT_BLOCK_CACHE), healthIdProperties);
+        when(nextBlockRequestRepository.findBlock("MCI", "key-1")).thenReturn(Observable.<List<MciHealthId>>just(null));
+        when(healthIdService.getNextBlock("MCI", 2)).thenReturn(Observable.just(block));
+        when(nextBlockRequestRepository.saveBlock("MCI", "key-1", block, 3600)).thenReturn(Observable.just(block));
+    }
+
+    @Test
+    public void shouldAllocateWithoutKey() throws Exception {
+        assertEquals(block, nextBlockRequestService.getNextBlock("MCI", null, 2).toBlocking().first());
+
+        verifyZeroInteractions(nextBlockRequestRepository);
+    }
+
+    @Test
+    public void shouldStoreBlockForNewKey() throws Exception {
+        assertEquals(block, nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first());
+
+        verify(healthIdService).getNextBlock("MCI", 2);
+        verify(nextBlockRequestRepository).saveBlock("MCI", "key-1", block, 3600);
+    }
+
+    @Test
+    public void shouldReplayBlockFromLocalCacheOnRetry() throws Exception {
+        nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first();
+
+        assertEquals(block, nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first());
+
+        verify(healthIdService, times(1)).getNextBlock("MCI", 2);
+        verify(nextBlockRequestRepository, times(1)).findBlock("MCI", "key-1");
+    }
+
+    @Test
+    public void shouldReplayStoredBlockWithoutAllocating() throws Exception {
+        when(nextBlockRequestRepository.findBlock("MCI", "key-1")).thenReturn(Observable.just(block));
+
+        assertEquals(block, nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first());
+
+        verify(healthIdService, never()).getNextBlock(anyString(), anyInt());
+    }
+
+    @Test
+    public void shouldServeBlockStoredByConcurrentRequest() throws Exception {
+        List<MciHealthId> storedBlock = asList(new MciHealthId("98000000037"));
+        when(nextBlockRequestRepository.saveBlock("MCI", "key-1", block, 3600)).thenReturn(Observable.just(storedBlock));
+
+        assertEquals(storedBlock, nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first());
+    }
+
+    @Test
+    public void shouldKeepKeysOfDifferentMcisApart() throws Exception {
+        List<MciHealthId> otherBlock = asList(new MciHealthId("98000000037"));
+        when(nextBlockRequestRepository.findBlock("MCI2", "key-1")).thenReturn(Observable.<List<MciHealthId>>just(null));
+        when(healthIdService.getNextBlock("MCI2", 2)).thenReturn(Observable.just(otherBlock));
+        when(nextBlockRequestRepository.saveBlock("MCI2", "key-1", otherBlock, 3600)).thenReturn(Observable.just(otherBlock));
+        nextBlockRequestService.getNextBlock("MCI", "key-1", 2).toBlocking().first();
+
+        assertEquals(otherBlock, nextBlockRequestService.getNextBlock("MCI2", "key-1", 2).toBlocking().first());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void shouldRejectBlankKey() throws Exception {
+        nextBlockRequestService.getNextBlock("MCI", " ", 2);
+    }
+}
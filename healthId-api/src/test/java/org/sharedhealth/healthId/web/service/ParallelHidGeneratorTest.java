@@ -0,0 +1,161 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ParallelHidGeneratorTest {
+
+    private ParallelHidGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = new ParallelHidGenerator(4, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        generator.shutdown();
+    }
+
+    @Test
+    public void shouldProcessEveryCandidateExactlyOnceAndMergeCounts() throws Exception {
+        final long start = 9800000000L;
+        final long end = start + 99999;
+        final BitSet processed = new BitSet();
+        final AtomicInteger partitions = new AtomicInteger();
+
+        ParallelHidGenerator.RangeResult result = generator.generate(start, end, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                partitions.incrementAndGet();
+                long even = 0;
+                for (long i = from; i <= to; i++) {
+                    synchronized (processed) {
+                        assertFalse(processed.get((int) (i - start)));
+                        processed.set((int) (i - start));
+                    }
+                    if (i % 2 == 0) even++;
+                }
+                return new ParallelHidGenerator.RangeResult(from, to, to, even);
+            }
+        });
+
+        assertEquals(100000, processed.cardinality());
+        assertTrue(partitions.get() > 1);
+        assertTrue(result.isComplete());
+        assertEquals(end, result.getLastProcessed());
+        assertEquals(50000, result.getValidHIDs());
+    }
+
+    @Test
+    public void shouldSplitByWeightOfThePartitioner() throws Exception {
+        final long start = 9800000000L;
+        final long end = start + 99999;
+        final long clusterEnd = start + 59999;
+        final List<Long> weights = Collections.synchronizedList(new ArrayList<Long>());
+        final ParallelHidGenerator.Partitioner partitioner = new ParallelHidGenerator.Partitioner() {
+            @Override
+            public long weight(long from, long to) {
+                return Math.max(0, to - Math.max(from, clusterEnd + 1) + 1);
+            }
+
+            @Override
+            public long split(long from, long to) {
+                return Math.max(from, clusterEnd + 1) + weight(from, to) / 2 - 1;
+            }
+        };
+
+        ParallelHidGenerator.RangeResult result = generator.generate(start, end, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                long weight = partitioner.weight(from, to);
+                weights.add(weight);
+                return new ParallelHidGenerator.RangeResult(from, to, to, weight);
+            }
+        }, partitioner);
+
+        assertTrue(result.isComplete());
+        assertEquals(40000, result.getValidHIDs());
+        assertTrue(weights.size() > 1);
+        for (Long weight : weights) {
+            assertTrue(String.valueOf(weight), weight > 500 && weight <= 1000);
+        }
+    }
+
+    @Test
+    public void shouldReportEveryWrittenHidWhenAPartitionStopsEarly() throws Exception {
+        final long start = 9800000000L;
+        final long end = start + 9999;
+        final long stopAt = start + 4321;
+        final AtomicLong written = new AtomicLong();
+
+        ParallelHidGenerator.RangeResult result = generator.generate(start, end, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                if (from <= stopAt && stopAt <= to) {
+                    written.addAndGet(stopAt - from);
+                    return new ParallelHidGenerator.RangeResult(from, to, stopAt - 1, stopAt - from);
+                }
+                written.addAndGet(to - from + 1);
+                return new ParallelHidGenerator.RangeResult(from, to, to, to - from + 1);
+            }
+        });
+
+        assertEquals(end, result.getLastProcessed());
+        assertEquals(written.get(), result.getValidHIDs());
+        assertTrue(result.getValidHIDs() < 10000);
+    }
+
+    @Test
+    public void shouldEndAtTheLastProcessedCandidateWhenTheLastPartitionStopsEarly() throws Exception {
+        ParallelHidGenerator.RangeResult left = new ParallelHidGenerator.RangeResult(100, 199, 149, 50);
+        ParallelHidGenerator.RangeResult right = new ParallelHidGenerator.RangeResult(200, 299, 199, 0);
+
+        ParallelHidGenerator.RangeResult result = ParallelHidGenerator.RangeResult.merge(left, right);
+
+        assertFalse(result.isComplete());
+        assertEquals(149, result.getLastProcessed());
+        assertEquals(50, result.getValidHIDs());
+    }
+
+    @Test
+    public void shouldRunSmallRangesAsASinglePartition() throws Exception {
+        final AtomicInteger partitions = new AtomicInteger();
+
+        ParallelHidGenerator.RangeResult result = generator.generate(100, 199, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                partitions.incrementAndGet();
+                return new ParallelHidGenerator.RangeResult(from, to, to, 10);
+            }
+        });
+
+        assertEquals(1, partitions.get());
+        assertEquals(199, result.getLastProcessed());
+        assertEquals(10, result.getValidHIDs());
+    }
+
+    @Test
+    public void shouldReturnAnEmptyResultForAnEmptyRange() throws Exception {
+        ParallelHidGenerator.RangeResult result = generator.generate(200, 199, new ParallelHidGenerator.RangeProcessor() {
+            @Override
+            public ParallelHidGenerator.RangeResult process(long from, long to) {
+                fail("Nothing should be processed");
+                return null;
+            }
+        });
+
+        assertEquals(199, result.getLastProcessed());
+        assertEquals(0, result.getValidHIDs());
+    }
+}
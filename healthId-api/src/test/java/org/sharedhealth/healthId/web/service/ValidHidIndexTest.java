@@ -0,0 +1,47 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Test;
+import org.sharedhealth.healthId.web.utils.HidCapacityCounter;
+import org.sharedhealth.healthId.web.utils.HidValidityRule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValidHidIndexTest {
+    private static final String MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+
+    @Test
+    public void shouldRankAndSelectEveryValidHidOfASeries() throws Exception {
+        HidValidityRule rule = HidValidityRule.compile("^(1005|1004)\\d*$|(\\d)\\2{2}");
+        ValidHidIndex index = new ValidHidIndex(new HidCapacityCounter(rule.getAutomaton()), 10000L, 10999L);
+        List<Long> valid = new ArrayList<>();
+        for (long candidate = 10000L; candidate <= 10999L; candidate++) {
+            assertEquals(valid.size(), index.rank(candidate));
+            if (rule.isValid(candidate)) valid.add(candidate);
+        }
+
+        assertEquals(valid.size(), index.size());
+        for (int n = 0; n < valid.size(); n++) {
+            assertEquals(valid.get(n).longValue(), index.select(n));
+        }
+        assertEquals(-1, index.select(valid.size()));
+        assertEquals(-1, index.select(-1));
+        assertEquals(valid.size(), index.rank(20000L));
+    }
+
+    @Test
+    public void shouldSelectInverseOfRankInLargeSeries() throws Exception {
+        HidValidityRule rule = HidValidityRule.compile(MCI_PATTERN);
+        ValidHidIndex index = new ValidHidIndex(new HidCapacityCounter(rule.getAutomaton()), 9900000000L, 9999999999L);
+
+        for (long n = 0; n < index.size(); n += index.size() / 1000) {
+            long hid = index.select(n);
+            assertEquals(true, rule.isValid(hid));
+            assertEquals(n, index.rank(hid));
+        }
+        long last = index.select(index.size() - 1);
+        assertEquals(index.size() - 1, index.rank(last));
+    }
+}
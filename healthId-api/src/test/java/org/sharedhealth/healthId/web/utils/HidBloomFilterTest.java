@@ -0,0 +1,52 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HidBloomFilterTest {
+
+    @Test
+    public void shouldContainEveryCandidatePut() throws Exception {
+        HidBloomFilter filter = new HidBloomFilter(10000, 0.01);
+        for (long candidate = 9100000000L; candidate < 9100010000L; candidate++) {
+            filter.put(candidate);
+        }
+        for (long candidate = 9100000000L; candidate < 9100010000L; candidate++) {
+            assertTrue(filter.mightContain(candidate));
+        }
+        assertEquals(10000, filter.getEntries());
+    }
+
+    @Test
+    public void shouldKeepFalsePositivesNearTheRequestedProbability() throws Exception {
+        HidBloomFilter filter = new HidBloomFilter(10000, 0.01);
+        for (long candidate = 9100000000L; candidate < 9100010000L; candidate++) {
+            filter.put(candidate);
+        }
+        int falsePositives = 0;
+        for (long candidate = 9200000000L; candidate < 9200100000L; candidate++) {
+            if (filter.mightContain(candidate)) falsePositives++;
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 2000);
+    }
+
+    @Test
+    public void shouldSurviveSerialisation() throws Exception {
+        HidBloomFilter filter = new HidBloomFilter(100, 0.01);
+        filter.put(9100000500L);
+        filter.put(9100000700L);
+
+        HidBloomFilter restored = HidBloomFilter.fromBytes(filter.toBytes(), filter.getHashFunctions(), filter.getEntries());
+
+        assertTrue(restored.mightContain(9100000500L));
+        assertTrue(restored.mightContain(9100000700L));
+        assertEquals(2, restored.getEntries());
+        assertEquals(filter.toBytes(), restored.toBytes());
+    }
+
+    @Test
+    public void shouldContainNothingWhenEmpty() throws Exception {
+        assertFalse(HidBloomFilter.empty().mightContain(9100000500L));
+    }
+}
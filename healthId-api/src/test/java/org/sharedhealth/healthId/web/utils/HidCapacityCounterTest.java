@@ -0,0 +1,92 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HidCapacityCounterTest {
+    private static final String MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final String ORG_PATTERN = "^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+
+    @Test
+    public void shouldAgreeWithEnumerationOnSmallRanges() throws Exception {
+        String[] patterns = {"^(105|104)\\d*$", "^(1005|1004)\\d*$", "(\\d)\\1{2}|^\\d{5}$", "((\\d)\\2)\\d*((\\d)\\4{3})"};
+        for (String pattern : patterns) {
+            HidValidityRule rule = HidValidityRule.compile(pattern);
+            HidCapacityCounter counter = new HidCapacityCounter(rule.getAutomaton());
+            Random random = new Random(pattern.hashCode());
+            for (int i = 0; i < 200; i++) {
+                long from = random.nextInt(200000);
+                long to = from + random.nextInt(20000);
+                assertEquals(pattern + " [" + from + ", " + to + "]", enumerate(rule, from, to), counter.countValid(from, to));
+            }
+        }
+    }
+
+    @Test
+    public void shouldAgreeWithEnumerationWithinHidRanges() throws Exception {
+        for (String pattern : new String[]{MCI_PATTERN, ORG_PATTERN}) {
+            HidValidityRule rule = HidValidityRule.compile(pattern);
+            HidCapacityCounter counter = new HidCapacityCounter(rule.getAutomaton());
+            Random random = new Random(pattern.hashCode());
+            for (int i = 0; i < 50; i++) {
+                long from = 9000000000L + (long) (random.nextDouble() * 999000000L);
+                long to = from + random.nextInt(100000);
+                assertEquals(pattern + " [" + from + ", " + to + "]", enumerate(rule, from, to), counter.countValid(from, to));
+            }
+        }
+    }
+
+    @Test
+    public void shouldAddUpOverAdjacentRanges() throws Exception {
+        HidCapacityCounter counter = new HidCapacityCounter(HidValidityRule.compile(MCI_PATTERN).getAutomaton());
+        long whole = counter.countValid(9800000000L, 9999999999L);
+
+        assertEquals(whole, counter.countValid(9800000000L, 9899999999L) + counter.countValid(9900000000L, 9999999999L));
+        assertEquals(0, counter.countValid(9000000000L, 9799999999L));
+        assertEquals(0, counter.countValid(10000000000L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldCountNothingInEmptyRanges() throws Exception {
+        HidCapacityCounter counter = new HidCapacityCounter(HidValidityRule.compile("^(105|104)\\d*$").getAutomaton());
+
+        assertEquals(0, counter.countValid(1000, 999));
+        assertEquals(0, counter.countValid(-10, 0));
+        assertEquals(0, counter.countValid(1040, 1059));
+        assertEquals(9, counter.countValid(-10, 9));
+    }
+
+    @Test
+    public void shouldFindTheNthValidHid() throws Exception {
+        HidValidityRule rule = HidValidityRule.compile("^(105|104)\\d*$|(\\d)\\2{2}");
+        HidCapacityCounter counter = new HidCapacityCounter(rule.getAutomaton());
+        long from = 980;
+        long n = 0;
+        for (long candidate = from; candidate < 20000; candidate++) {
+            if (rule.isValid(candidate)) {
+                assertEquals(candidate, counter.nthValid(from, n++));
+            }
+        }
+        assertEquals(-1, counter.nthValid(from, -1));
+    }
+
+    @Test
+    public void shouldFindNoValidHidBeyondTheLargestLong() throws Exception {
+        HidCapacityCounter counter = new HidCapacityCounter(HidValidityRule.compile("^(105|104)\\d*$").getAutomaton());
+
+        assertEquals(Long.MAX_VALUE, counter.nthValid(Long.MAX_VALUE - 1, 1));
+        assertEquals(-1, counter.nthValid(Long.MAX_VALUE - 1, 2));
+        assertEquals(-1, new HidCapacityCounter(HidValidityRule.compile(MCI_PATTERN).getAutomaton()).nthValid(9999999999L, 0));
+    }
+
+    private long enumerate(HidValidityRule rule, long from, long to) {
+        long count = 0;
+        for (long candidate = Math.max(from, 1); candidate <= to; candidate++) {
+            if (rule.isValid(candidate)) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HidFileSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteOneHidPerLineAndOnlyShowTheFileOnClose() throws Exception {
+        File target = new File(folder.getRoot(), "OTHER-ORG-hids");
+        HidFileSink sink = new HidFileSink(target, 0, 64);
+        for (int i = 0; i < 1000; i++) {
+            sink.write(String.valueOf(98000000000L + i));
+        }
+        assertFalse(target.exists());
+        assertTrue(new File(folder.getRoot(), "OTHER-ORG-hids" + HidFileSink.TEMP_FILE_SUFFIX).exists());
+
+        sink.close();
+
+        assertTrue(target.exists());
+        assertFalse(new File(folder.getRoot(), "OTHER-ORG-hids" + HidFileSink.TEMP_FILE_SUFFIX).exists());
+        List<String> lines = Files.readAllLines(target.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(1000, lines.size());
+        assertEquals("98000000000", lines.get(0));
+        assertEquals("98000000999", lines.get(999));
+    }
+
+    @Test
+    public void shouldSyncLinesToTheTemporaryFileAtTheSyncInterval() throws Exception {
+        File target = new File(folder.getRoot(), "OTHER-ORG-hids");
+        File tempFile = new File(folder.getRoot(), "OTHER-ORG-hids" + HidFileSink.TEMP_FILE_SUFFIX);
+        HidFileSink sink = new HidFileSink(target, 10);
+        for (int i = 0; i < 15; i++) {
+            sink.write(String.valueOf(98000000000L + i));
+        }
+
+        assertEquals(10, Files.readAllLines(tempFile.toPath(), StandardCharsets.US_ASCII).size());
+        sink.close();
+        assertEquals(15, Files.readAllLines(target.toPath(), StandardCharsets.US_ASCII).size());
+    }
+
+    @Test
+    public void shouldNotLeaveAFileWhenNothingWasWritten() throws Exception {
+        File target = new File(folder.getRoot(), "OTHER-ORG-hids");
+        new HidFileSink(target, 10).close();
+
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void shouldDropTheLinesWhenAborted() throws Exception {
+        File target = new File(folder.getRoot(), "OTHER-ORG-hids");
+        HidFileSink sink = new HidFileSink(target, 10);
+        for (int i = 0; i < 15; i++) {
+            sink.write(String.valueOf(98000000000L + i));
+        }
+
+        sink.abort();
+        sink.close();
+
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+}
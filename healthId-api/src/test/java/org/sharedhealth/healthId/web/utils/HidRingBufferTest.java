@@ -0,0 +1,76 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class HidRingBufferTest {
+
+    @Test
+    public void shouldHandOutHidsInOrderUntilEmpty() throws Exception {
+        HidRingBuffer buffer = new HidRingBuffer(3);
+        assertEquals(4, buffer.capacity());
+
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(buffer.offer("980000000" + i));
+        }
+        assertFalse(buffer.offer("9800000005"));
+        assertEquals(4, buffer.size());
+
+        assertEquals(asList("9800000001", "9800000002", "9800000003"), buffer.poll(3));
+        assertTrue(buffer.offer("9800000005"));
+        assertEquals(asList("9800000004", "9800000005"), buffer.poll(10));
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void shouldHandOutEveryHidExactlyOnceUnderContention() throws Exception {
+        final HidRingBuffer buffer = new HidRingBuffer(64);
+        final int producers = 4;
+        final int hidsPerProducer = 20000;
+        final Set<String> served = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch producersDone = new CountDownLatch(producers);
+        ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < hidsPerProducer; i++) {
+                        String hid = producer + "-" + i;
+                        while (!buffer.offer(hid)) {
+                            Thread.yield();
+                        }
+                    }
+                    producersDone.countDown();
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (producersDone.getCount() > 0 || buffer.size() > 0) {
+                        String hid = buffer.poll();
+                        if (hid != null && !served.add(hid)) duplicates.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(0, duplicates.get());
+        assertEquals(producers * hidsPerProducer, served.size());
+    }
+}
@@ -0,0 +1,92 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class HidValidityRuleTest {
+    private static final String MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final String ORG_PATTERN = "^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final int SAMPLES = 1000000;
+
+    @Test
+    public void shouldCompileConfiguredPatternsIntoAnAutomaton() throws Exception {
+        assertNotNull(HidValidityRule.compile(MCI_PATTERN).getAutomaton());
+        assertNotNull(HidValidityRule.compile(ORG_PATTERN).getAutomaton());
+        assertNotNull(HidValidityRule.compile("^(105|104)\\d*$").getAutomaton());
+        assertNotNull(HidValidityRule.compile("^(?:9[0-7]|8\\d)\\d*|(\\d)\\1{2}").getAutomaton());
+    }
+
+    @Test
+    public void shouldFallBackToRegexForUnsupportedPatterns() throws Exception {
+        HidValidityRule rule = HidValidityRule.compile("[13]$");
+        assertNull(rule.getAutomaton());
+        assertFalse(rule.isValid(9800000013L));
+        assertTrue(rule.isValid(9800000012L));
+
+        assertNull(HidValidityRule.compile("(\\d)\\2{3}").getAutomaton());
+        assertNull(HidValidityRule.compile("^98$").getAutomaton());
+    }
+
+    @Test
+    public void shouldApplyMciRules() throws Exception {
+        HidValidityRule rule = HidValidityRule.compile(MCI_PATTERN);
+        assertFalse(rule.isValid(8801543886L));
+        assertFalse(rule.isValid(9101543886L));
+        assertFalse(rule.isValid(98000034730L));
+        assertFalse(rule.isValid(98015888861L));
+        assertFalse(rule.isValid(9991548886L));
+        assertFalse(rule.isValid(9991118126L));
+        assertFalse(rule.isValid(9811115255L));
+        assertFalse(rule.isValid(9926L));
+        assertTrue(rule.isValid(9801543886L));
+        assertTrue(rule.isValid(9901543886L));
+        assertTrue(rule.isValid(9901548886L));
+        assertTrue(rule.isValid(9801588861L));
+    }
+
+    @Test
+    public void shouldAgreeWithRegexOnSampledNumbers() throws Exception {
+        String[] patterns = {MCI_PATTERN, ORG_PATTERN, "^(105|104)\\d*$", "^(1005|1004)\\d*$",
+                "^(?:9[0-7]|8\\d)\\d*|(\\d)\\1{2}|^\\d{5}$", "((\\d)\\2)\\d*((\\d)\\4{3})"};
+        for (String pattern : patterns) {
+            HidValidityRule rule = HidValidityRule.compile(pattern);
+            assertNotNull(pattern, rule.getAutomaton());
+            Pattern regex = Pattern.compile(pattern);
+            Random random = new Random(pattern.hashCode());
+
+            for (int i = 0; i < SAMPLES; i++) {
+                assertSameVerdict(regex, rule, sampleWithRepeatedDigits(random));
+            }
+            for (int i = 0; i < SAMPLES; i++) {
+                assertSameVerdict(regex, rule, 9000000000L + (long) (random.nextDouble() * 1000000000L));
+            }
+            for (long candidate = 9800000000L; candidate < 9800000000L + SAMPLES; candidate++) {
+                assertSameVerdict(regex, rule, candidate);
+            }
+            assertSameVerdict(regex, rule, 0);
+            assertSameVerdict(regex, rule, Long.MAX_VALUE);
+        }
+    }
+
+    private long sampleWithRepeatedDigits(Random random) {
+        int length = 1 + random.nextInt(DigitAutomaton.MAX_DIGITS - 1);
+        int[] alphabet = {random.nextInt(10), random.nextInt(10), random.nextInt(10)};
+        int alphabetSize = 1 + random.nextInt(alphabet.length);
+        long candidate = 1 + random.nextInt(9);
+        for (int i = 1; i < length; i++) {
+            candidate = candidate * 10 + alphabet[random.nextInt(alphabetSize)];
+        }
+        return candidate;
+    }
+
+    private void assertSameVerdict(Pattern regex, HidValidityRule rule, long candidate) {
+        boolean expected = !regex.matcher(String.valueOf(candidate)).find();
+        if (expected != rule.isValid(candidate)) {
+            fail(String.format("Pattern %s and compiled rule disagree on %s", regex.pattern(), candidate));
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.sharedhealth.healthId.web.exception.HidGenerationException;
 
+import java.util.Random;
+
 import static java.lang.String.valueOf;
 import static org.junit.Assert.assertEquals;
 
@@ -27,4 +29,39 @@ public class LuhnChecksumGeneratorTest {
     public void shouldThrowExceptionIfChecksumGenerationFails() {
         checksumGenerator.generate(valueOf(-1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldGenerateSameChecksumForPrimitiveCodes() {
+        assertEquals(9, checksumGenerator.generate(7892402363L));
+        assertEquals(7, checksumGenerator.generate(6894402763L));
+        assertEquals(5, checksumGenerator.generate(3392244354L));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long code = 1 + (long) (random.nextDouble() * Long.MAX_VALUE);
+            assertEquals(valueOf(code), checksumGenerator.generate(valueOf(code)), checksumGenerator.generate(code));
+        }
+    }
+
+    @Test
+    public void shouldGenerateSameChecksumWhenSteppingThroughConsecutiveCodes() {
+        LuhnChecksumGenerator.Incremental incremental = new LuhnChecksumGenerator.Incremental();
+        for (long code = 1; code < 200000; code++) {
+            assertEquals(valueOf(code), checksumGenerator.generate(valueOf(code)), incremental.generate(code));
+        }
+        for (long code = 799999990L; code < 800100000L; code++) {
+            assertEquals(valueOf(code), checksumGenerator.generate(valueOf(code)), incremental.generate(code));
+        }
+        assertEquals(checksumGenerator.generate("7892402363"), incremental.generate(7892402363L));
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldThrowExceptionIfPrimitiveCodeSumsToZero() {
+        checksumGenerator.generate(0L);
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldThrowExceptionForNegativePrimitiveCode() {
+        checksumGenerator.generate(-1L);
+    }
+}
@@ -0,0 +1,53 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.MciHidBlock;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.sharedhealth.healthId.web.utils.JsonMapper.readValue;
+
+public class MciHidBlockMessageConverterTest {
+    private final MciHidBlockMessageConverter converter = new MciHidBlockMessageConverter();
+    private final MciHidBlock block = new MciHidBlock(asList(new MciHealthId("98000000011"), new MciHealthId("98000000029")));
+
+    @Test
+    public void shouldWriteBlockAsJson() throws Exception {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(block, MediaType.APPLICATION_JSON, outputMessage);
+
+        assertEquals("{\"total\":2,\"hids\":[\"98000000011\",\"98000000029\"]}", outputMessage.getBodyAsString());
+        Map response = readValue(outputMessage.getBodyAsString(), Map.class);
+        assertEquals(2, response.get("total"));
+    }
+
+    @Test
+    public void shouldWriteOneHidPerLineAsText() throws Exception {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(block, MediaType.TEXT_PLAIN, outputMessage);
+
+        assertEquals("98000000011\n98000000029\n", outputMessage.getBodyAsString());
+        assertTrue(MediaType.TEXT_PLAIN.includes(outputMessage.getHeaders().getContentType()));
+    }
+
+    @Test
+    public void shouldWriteEmptyBlock() throws Exception {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(new MciHidBlock(new ArrayList<MciHealthId>()), MediaType.APPLICATION_JSON, outputMessage);
+
+        assertEquals("{\"total\":0,\"hids\":[]}", outputMessage.getBodyAsString());
+    }
+
+    @Test
+    public void shouldOnlyWriteHidBlocks() throws Exception {
+        assertTrue(converter.canWrite(MciHidBlock.class, MediaType.TEXT_PLAIN));
+        assertFalse(converter.canWrite(Map.class, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canRead(MciHidBlock.class, MediaType.APPLICATION_JSON));
+    }
+}
@@ -19,8 +19,20 @@ public class TestUtil {
     private static List<String> getAllColumnFamilies() {
         return asList(
                 CF_MCI_HEALTH_ID,
+                CF_MCI_HID_POOL,
                 CF_GENERATED_HID_BLOCKS,
-                CF_ORG_HEALTH_ID
+                CF_ORG_HEALTH_ID,
+                CF_HID_EXISTENCE_FILTERS,
+                CF_SERIES_WATERMARK,
+                CF_HID_RESERVATIONS,
+                CF_HID_CLAIMS,
+                CF_MCI_HID_RANGES,
+                CF_HID_RANGE_ALLOCATIONS,
+                CF_MCI_OPEN_HID_RANGES,
+                CF_HID_ALLOCATION_JOURNAL,
+                CF_NEXT_BLOCK_REQUESTS,
+                CF_MCI_HID_COUNTS,
+                CF_MCI_HID_COUNT_SEEDS
         );
     }
 